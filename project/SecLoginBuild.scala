@@ -41,7 +41,9 @@ object SecLoginBuild extends Build {
       libraryDependencies ++= Seq(
         "junit" % "junit" % "4.11",
         "com.dadrox" %% "sbt-junit" % "0.1",
-        "org.mockito" % "mockito-all" % "1.9.5"
+        "org.mockito" % "mockito-all" % "1.9.5",
+        "org.openjdk.jmh" % "jmh-core" % "1.36",
+        "org.openjdk.jmh" % "jmh-generator-annprocess" % "1.36"
       ) map (_ % "test"),
       compileOrder := CompileOrder.ScalaThenJava,
       jarName in assembly := "seclogin.jar",
@@ -2,6 +2,7 @@ package seclogin;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import seclogin.concurrent.SharedPool;
 import seclogin.historyfile.EncryptedHistoryFile;
 import seclogin.historyfile.HistoryFile;
 import seclogin.historyfile.HistoryFileCipher;
@@ -10,11 +11,30 @@ import seclogin.instructiontable.Distinguishment;
 import seclogin.instructiontable.DistinguishmentPolicy;
 import seclogin.instructiontable.InstructionTable;
 import seclogin.instructiontable.InstructionTableModQ;
+import seclogin.instructiontable.TableInterpolation;
+import seclogin.instructiontable.TableKeys;
+import seclogin.instructiontable.TableSalts;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 
-/** Authenticates users against their hardened passwords. */
+
+/**
+ * Authenticates users against their hardened passwords.
+ *
+ * It can tolerate errors in the features whose measurements are nearest to their distinguishment boundaries:
+ * the hardened passwords of alternative distinguishments are interpolated as well, and checked against the
+ * history file's key on a shared pool of threads (one per processor) as well as the calling thread.
+ */
 public class Authenticator {
 
     private static final Logger log = LoggerFactory.getLogger(Authenticator.class);
@@ -22,22 +42,62 @@ public class Authenticator {
     private final InstructionTableModQ instructionTableModQ;
     private final HistoryFileCipher historyFileCipher;
     private final DistinguishmentPolicy distinguishmentPolicy;
+    @Nullable private final Executor kdfExecutor;
+    private final int alternatives;
 
 
     public Authenticator(InstructionTableModQ instructionTableModQ,
                          MeasurementParams[] measurementParams,
                          HistoryFileCipher historyFileCipher) {
+        this(instructionTableModQ, measurementParams, historyFileCipher, SecLoginParams.DEFAULT);
+    }
+
+    /**
+     * @param params of which the {@link SecLoginParams#kdfExecutor} and the
+     *               {@link SecLoginParams#alternativeDistinguishments} govern authentication
+     */
+    public Authenticator(InstructionTableModQ instructionTableModQ,
+                         MeasurementParams[] measurementParams,
+                         HistoryFileCipher historyFileCipher,
+                         SecLoginParams params) {
         this.instructionTableModQ = instructionTableModQ;
         this.historyFileCipher = historyFileCipher;
+        this.kdfExecutor = params.kdfExecutor;
+        this.alternatives = params.alternativeDistinguishments;
         distinguishmentPolicy = new DistinguishmentPolicy(measurementParams);
     }
 
     /**
      * Authenticates the user by recovering their hardened password from their instruction table
      * and history file using the given regular password and measurements (responses to questions).
+     *
+     * @return the user's refreshed state, or null if authentication failed
       */
     @Nullable
     public UserState authenticate(UserState userState, Password pwd, double[] measurements) {
+        Callable<UserState> refresh = authenticateDeferringRefresh(userState, pwd, measurements);
+        if (refresh == null) {
+            return null;
+        }
+        try {
+            return refresh.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Authenticates the user as {@link #authenticate} does, but returns as soon as the history file is
+     * decrypted, deferring the refresh of the user's state (a new instruction table and the updated history
+     * file) to the returned task, which can be run on another thread.
+     *
+     * @return the refresh of the user's state, or null if authentication failed
+     */
+    @Nullable
+    public Callable<UserState> authenticateDeferringRefresh(final UserState userState, Password pwd,
+                                                            final double[] measurements) {
         log.debug("Authenticating user `{}' with measurements = {}", userState.user, Arrays.toString(measurements));
 
         // determine feature distinguishment from measurements
@@ -45,39 +105,174 @@ public class Authenticator {
                 distinguishmentPolicy.measurementDistinguishment(measurements);
         log.debug("Determined (from measurements) feature distinguishments = {}", Arrays.toString(distinguishments));
 
-        // interpolate hardened password from regular password and distinguishments
-        HardenedPassword hpwd = instructionTableModQ.interpolateHpwd(userState.instructionTable, pwd, distinguishments);
-        log.debug("Interpolated hpwd = {}", hpwd);
+        // keys derived from the regular password are shared by the old and new instruction tables where possible
+        final TableKeys keys = new TableKeys(pwd);
+
+        // the new instruction table's salts do not depend on the outcome, so its key can be derived
+        // alongside the old table's and is simply discarded if the login fails; key derivation upgrades,
+        // which are budgeted, are only made (see upgradeSalts) once the login succeeds
+        final TableSalts nextSalts = instructionTableModQ.nextSalts(userState.instructionTable);
+        if (kdfExecutor != null) {
+            log.debug("Deriving new instruction table key speculatively");
+            keys.prefetch(nextSalts, kdfExecutor);
+        }
 
-        // try to decrypt the history file with the recovered hardened password
-        HistoryFile historyFile;
+        boolean authenticated = false;
         try {
-            historyFile = historyFileCipher.decrypt(userState.encryptedHistoryFile, hpwd, userState.user);
-            log.debug("Decrypted history file successfully");
-        } catch (IndecipherableHistoryFileException e) {
-            log.debug("Could not decrypt history file => hpwd incorrect");
-            // the hardened password is incorrect
-            return null;
+            // interpolate hardened password from regular password and distinguishments,
+            // and try to decrypt the history file with it
+            HardenedPassword hpwd;
+            HistoryFile historyFile;
+            if (alternatives == 0) {
+                hpwd = instructionTableModQ.interpolateHpwd(userState.instructionTable, keys, distinguishments);
+                historyFile = decrypt(userState, hpwd);
+            } else {
+                Decrypted decrypted = decryptCandidates(userState, keys, measurements);
+                hpwd = decrypted == null ? null : decrypted.hpwd;
+                historyFile = decrypted == null ? null : decrypted.historyFile;
+            }
+            if (historyFile == null) {
+                // the hardened password is incorrect
+                return null;
+            }
+
+            authenticated = true;
+            final HardenedPassword recovered = hpwd;
+            final HistoryFile decrypted = historyFile;
+            return new Callable<UserState>() {
+                @Override
+                public UserState call() {
+                    try {
+                        TableSalts salts = instructionTableModQ.upgradeSalts(nextSalts, userState.instructionTable);
+                        return refresh(userState.user, recovered, keys, salts, decrypted, measurements);
+                    } finally {
+                        keys.cancel();
+                    }
+                }
+            };
+        } finally {
+            if (!authenticated) {
+                keys.cancel();
+            }
         }
+    }
 
+    /**
+     * Refreshes the state of an authenticated user: adds the measurements to their history file, and
+     * generates a new instruction table from the updated statistics.
+     */
+    private UserState refresh(User user, HardenedPassword hpwd, TableKeys keys, TableSalts nextSalts,
+                              HistoryFile historyFile, double[] measurements) {
         log.debug("Adding new measurements to history file");
-        historyFile = historyFile.withMostRecentMeasurements(measurements);
+        // the decrypted history file belongs to this login alone, so it is updated in place
+        historyFile.addMostRecentMeasurements(measurements);
 
         // calculate the historical measurement statistics for this user
         MeasurementStats[] measurementStats = historyFile.calculateStats();
         log.debug("Calculated historical measurement statistics = {}", Arrays.toString(measurementStats));
 
         // determine feature distinguishment from user's statistics
-        distinguishments = distinguishmentPolicy.userDistinguishment(measurementStats);
+        Distinguishment[] distinguishments = distinguishmentPolicy.userDistinguishment(measurementStats);
         log.debug("Determined (from measurement statistics) feature distinguishments = {}",
                 Arrays.toString(distinguishments));
 
         log.debug("Generating new instruction table (with user's new distinguishments)");
-        InstructionTable table = instructionTableModQ.generate(hpwd, pwd, distinguishments);
+        InstructionTable table = instructionTableModQ.generate(hpwd, keys, distinguishments, nextSalts);
 
         log.debug("Encrypting history file with hpwd");
         EncryptedHistoryFile encryptedHistoryFile = historyFileCipher.encrypt(historyFile, hpwd);
 
-        return new UserState(userState.user, table, encryptedHistoryFile);
+        return new UserState(user, table, encryptedHistoryFile);
+    }
+
+    /** Decrypts the user's history file with the given hardened password, or returns null if it is incorrect. */
+    @Nullable
+    private HistoryFile decrypt(UserState userState, HardenedPassword hpwd) {
+        log.debug("Interpolated hpwd = {}", hpwd);
+        try {
+            HistoryFile historyFile = historyFileCipher.decrypt(userState.encryptedHistoryFile, hpwd, userState.user);
+            log.debug("Decrypted history file successfully");
+            return historyFile;
+        } catch (IndecipherableHistoryFileException e) {
+            log.debug("Could not decrypt history file => hpwd incorrect");
+            return null;
+        }
+    }
+
+    /**
+     * Interpolates the hardened passwords of the measurements' own distinguishments and of the alternatives
+     * to them, and decrypts the history file with the first that does so, if any. The calling thread checks
+     * the likeliest candidate against the history file's key while the pool checks the others. Candidates
+     * that pass are decrypted as their checks complete, since a legacy history file's check (of its padding
+     * alone) can pass a wrong key; once one decrypts, the checks still pending or running are cancelled.
+     */
+    @Nullable
+    private Decrypted decryptCandidates(UserState userState, TableKeys keys, double[] measurements) {
+        List<Distinguishment[]> candidates =
+                distinguishmentPolicy.measurementDistinguishments(measurements, alternatives);
+        log.debug("Trying {} candidate feature distinguishments", candidates.size());
+
+        // interpolation is cheap once the table's points are recovered; checking the key is not
+        TableInterpolation interpolation = instructionTableModQ.interpolation(userState.instructionTable, keys);
+        final EncryptedHistoryFile encryptedHistoryFile = userState.encryptedHistoryFile;
+        // completed checks, in the order they complete
+        final BlockingQueue<Future<HardenedPassword>> completed =
+                new LinkedBlockingQueue<Future<HardenedPassword>>();
+        List<FutureTask<HardenedPassword>> checks = new ArrayList<FutureTask<HardenedPassword>>(candidates.size());
+        for (Distinguishment[] candidate : candidates) {
+            final HardenedPassword hpwd = interpolation.interpolateHpwd(candidate);
+            checks.add(new FutureTask<HardenedPassword>(new Callable<HardenedPassword>() {
+                @Override
+                public HardenedPassword call() {
+                    return historyFileCipher.isKey(encryptedHistoryFile, hpwd) ? hpwd : null;
+                }
+            }) {
+                @Override
+                protected void done() {
+                    completed.add(this);
+                }
+            });
+        }
+        for (int i = 1; i < checks.size(); i++) {
+            SharedPool.execute(checks.get(i));
+        }
+
+        try {
+            checks.get(0).run();
+            for (int i = 0; i < checks.size(); i++) {
+                HardenedPassword hpwd = completed.take().get();
+                if (hpwd == null) {
+                    continue;
+                }
+                HistoryFile historyFile = decrypt(userState, hpwd);
+                if (historyFile != null) {
+                    log.debug("A candidate decrypted the history file after {} check(s)", i + 1);
+                    return new Decrypted(hpwd, historyFile);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (FutureTask<HardenedPassword> check : checks) {
+                check.cancel(true);
+            }
+        }
+        log.debug("No candidate decrypted the history file");
+        return null;
+    }
+
+    /** A hardened password and the history file decrypted with it. */
+    private static class Decrypted {
+
+        final HardenedPassword hpwd;
+        final HistoryFile historyFile;
+
+        Decrypted(HardenedPassword hpwd, HistoryFile historyFile) {
+            this.hpwd = hpwd;
+            this.historyFile = historyFile;
+        }
     }
 }
@@ -1,5 +1,7 @@
 package seclogin;
 
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -8,9 +10,19 @@ import net.sourceforge.argparse4j.inf.Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import scala.tools.jline.console.ConsoleReader;
+import seclogin.crypto.CtrDrbg;
+import seclogin.crypto.KdfCalibration;
+import seclogin.crypto.KeyDerivation;
+import seclogin.crypto.Pbkdf2;
+import seclogin.crypto.Scrypt;
+import seclogin.instructiontable.InstructionTableIo;
+import seclogin.instructiontable.InstructionTableParams;
+import seclogin.instructiontable.KdfUpgradeBudget;
+import seclogin.instructiontable.KeySchedule;
 import seclogin.math.Mod;
 import seclogin.math.RandomQ;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -19,6 +31,8 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Console {
 
@@ -60,6 +74,11 @@ public class Console {
                         " with existing user state will likely result in unexpected behavior.")
                 .type(Integer.class);
 
+        parser.addArgument("--calibratekdf")
+                .help("Benchmark key derivation on this host and configure the iteration count" +
+                        " that fits within kdfLatencyBudgetMillis at the 99th percentile.")
+                .action(Arguments.storeTrue());
+
         Namespace ns;
         try {
             ns = parser.parseArgs(args);
@@ -82,14 +101,47 @@ public class Console {
         log.debug("Using q = {}", q.q.toString(16));
         int historyFileSize = config.getHistoryFileSize();
         log.debug("Using history file size = {}", historyFileSize);
+        InstructionTableParams instructionTableParams = new InstructionTableParams(
+                config.getKeyDerivation(), config.getKeySchedule(), config.getKdfUpgradeBudget(),
+                config.getParallelTableGeneration());
+        log.debug("Using instruction table params = {}", instructionTableParams);
+        ExecutorService kdfExecutor = null;
+        if (config.getSpeculativeKdf()) {
+            log.debug("Deriving new instruction table keys speculatively");
+            kdfExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("seclogin-kdf-%d").setDaemon(true).build());
+        }
+        int alternativeDistinguishments = config.getAlternativeDistinguishments();
+        log.debug("Using alternative distinguishments = {}", alternativeDistinguishments);
+        ExecutorService refreshExecutor = null;
+        if (config.getAsyncRefresh()) {
+            log.debug("Refreshing user state in the background");
+            // not daemon threads, so that a pending refresh is written before the process exits
+            refreshExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("seclogin-refresh-%d").build());
+        }
+        ExecutorService randomnessExecutor = null;
+        if (config.getRandomnessPool()) {
+            log.debug("Drawing instruction table randomness ahead of time");
+            // fills the pool while the user answers the questions
+            randomnessExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("seclogin-randomness-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+        }
 
         SecLogin secLogin = new SecLogin(
             new ConsoleUI(),
-            new UserStateFilesystemPersistence(persistentStateDir()),
-            random,
+            new UserStateFilesystemPersistence(persistentStateDir(),
+                    new InstructionTableIo(config.getScryptMaxMemory())),
+            new CtrDrbg(random),
             QuestionBank.createDefault(),
             historyFileSize,
-            q
+            q,
+            SecLoginParams.DEFAULT
+                    .withInstructionTableParams(instructionTableParams)
+                    .withKdfExecutor(kdfExecutor)
+                    .withAlternativeDistinguishments(alternativeDistinguishments)
+                    .withRefreshExecutor(refreshExecutor)
+                    .withRandomnessExecutor(randomnessExecutor)
         );
 
         String usernameToAdd = args.getString("add");
@@ -99,7 +151,13 @@ public class Console {
             throw exit(0);
         }
 
-        secLogin.prompt();
+        try {
+            secLogin.prompt();
+        } finally {
+            if (refreshExecutor != null) {
+                refreshExecutor.shutdown();
+            }
+        }
     }
 
     private static Config loadAndUpdateConfig(Namespace args, Random random) {
@@ -108,6 +166,14 @@ public class Console {
         try {
             config = new Config(configFile, random);
 
+            if (config.verifyQ()) {
+                try {
+                    config.save();
+                } catch (IOException e) {
+                    log.debug("Could not record that q is prime", e);
+                }
+            }
+
             Integer historyFileSize = args.getInt("historyfilesize");
             if (historyFileSize != null) {
                 config.setHistoryFileSize(historyFileSize);
@@ -115,6 +181,21 @@ public class Console {
                 System.out.println("Saved updated config.");
                 throw exit(0);
             }
+
+            if (args.getBoolean("calibratekdf")) {
+                System.out.printf("Calibrating key derivation to %d ms...\n", config.getKdfLatencyBudgetMillis());
+                KeyDerivation configured = config.getKeyDerivation();
+                if (!(configured instanceof Pbkdf2)) {
+                    System.err.println("Only PBKDF2 key derivation can be calibrated, not " + configured);
+                    throw exit(1);
+                }
+                Pbkdf2 calibrated = new KdfCalibration(
+                        ((Pbkdf2) configured).prf, config.getKdfLatencyBudgetMillis()).calibrate();
+                config.setKeyDerivation(calibrated);
+                config.save();
+                System.out.printf("Saved updated config with key derivation %s.\n", calibrated);
+                throw exit(0);
+            }
         } catch (IOException e) {
             System.err.println("Could not read/write config file " + configFile.getAbsolutePath());
             throw exit(1);
@@ -232,6 +313,7 @@ public class Console {
                 Mod q = new RandomQ(random).nextQ();
                 log.debug("No q configured. Generated q = {}", q.q.toString(16));
                 props.setProperty(qKey, q.q.toString(16));
+                props.setProperty(qVerifiedKey, primalityRecord(q.q));
                 save();
             }
         }
@@ -248,16 +330,58 @@ public class Console {
 
         String qKey = "q";
         Mod getQ() {
-            BigInteger q;
+            BigInteger q = parseQ();
+            if (!isQVerified(q)) {
+                checkPrime(q);
+            }
+            return new Mod(q);
+        }
+
+        /**
+         * Tests that the configured q is prime unless that was already recorded, and records it if not.
+         *
+         * @return whether the record changed, and so needs to be saved
+         * @throws RuntimeException if q is not prime
+         */
+        boolean verifyQ() {
+            BigInteger q = parseQ();
+            if (isQVerified(q)) {
+                log.debug("Configured q was already verified to be prime");
+                return false;
+            }
+            checkPrime(q);
+            props.setProperty(qVerifiedKey, primalityRecord(q));
+            return true;
+        }
+
+        private BigInteger parseQ() {
             try {
-                q = new BigInteger(props.getProperty(qKey), 16);
+                return new BigInteger(props.getProperty(qKey), 16);
             } catch (NumberFormatException e) {
                 throw new RuntimeException(qKey + " must be an base-16 integer");
             }
-            if (!q.isProbablePrime(100)) {
+        }
+
+        private boolean isQVerified(BigInteger q) {
+            return primalityRecord(q).equals(props.getProperty(qVerifiedKey));
+        }
+
+        private static void checkPrime(BigInteger q) {
+            if (!q.isProbablePrime(RandomQ.CERTAINTY)) {
                 throw new RuntimeException("Configured q = " + q.toString(16) + " is not prime!");
             }
-            return new Mod(q);
+        }
+
+        String qVerifiedKey = "qVerified";
+        /**
+         * Records that `q` passed the primality test: a digest of `q` and the test's certainty, which stops
+         * matching once either changes, so that the test is only repeated when the configuration changes.
+         */
+        static String primalityRecord(BigInteger q) {
+            return Hashing.sha256().newHasher()
+                    .putBytes(q.toByteArray())
+                    .putInt(RandomQ.CERTAINTY)
+                    .hash().toString();
         }
 
         String historyFileSizeKey = "historyFileSize";
@@ -271,6 +395,135 @@ public class Console {
         void setHistoryFileSize(int historyFileSize) {
             props.setProperty(historyFileSizeKey, String.valueOf(historyFileSize));
         }
+
+        String kdfAlgorithmKey = "kdfAlgorithm";
+        String kdfIterationsKey = "kdfIterations";
+        String scryptCostKey = "scryptCost";
+        String scryptBlockSizeKey = "scryptBlockSize";
+        String scryptParallelismKey = "scryptParallelism";
+        KeyDerivation getKeyDerivation() {
+            if ("scrypt".equalsIgnoreCase(props.getProperty(kdfAlgorithmKey))) {
+                Scrypt scrypt;
+                try {
+                    scrypt = new Scrypt(
+                            getInt(scryptCostKey, 16384),
+                            getInt(scryptBlockSizeKey, 8),
+                            getInt(scryptParallelismKey, 4));
+                } catch (IllegalArgumentException e) {
+                    throw new RuntimeException("Invalid scrypt parameters: " + e.getMessage());
+                }
+                // otherwise the tables generated with it could not be read back
+                if (scrypt.memoryPerLane() * scrypt.parallelism > getScryptMaxMemory()) {
+                    throw new RuntimeException("Invalid scrypt parameters: " + scrypt + " would use more than "
+                            + scryptMaxMemoryMiBKey);
+                }
+                return scrypt;
+            }
+
+            Pbkdf2.Prf prf;
+            try {
+                prf = Pbkdf2.Prf.forMacAlgorithm(
+                        props.getProperty(kdfAlgorithmKey, Pbkdf2.DEFAULT.prf.macAlgorithm));
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException(kdfAlgorithmKey + " must be one of HmacSHA1, HmacSHA256, HmacSHA512, scrypt");
+            }
+            int iterations;
+            try {
+                iterations = Integer.parseInt(
+                        props.getProperty(kdfIterationsKey, String.valueOf(Pbkdf2.DEFAULT.iterations)));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException(kdfIterationsKey + " must be an integer");
+            }
+            if (iterations < KdfCalibration.MIN_ITERATIONS) {
+                throw new RuntimeException(kdfIterationsKey + " must be at least " + KdfCalibration.MIN_ITERATIONS);
+            }
+            return new Pbkdf2(prf, iterations);
+        }
+        void setKeyDerivation(Pbkdf2 keyDerivation) {
+            props.setProperty(kdfAlgorithmKey, keyDerivation.prf.macAlgorithm);
+            props.setProperty(kdfIterationsKey, String.valueOf(keyDerivation.iterations));
+        }
+
+        String scryptMaxMemoryMiBKey = "scryptMaxMemoryMiB";
+        /** The maximum memory, in bytes, that the scrypt of an instruction table may use across its lanes. */
+        long getScryptMaxMemory() {
+            int mebibytes = getInt(scryptMaxMemoryMiBKey,
+                    (int) (InstructionTableIo.DEFAULT_MAX_SCRYPT_MEMORY >> 20));
+            if (mebibytes <= 0) {
+                throw new RuntimeException(scryptMaxMemoryMiBKey + " must be a positive integer");
+            }
+            return (long) mebibytes << 20;
+        }
+
+        private int getInt(String key, int defaultValue) {
+            try {
+                return Integer.parseInt(props.getProperty(key, String.valueOf(defaultValue)));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException(key + " must be an integer");
+            }
+        }
+
+        String keyScheduleKey = "keySchedule";
+        KeySchedule getKeySchedule() {
+            try {
+                return KeySchedule.valueOf(props.getProperty(keyScheduleKey, KeySchedule.PER_TABLE.name()));
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException(keyScheduleKey + " must be PER_TABLE or MASTER_KEY");
+            }
+        }
+
+        String kdfUpgradeMillisPerMinuteKey = "kdfUpgradeMillisPerMinute";
+        @Nullable KdfUpgradeBudget getKdfUpgradeBudget() {
+            String millisPerMinute = props.getProperty(kdfUpgradeMillisPerMinuteKey);
+            if (millisPerMinute == null) {
+                return null;
+            }
+            try {
+                return new KdfUpgradeBudget(Long.parseLong(millisPerMinute));
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException(kdfUpgradeMillisPerMinuteKey + " must be a positive integer");
+            }
+        }
+
+        String speculativeKdfKey = "speculativeKdf";
+        boolean getSpeculativeKdf() {
+            boolean multicore = Runtime.getRuntime().availableProcessors() > 1;
+            return Boolean.parseBoolean(props.getProperty(speculativeKdfKey, String.valueOf(multicore)));
+        }
+
+        String parallelTableGenerationKey = "parallelTableGeneration";
+        boolean getParallelTableGeneration() {
+            boolean multicore = Runtime.getRuntime().availableProcessors() > 1;
+            return Boolean.parseBoolean(props.getProperty(parallelTableGenerationKey, String.valueOf(multicore)));
+        }
+
+        String randomnessPoolKey = "randomnessPool";
+        boolean getRandomnessPool() {
+            return Boolean.parseBoolean(props.getProperty(randomnessPoolKey, "true"));
+        }
+
+        String asyncRefreshKey = "asyncRefresh";
+        boolean getAsyncRefresh() {
+            return Boolean.parseBoolean(props.getProperty(asyncRefreshKey, "false"));
+        }
+
+        String alternativeDistinguishmentsKey = "alternativeDistinguishments";
+        int getAlternativeDistinguishments() {
+            int alternatives = getInt(alternativeDistinguishmentsKey, 0);
+            if (alternatives < 0) {
+                throw new RuntimeException(alternativeDistinguishmentsKey + " must not be negative");
+            }
+            return alternatives;
+        }
+
+        String kdfLatencyBudgetMillisKey = "kdfLatencyBudgetMillis";
+        long getKdfLatencyBudgetMillis() {
+            try {
+                return Long.parseLong(props.getProperty(kdfLatencyBudgetMillisKey, "100"));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException(kdfLatencyBudgetMillisKey + " must be an integer");
+            }
+        }
     }
 
 }
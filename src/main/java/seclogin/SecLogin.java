@@ -3,8 +3,6 @@ package seclogin;
 import com.google.common.base.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import seclogin.crypto.Aes128Cbc;
-import seclogin.crypto.BlockCipher;
 import seclogin.historyfile.EncryptedHistoryFile;
 import seclogin.historyfile.HistoryFile;
 import seclogin.historyfile.HistoryFileCipher;
@@ -13,9 +11,13 @@ import seclogin.instructiontable.Distinguishment;
 import seclogin.instructiontable.InstructionTable;
 import seclogin.instructiontable.InstructionTableModQ;
 import seclogin.math.Mod;
+import seclogin.math.PooledRandomBigIntModQ;
+import seclogin.math.RandomBigIntModQ;
 
+import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -25,6 +27,9 @@ public class SecLogin {
 
     private static final Logger log = LoggerFactory.getLogger(SecLogin.class);
 
+    /** The number of new instruction tables whose randomness is drawn ahead of time, if it is. */
+    private static final int POOLED_TABLES = 8;
+
     private final UserInterface userInterface;
     private final UserStatePersistence userStatePersistence;
     private final QuestionBank questionBank;
@@ -33,10 +38,17 @@ public class SecLogin {
     private final HistoryFileParams historyFileParams;
     private final InstructionTableModQ instructionTableModQ;
     private final Authenticator authenticator;
+    @Nullable private final UserStateRefresher userStateRefresher;
 
 
     public SecLogin(UserInterface userInterface, UserStatePersistence userStatePersistence,
                     Random random, QuestionBank questionBank, int historyFileSize, Mod q) {
+        this(userInterface, userStatePersistence, random, questionBank, historyFileSize, q, SecLoginParams.DEFAULT);
+    }
+
+    /** @param params how logins are authenticated and how users' state is refreshed */
+    public SecLogin(UserInterface userInterface, UserStatePersistence userStatePersistence,
+                    Random random, QuestionBank questionBank, int historyFileSize, Mod q, SecLoginParams params) {
         this.userInterface = userInterface;
         this.userStatePersistence = userStatePersistence;
 
@@ -48,11 +60,14 @@ public class SecLogin {
 
         historyFileParams = new HistoryFileParams(historyFileSize, nrOfFeatures);
 
-        BlockCipher cipher = new Aes128Cbc();
-        historyFileCipher = new HistoryFileCipher(cipher);
+        historyFileCipher = new HistoryFileCipher();
 
-        instructionTableModQ = new InstructionTableModQ(q, random);
-        authenticator = new Authenticator(instructionTableModQ, measurementParams, historyFileCipher);
+        RandomBigIntModQ elements = params.randomnessExecutor == null ? new RandomBigIntModQ(random, q)
+                : new PooledRandomBigIntModQ(random, q, params.randomnessExecutor, POOLED_TABLES * nrOfFeatures);
+        instructionTableModQ = new InstructionTableModQ(q, random, params.instructionTableParams, elements);
+        authenticator = new Authenticator(instructionTableModQ, measurementParams, historyFileCipher, params);
+        userStateRefresher = params.refreshExecutor == null ? null
+                : new UserStateRefresher(params.refreshExecutor, userStatePersistence);
     }
 
     public void prompt() {
@@ -61,20 +76,39 @@ public class SecLogin {
         Password password = askPassword();
         double[] measurements = askQuestions();
 
+        if (userStateRefresher != null) {
+            // the state written by an earlier login's refresh is the one to authenticate against
+            userStateRefresher.await(user);
+        }
         UserState userState = userStatePersistence.read(user);
 
-        if (userState != null) {
+        boolean loginCorrect;
+        if (userState == null) {
+            loginCorrect = false;
+        } else if (userStateRefresher != null) {
+            Callable<UserState> refresh = authenticator.authenticateDeferringRefresh(userState, password, measurements);
+            loginCorrect = refresh != null;
+            if (loginCorrect) {
+                log.debug("Writing new instruction table and updated history file in the background");
+                userStateRefresher.refresh(user, refresh);
+            }
+        } else {
             userState = authenticator.authenticate(userState, password, measurements);
+            loginCorrect = userState != null;
+            if (loginCorrect) {
+                log.debug("Writing new instruction table and updated history file");
+                userStatePersistence.write(userState);
+            }
         }
 
-        boolean loginCorrect = userState != null;
+        userInterface.tell(loginCorrect ? UserInterface.Success : UserInterface.Failure);
+    }
 
-        if (loginCorrect) {
-            log.debug("Writing new instruction table and updated history file");
-            userStatePersistence.write(userState);
+    /** Waits until the state of the given user has been refreshed after all of their successful logins so far. */
+    public void awaitRefresh(User user) {
+        if (userStateRefresher != null) {
+            userStateRefresher.await(user);
         }
-
-        userInterface.tell(loginCorrect ? UserInterface.Success : UserInterface.Failure);
     }
 
     private User askUser() {
@@ -0,0 +1,95 @@
+package seclogin;
+
+import seclogin.instructiontable.InstructionTableParams;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Parameters that govern how logins are authenticated and how users' state is refreshed. Start from
+ * {@link #DEFAULT} and override parameters with the `with` methods.
+ */
+public class SecLoginParams {
+
+    public static final SecLoginParams DEFAULT =
+            new SecLoginParams(InstructionTableParams.DEFAULT, null, 0, null, null);
+
+    /** How newly generated instruction tables are keyed. */
+    public final InstructionTableParams instructionTableParams;
+
+    /**
+     * If not null, the executor on which the new instruction table's PRF key is speculatively derived during
+     * authentication, while the old table's is derived on the calling thread.
+     */
+    @Nullable public final Executor kdfExecutor;
+
+    /**
+     * The number of alternative feature distinguishments to try when authenticating, for features measured near
+     * their boundaries (see {@link seclogin.instructiontable.DistinguishmentPolicy#measurementDistinguishments}).
+     * Each is another guess at the hardened password, so this many more guesses per login are allowed.
+     */
+    public final int alternativeDistinguishments;
+
+    /**
+     * If not null, the executor on which a user's state is refreshed and written after a successful login, which
+     * is reported as soon as the history file is decrypted.
+     */
+    @Nullable public final Executor refreshExecutor;
+
+    /**
+     * If not null, the executor on which the hardened passwords and polynomial coefficients of new instruction
+     * tables are drawn ahead of time.
+     */
+    @Nullable public final Executor randomnessExecutor;
+
+    private SecLoginParams(InstructionTableParams instructionTableParams, @Nullable Executor kdfExecutor,
+                           int alternativeDistinguishments, @Nullable Executor refreshExecutor,
+                           @Nullable Executor randomnessExecutor) {
+        checkArgument(alternativeDistinguishments >= 0);
+
+        this.instructionTableParams = checkNotNull(instructionTableParams);
+        this.kdfExecutor = kdfExecutor;
+        this.alternativeDistinguishments = alternativeDistinguishments;
+        this.refreshExecutor = refreshExecutor;
+        this.randomnessExecutor = randomnessExecutor;
+    }
+
+    public SecLoginParams withInstructionTableParams(InstructionTableParams instructionTableParams) {
+        return new SecLoginParams(instructionTableParams, kdfExecutor, alternativeDistinguishments,
+                refreshExecutor, randomnessExecutor);
+    }
+
+    public SecLoginParams withKdfExecutor(@Nullable Executor kdfExecutor) {
+        return new SecLoginParams(instructionTableParams, kdfExecutor, alternativeDistinguishments,
+                refreshExecutor, randomnessExecutor);
+    }
+
+    public SecLoginParams withAlternativeDistinguishments(int alternativeDistinguishments) {
+        return new SecLoginParams(instructionTableParams, kdfExecutor, alternativeDistinguishments,
+                refreshExecutor, randomnessExecutor);
+    }
+
+    public SecLoginParams withRefreshExecutor(@Nullable Executor refreshExecutor) {
+        return new SecLoginParams(instructionTableParams, kdfExecutor, alternativeDistinguishments,
+                refreshExecutor, randomnessExecutor);
+    }
+
+    public SecLoginParams withRandomnessExecutor(@Nullable Executor randomnessExecutor) {
+        return new SecLoginParams(instructionTableParams, kdfExecutor, alternativeDistinguishments,
+                refreshExecutor, randomnessExecutor);
+    }
+
+    @Override
+    public String toString() {
+        return "SecLoginParams{" +
+                "instructionTableParams=" + instructionTableParams +
+                ", kdfExecutor=" + kdfExecutor +
+                ", alternativeDistinguishments=" + alternativeDistinguishments +
+                ", refreshExecutor=" + refreshExecutor +
+                ", randomnessExecutor=" + randomnessExecutor +
+                '}';
+    }
+}
@@ -20,10 +20,16 @@ public class UserStateFilesystemPersistence implements UserStatePersistence {
 
     private final File dir;
     private final HistoryFileIo historyFileIo = new HistoryFileIo();
-    private final InstructionTableIo instructionTableIo = new InstructionTableIo();
+    private final InstructionTableIo instructionTableIo;
 
     public UserStateFilesystemPersistence(File dir) {
+        this(dir, new InstructionTableIo());
+    }
+
+    /** Constructs a {@link UserStateFilesystemPersistence} that reads and writes instruction tables with the given I/O. */
+    public UserStateFilesystemPersistence(File dir, InstructionTableIo instructionTableIo) {
         this.dir = dir;
+        this.instructionTableIo = instructionTableIo;
     }
 
     public void write(UserState userState) {
@@ -46,8 +52,7 @@ public class UserStateFilesystemPersistence implements UserStatePersistence {
         try {
             File file = instructionTableFile(userState.user);
             log.debug("Writing instruction table for user `{}' to `{}'", userState.user, file);
-            FileOutputStream out = new FileOutputStream(file);
-            instructionTableIo.write(userState.instructionTable, out);
+            instructionTableIo.write(userState.instructionTable, file);
         } catch (IOException e) {
             throw new RuntimeException("Could not write instruction table.", e);
         }
@@ -59,8 +64,8 @@ public class UserStateFilesystemPersistence implements UserStatePersistence {
         try {
             File file = instructionTableFile(user);
             log.debug("Reading instruction table for user `{}' from `{}'", user, file);
-            FileInputStream in = new FileInputStream(file);
-            instructionTable = instructionTableIo.read(in);
+            instructionTable = instructionTableIo.read(file);
+            log.debug("Instruction table uses {} bytes of heap", instructionTable.footprint());
         } catch (FileNotFoundException e) {
             log.debug("No instruction table found for user `{}'", user);
             return null; // user doesn't exist
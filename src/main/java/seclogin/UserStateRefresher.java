@@ -0,0 +1,121 @@
+package seclogin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Refreshes the states of users after their logins succeed on an executor, and writes them, so that the
+ * outcome of a login can be reported as soon as it is known.
+ *
+ * Each user's refreshes run one at a time, in the order in which they were submitted; those of different
+ * users may run concurrently. A login {@link #await awaits} its user's refreshes before reading their state,
+ * so that it sees the refreshed state. Thread-safe.
+ */
+public class UserStateRefresher {
+
+    private static final Logger log = LoggerFactory.getLogger(UserStateRefresher.class);
+
+    private final Executor executor;
+    private final UserStatePersistence userStatePersistence;
+
+    /** The unfinished refreshes of each user that has any, in order; the first is running or about to. */
+    private final Map<User, Deque<FutureTask<Void>>> pending = new HashMap<User, Deque<FutureTask<Void>>>();
+
+    public UserStateRefresher(Executor executor, UserStatePersistence userStatePersistence) {
+        this.executor = checkNotNull(executor);
+        this.userStatePersistence = checkNotNull(userStatePersistence);
+    }
+
+    /** Runs the given refresh of the given user's state after their earlier refreshes, and writes its result. */
+    public void refresh(final User user, final Callable<UserState> refresh) {
+        checkNotNull(user);
+        checkNotNull(refresh);
+
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    UserState userState = refresh.call();
+                    log.debug("Writing refreshed state of user `{}'", user);
+                    userStatePersistence.write(userState);
+                    return null;
+                } catch (Exception e) {
+                    // the user's previous state remains in place
+                    log.warn("Could not refresh state of user `{}'", user, e);
+                    throw e;
+                }
+            }
+        });
+
+        boolean idle;
+        synchronized (this) {
+            Deque<FutureTask<Void>> refreshes = pending.get(user);
+            idle = refreshes == null;
+            if (idle) {
+                refreshes = new ArrayDeque<FutureTask<Void>>();
+                pending.put(user, refreshes);
+            }
+            refreshes.addLast(task);
+        }
+        if (idle) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(user);
+                }
+            });
+        }
+    }
+
+    /** Waits until every refresh of the given user submitted so far has finished (or failed). */
+    public void await(User user) {
+        FutureTask<Void> last;
+        synchronized (this) {
+            Deque<FutureTask<Void>> refreshes = pending.get(user);
+            if (refreshes == null) {
+                return;
+            }
+            last = refreshes.peekLast();
+        }
+
+        log.debug("Waiting for refreshes of user `{}'", user);
+        try {
+            last.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // already logged; the user's previous state remains in place
+        }
+    }
+
+    /** Runs the given user's refreshes until none are left, including those submitted meanwhile. */
+    private void drain(User user) {
+        while (true) {
+            FutureTask<Void> task;
+            synchronized (this) {
+                task = pending.get(user).peekFirst();
+            }
+            task.run();
+            synchronized (this) {
+                Deque<FutureTask<Void>> refreshes = pending.get(user);
+                refreshes.removeFirst();
+                if (refreshes.isEmpty()) {
+                    pending.remove(user);
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package seclogin.concurrent;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The pool of threads (one per processor) across which work is split, shared by everything that splits work,
+ * so that a login never starts more threads than that however many of its steps are split.
+ *
+ * Work is split by {@link #runChunks}: the calling thread runs the first chunk, and then runs any chunk that
+ * no pool thread has started yet before waiting for the others. So a chunk that itself splits its work (on a
+ * pool thread) cannot deadlock waiting for a pool that is busy with its siblings.
+ */
+public class SharedPool {
+
+    /** The number of processors, and of threads in the pool. */
+    public static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(PROCESSORS,
+            new ThreadFactoryBuilder().setNameFormat("seclogin-pool-%d").setDaemon(true).build());
+
+    private SharedPool() {}
+
+    /** Runs the given task on the pool. */
+    public static void execute(Runnable task) {
+        POOL.execute(checkNotNull(task));
+    }
+
+    /**
+     * Runs the given chunk over ''[0, n)'' split into (up to) the given number of contiguous parts, the first on
+     * the calling thread and the rest on the pool, and returns once all have run. The part that starts at 0
+     * is always the one run on the calling thread.
+     *
+     * @throws RuntimeException wrapping the cause if a part throws
+     */
+    public static void runChunks(int n, int chunks, final Chunk chunk) {
+        checkArgument(n >= 0 && chunks > 0);
+        checkNotNull(chunk);
+
+        chunks = Math.min(chunks, n);
+        if (chunks <= 1) {
+            chunk.run(0, n);
+            return;
+        }
+
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = (int) ((long) n * c / chunks);
+            final int to = (int) ((long) n * (c + 1) / chunks);
+            tasks.add(new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    chunk.run(from, to);
+                    return null;
+                }
+            }));
+        }
+        for (int c = 1; c < chunks; c++) {
+            POOL.execute(tasks.get(c));
+        }
+        try {
+            for (FutureTask<Void> task : tasks) {
+                // does nothing if a pool thread has already started this chunk
+                task.run();
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (FutureTask<Void> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /** Part of the work split by {@link #runChunks}. */
+    public interface Chunk {
+        /** Does the work of ''[from, to)''. */
+        void run(int from, int to);
+    }
+}
@@ -9,15 +9,11 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -30,6 +26,18 @@ public class Aes128Cbc implements BlockCipher {
     private static final int KEY_LEN = 128;
     private static final int KEY_LEN_IN_BYTE = KEY_LEN / Byte.SIZE;
 
+    private final KeyDerivation keyDerivation;
+
+    /** Constructs an {@link Aes128Cbc} that derives keys from salted passwords with {@link Pbkdf2#DEFAULT}. */
+    public Aes128Cbc() {
+        this(Pbkdf2.DEFAULT);
+    }
+
+    /** Constructs an {@link Aes128Cbc} that derives keys from salted passwords with the given key derivation. */
+    public Aes128Cbc(KeyDerivation keyDerivation) {
+        this.keyDerivation = checkNotNull(keyDerivation);
+    }
+
     @Override
     public SecretKey deriveKey(HardenedPassword hpwd) {
         checkNotNull(hpwd);
@@ -44,15 +52,7 @@ public class Aes128Cbc implements BlockCipher {
         checkArgument(salt.length > 0);
         checkNotNull(password);
 
-        try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            KeySpec spec = new PBEKeySpec(password.asCharArray(), salt, 65536, KEY_LEN);
-            return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
-        } catch (InvalidKeySpecException e) {
-            throw new RuntimeException(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return new SecretKeySpec(keyDerivation.deriveKey(salt, password, KEY_LEN_IN_BYTE), "AES");
     }
 
     @Override
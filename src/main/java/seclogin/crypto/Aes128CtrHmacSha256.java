@@ -0,0 +1,309 @@
+package seclogin.crypto;
+
+import seclogin.HardenedPassword;
+import seclogin.Password;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * AES-128-CTR with an HMAC-SHA256 tag (encrypt-then-MAC), an authenticated cipher.
+ *
+ * Ciphertext is laid out as ''magic || version || iv || AES-CTR(plaintext) || tag'', where the tag
+ * is the HMAC of everything before it. Decryption verifies the tag before doing anything else, so
+ * ciphertext under the wrong key is rejected without being decrypted or written anywhere; and it can
+ * decrypt into a caller-supplied buffer (even the ciphertext itself). Verifying is not allocation-free:
+ * the JCA hands out copies of the key, and takes the MAC key as a key spec of its own; and
+ * {@link #isAuthentic} uses a `Mac` and a tag buffer of its own, so that it is thread-safe.
+ *
+ * Keys hold 128 bits of AES key followed by 256 bits of HMAC key. Not thread-safe.
+ */
+public class Aes128CtrHmacSha256 implements BlockCipher {
+
+    /** The version of the ciphertext layout written by {@link #encrypt}. */
+    public static final byte VERSION = 1;
+
+    private static final byte[] MAGIC = { 'S', 'L', 'A', 'E' };
+    private static final int HEADER_LEN = MAGIC.length + 1;
+    private static final int IV_LEN = 16;
+    private static final int TAG_LEN = 32;
+    private static final int OVERHEAD = HEADER_LEN + IV_LEN + TAG_LEN;
+
+    /** The offset of the plaintext in the buffer of its ciphertext (see {@link #encryptInPlace}). */
+    public static final int PLAINTEXT_OFFSET = HEADER_LEN + IV_LEN;
+
+    private static final int ENC_KEY_LEN_IN_BYTES = 128 / Byte.SIZE;
+    private static final int MAC_KEY_LEN_IN_BYTES = 256 / Byte.SIZE;
+    private static final int KEY_LEN_IN_BYTES = ENC_KEY_LEN_IN_BYTES + MAC_KEY_LEN_IN_BYTES;
+    private static final String KEY_ALGORITHM = "AES-CTR-HmacSHA256";
+    private static final byte[] HKDF_INFO = "seclogin history file key".getBytes(Charset.forName("UTF-8"));
+
+    private final KeyDerivation keyDerivation;
+    private final Random random;
+
+    private final Cipher cipher;
+    private final Mac mac;
+    private final byte[] tag = new byte[TAG_LEN];
+
+    /**
+     * Constructs an {@link Aes128CtrHmacSha256} that derives keys from salted passwords with
+     * {@link Pbkdf2#DEFAULT} and draws IVs from a {@link SecureRandom}.
+     */
+    public Aes128CtrHmacSha256() {
+        this(Pbkdf2.DEFAULT, new SecureRandom());
+    }
+
+    /**
+     * Constructs an {@link Aes128CtrHmacSha256} that derives keys from salted passwords with the given
+     * key derivation and draws IVs from the given source of randomness.
+     */
+    public Aes128CtrHmacSha256(KeyDerivation keyDerivation, Random random) {
+        this.keyDerivation = checkNotNull(keyDerivation);
+        this.random = checkNotNull(random);
+
+        try {
+            cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            mac = Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Whether the given ciphertext claims to have been produced by this cipher (without verifying it). */
+    public static boolean isCiphertext(byte[] ciphertext) {
+        checkNotNull(ciphertext);
+
+        if (ciphertext.length < OVERHEAD) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (ciphertext[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the given ciphertext is authentic under the given key, which is checked without decrypting it.
+     * Unlike the rest of this cipher, thread-safe.
+     */
+    public static boolean isAuthentic(SecretKey key, byte[] ciphertext) {
+        checkNotNull(key);
+        checkNotNull(ciphertext);
+
+        if (!isCiphertext(ciphertext) || ciphertext[MAGIC.length] != VERSION) {
+            return false;
+        }
+        try {
+            return tagMatches(Mac.getInstance("HmacSHA256"), keyBytes(key), ciphertext, new byte[TAG_LEN]);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Returns the length of the plaintext of the given ciphertext. */
+    public static int plaintextLength(byte[] ciphertext) {
+        checkArgument(ciphertext.length >= OVERHEAD);
+
+        return ciphertext.length - OVERHEAD;
+    }
+
+    /** Returns the length of the ciphertext of a plaintext of the given length. */
+    public static int ciphertextLength(int plaintextLength) {
+        checkArgument(plaintextLength >= 0);
+
+        return plaintextLength + OVERHEAD;
+    }
+
+    @Override
+    public SecretKey deriveKey(HardenedPassword hpwd) {
+        checkNotNull(hpwd);
+
+        byte[] key = Hkdf.derive(new byte[0], hpwd.toByteArray(), HKDF_INFO, KEY_LEN_IN_BYTES);
+        return new SecretKeySpec(key, KEY_ALGORITHM);
+    }
+
+    @Override
+    public SecretKey deriveKey(byte[] salt, Password password) {
+        checkNotNull(salt);
+        checkArgument(salt.length > 0);
+        checkNotNull(password);
+
+        return new SecretKeySpec(keyDerivation.deriveKey(salt, password, KEY_LEN_IN_BYTES), KEY_ALGORITHM);
+    }
+
+    @Override
+    public byte[] encrypt(SecretKey key, byte[] plaintext) {
+        checkNotNull(key);
+        checkNotNull(plaintext);
+
+        byte[] ciphertext = new byte[ciphertextLength(plaintext.length)];
+        System.arraycopy(plaintext, 0, ciphertext, PLAINTEXT_OFFSET, plaintext.length);
+        encryptInPlace(key, ciphertext);
+        return ciphertext;
+    }
+
+    /**
+     * Encrypts the plaintext in `ciphertext`, which starts at {@link #PLAINTEXT_OFFSET} and is followed by room
+     * for the tag, in place, and fills in the rest of the ciphertext around it. So plaintext can be serialized
+     * straight into the buffer of its ciphertext, which is {@link #ciphertextLength} bytes long.
+     */
+    public void encryptInPlace(SecretKey key, byte[] ciphertext) {
+        checkNotNull(key);
+        checkNotNull(ciphertext);
+        checkArgument(ciphertext.length >= OVERHEAD);
+        byte[] keyBytes = keyBytes(key);
+
+        System.arraycopy(MAGIC, 0, ciphertext, 0, MAGIC.length);
+        ciphertext[MAGIC.length] = VERSION;
+        byte[] iv = new byte[IV_LEN];
+        random.nextBytes(iv);
+        System.arraycopy(iv, 0, ciphertext, HEADER_LEN, IV_LEN);
+
+        try {
+            initCipher(Cipher.ENCRYPT_MODE, keyBytes, ciphertext);
+            cipher.doFinal(ciphertext, PLAINTEXT_OFFSET, plaintextLength(ciphertext), ciphertext, PLAINTEXT_OFFSET);
+
+            initMac(mac, keyBytes);
+            mac.update(ciphertext, 0, ciphertext.length - TAG_LEN);
+            mac.doFinal(ciphertext, ciphertext.length - TAG_LEN);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalBlockSizeException e) {
+            throw new RuntimeException(e);
+        } catch (BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public byte[] decrypt(SecretKey key, byte[] ciphertext) throws IndecipherableException {
+        checkNotNull(key);
+        checkNotNull(ciphertext);
+
+        byte[] keyBytes = keyBytes(key);
+        try {
+            verify(keyBytes, ciphertext);
+            byte[] plaintext = new byte[plaintextLength(ciphertext)];
+            decryptVerified(keyBytes, ciphertext, plaintext, 0);
+            return plaintext;
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts the given ciphertext with the given key into `output` starting at `outputOffset`, which
+     * may overlap the ciphertext. Returns the length of the plaintext ({@link #plaintextLength}).
+     * Nothing is written to `output` unless the ciphertext is authentic.
+     *
+     * @throws IndecipherableException if the given ciphertext cannot be decrypted properly with the given key
+     */
+    public int decrypt(SecretKey key, byte[] ciphertext, byte[] output, int outputOffset)
+            throws IndecipherableException {
+        checkNotNull(key);
+        checkNotNull(ciphertext);
+        checkNotNull(output);
+
+        byte[] keyBytes = keyBytes(key);
+        try {
+            verify(keyBytes, ciphertext);
+            int len = plaintextLength(ciphertext);
+            checkArgument(outputOffset >= 0 && outputOffset + len <= output.length);
+            decryptVerified(keyBytes, ciphertext, output, outputOffset);
+            return len;
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    private void verify(byte[] keyBytes, byte[] ciphertext) throws IndecipherableException {
+        if (!isCiphertext(ciphertext)) {
+            throw new IndecipherableException("Not AES-CTR-HmacSHA256 ciphertext");
+        }
+        if (ciphertext[MAGIC.length] != VERSION) {
+            throw new IndecipherableException("Unsupported ciphertext version " + ciphertext[MAGIC.length]);
+        }
+
+        if (!tagMatches(mac, keyBytes, ciphertext, tag)) {
+            throw new IndecipherableException("Ciphertext is not authentic");
+        }
+    }
+
+    /** Whether the tag of the given ciphertext matches the one computed with `mac` into `tag`. */
+    private static boolean tagMatches(Mac mac, byte[] keyBytes, byte[] ciphertext, byte[] tag) {
+        int tagOffset = ciphertext.length - TAG_LEN;
+        initMac(mac, keyBytes);
+        mac.update(ciphertext, 0, tagOffset);
+        try {
+            mac.doFinal(tag, 0);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        }
+
+        // compare in constant time
+        int diff = 0;
+        for (int i = 0; i < TAG_LEN; i++) {
+            diff |= tag[i] ^ ciphertext[tagOffset + i];
+        }
+        return diff == 0;
+    }
+
+    private void decryptVerified(byte[] keyBytes, byte[] ciphertext, byte[] output, int outputOffset) {
+        try {
+            initCipher(Cipher.DECRYPT_MODE, keyBytes, ciphertext);
+            cipher.doFinal(ciphertext, HEADER_LEN + IV_LEN, plaintextLength(ciphertext), output, outputOffset);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalBlockSizeException e) {
+            throw new RuntimeException(e);
+        } catch (BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void initCipher(int mode, byte[] keyBytes, byte[] ciphertext) {
+        try {
+            cipher.init(mode, new SecretKeySpec(keyBytes, 0, ENC_KEY_LEN_IN_BYTES, "AES"),
+                    new IvParameterSpec(ciphertext, HEADER_LEN, IV_LEN));
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void initMac(Mac mac, byte[] keyBytes) {
+        try {
+            mac.init(new SecretKeySpec(keyBytes, ENC_KEY_LEN_IN_BYTES, MAC_KEY_LEN_IN_BYTES, "HmacSHA256"));
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] keyBytes(SecretKey key) {
+        byte[] keyBytes = key.getEncoded();
+        checkArgument(keyBytes.length == KEY_LEN_IN_BYTES, "Not an AES-CTR-HmacSHA256 key");
+        return keyBytes;
+    }
+}
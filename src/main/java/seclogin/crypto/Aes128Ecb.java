@@ -0,0 +1,75 @@
+package seclogin.crypto;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * AES-128 encryption of whole blocks (ECB, no padding) with a cipher that is initialized
+ * only once for its key.
+ *
+ * Encrypting a single block with {@link Aes128Cbc} (zero IV) is the same as encrypting that
+ * block padded with {@link #pad} here, so many such encryptions can be done in a single pass
+ * over a contiguous buffer. Not thread-safe.
+ */
+public class Aes128Ecb {
+
+    public static final int BLOCK_LEN = 16;
+
+    private final Cipher cipher;
+
+    public Aes128Ecb(SecretKey key) {
+        checkNotNull(key);
+
+        try {
+            cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Encrypts `len` bytes (a multiple of the block length) of `input` starting at `inputOffset`
+     * into `output` starting at `outputOffset`.
+     */
+    public void encryptBlocks(byte[] input, int inputOffset, int len, byte[] output, int outputOffset) {
+        checkArgument(len % BLOCK_LEN == 0);
+
+        try {
+            cipher.doFinal(input, inputOffset, len, output, outputOffset);
+        } catch (ShortBufferException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalBlockSizeException e) {
+            throw new RuntimeException(e);
+        } catch (BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the first `len` bytes of `message` into the block of `dest` starting at `offset`,
+     * followed by PKCS #5 padding up to the end of the block.
+     */
+    public static void pad(byte[] message, int len, byte[] dest, int offset) {
+        checkArgument(len < BLOCK_LEN);
+
+        System.arraycopy(message, 0, dest, offset, len);
+        byte padding = (byte) (BLOCK_LEN - len);
+        for (int i = len; i < BLOCK_LEN; i++) {
+            dest[offset + i] = padding;
+        }
+    }
+}
@@ -14,7 +14,7 @@ public interface BlockCipher {
     /** Derives a key for this cipher from the given hardened password. */
     SecretKey deriveKey(HardenedPassword hpwd);
 
-    /** Derived a key for this cipher from the given salt and password. */
+    /** Derives a key for this cipher from the given salt and password, using the cipher's key derivation. */
     SecretKey deriveKey(byte[] salt, Password password);
 
     /** Encrypts the given plaintext with the given key. */
@@ -0,0 +1,280 @@
+package seclogin.crypto;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static seclogin.crypto.Aes128Ecb.BLOCK_LEN;
+
+/**
+ * A deterministic random bit generator: AES-128 in counter mode, in the manner of NIST SP 800-90A's CTR_DRBG.
+ *
+ * Each thread draws from its own generator, seeded from the (typically synchronized) seed source the first
+ * time the thread draws and reseeded from it after every {@link #RESEED_INTERVAL} bytes, so concurrent threads
+ * do not contend. A generator encrypts its counter blocks into a buffer in a single pass, and after each refill
+ * replaces its key and counter with more of its output, so that earlier output cannot be recovered from its
+ * state. Thread-safe.
+ */
+public class CtrDrbg extends Random {
+
+    // Random is Serializable, but a generator's per-thread state is not, so neither is a CtrDrbg
+    private static final long serialVersionUID = 1L;
+
+    /** The number of bytes a generator outputs between reseeds. */
+    public static final int RESEED_INTERVAL = 1 << 20;
+
+    private static final int BUFFER_LEN = 16 * 1024;
+    private static final int SEED_LEN = 2 * BLOCK_LEN;
+
+    private final Random seedSource;
+    private final ThreadLocal<Generator> generators;
+
+    /** Constructs a {@link CtrDrbg} whose generators are seeded from the given source, such as a `SecureRandom`. */
+    public CtrDrbg(Random seedSource) {
+        this.seedSource = checkNotNull(seedSource);
+        this.generators = new ThreadLocal<Generator>() {
+            @Override
+            protected Generator initialValue() {
+                return new Generator();
+            }
+        };
+    }
+
+    /** Mixes the given seed into the calling thread's generator, along with fresh bytes from the seed source. */
+    @Override
+    public void setSeed(long seed) {
+        // called by Random's constructor, before this generator is ready
+        if (generators != null) {
+            generators.get().reseed(seed);
+        }
+    }
+
+    @Override
+    protected int next(int bits) {
+        return generators.get().nextInt() >>> (32 - bits);
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        generators.get().nextBytes(bytes);
+    }
+
+    /**
+     * Returns a uniformly random integer in ''[0, bound)'', sampled by rejection from raw bytes of
+     * the calling thread's buffer. Allocates only the result.
+     */
+    public BigInteger nextBigInteger(BigInteger bound) {
+        checkArgument(bound.signum() > 0);
+
+        return generators.get().nextBigInteger(bound);
+    }
+
+    /**
+     * The keystream of AES-128 in counter mode whose counter blocks are a nonce followed by a block counter
+     * from 0: a reproducible source of bytes, one independent stream per nonce under the same key. Sampled in
+     * the same way as a {@link CtrDrbg}, but not reseeded or rekeyed, and so not thread-safe.
+     */
+    public static class Keystream {
+
+        private static final int BUFFER_LEN = 4 * BLOCK_LEN;
+
+        private final Counter counter;
+
+        /** Constructs the stream of the given nonce under the key of the given cipher, which it then uses. */
+        public Keystream(Aes128Ecb aes, long nonce) {
+            this.counter = new Counter(checkNotNull(aes), nonce);
+        }
+
+        /** Fills the given array with the next bytes of the stream. */
+        public void nextBytes(byte[] bytes) {
+            counter.nextBytes(bytes);
+        }
+
+        /** Returns a uniformly random integer in ''[0, bound)'', as {@link CtrDrbg#nextBigInteger} does. */
+        public BigInteger nextBigInteger(BigInteger bound) {
+            checkArgument(bound.signum() > 0);
+
+            return counter.nextBigInteger(bound);
+        }
+
+        private static class Counter extends Output {
+
+            private final Aes128Ecb aes;
+            private final long nonce;
+            private long blocks;
+
+            Counter(Aes128Ecb aes, long nonce) {
+                super(BUFFER_LEN, 0);
+                this.aes = aes;
+                this.nonce = nonce;
+            }
+
+            @Override
+            void fill() {
+                ByteBuffer counterBlocks = ByteBuffer.wrap(buffer);
+                for (int offset = 0; offset < BUFFER_LEN; offset += BLOCK_LEN) {
+                    counterBlocks.putLong(nonce).putLong(blocks++);
+                }
+                aes.encryptBlocks(buffer, 0, BUFFER_LEN, buffer, 0);
+            }
+        }
+    }
+
+    /**
+     * Output encrypted into a buffer, of which the first `usable` bytes are drawn from and refilled once
+     * used up; any bytes after them are for the subclass's own use.
+     */
+    private abstract static class Output {
+
+        final byte[] buffer;
+        final int usable;
+        /** The next unused byte of the buffer. */
+        int position;
+
+        /** Scratch for the magnitude of the bound of {@link #nextBigInteger}. */
+        private byte[] boundBytes = new byte[0];
+        private BigInteger bound;
+
+        Output(int usable, int extra) {
+            this.buffer = new byte[usable + extra];
+            this.usable = usable;
+            this.position = usable;
+        }
+
+        /** Fills the first {@link #usable} bytes of the buffer with fresh output. */
+        abstract void fill();
+
+        int nextInt() {
+            ensure(4);
+            int p = position;
+            position += 4;
+            return (buffer[p] << 24) | ((buffer[p + 1] & 0xff) << 16) | ((buffer[p + 2] & 0xff) << 8)
+                    | (buffer[p + 3] & 0xff);
+        }
+
+        void nextBytes(byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (position == usable) {
+                    ensure(1);
+                }
+                int len = Math.min(bytes.length - offset, usable - position);
+                System.arraycopy(buffer, position, bytes, offset, len);
+                position += len;
+                offset += len;
+            }
+        }
+
+        BigInteger nextBigInteger(BigInteger bound) {
+            if (!bound.equals(this.bound)) {
+                byte[] magnitude = bound.toByteArray();
+                // drop the sign byte, if any
+                boundBytes = magnitude[0] == 0 ? Arrays.copyOfRange(magnitude, 1, magnitude.length) : magnitude;
+                this.bound = bound;
+            }
+            int len = boundBytes.length;
+            checkArgument(len <= usable);
+            int topBits = bound.bitLength() - Byte.SIZE * (len - 1);
+            int topMask = (1 << topBits) - 1;
+
+            while (true) {
+                ensure(len);
+                int p = position;
+                position += len;
+                buffer[p] &= topMask;
+                if (lessThanBound(p, len)) {
+                    return new BigInteger(1, Arrays.copyOfRange(buffer, p, p + len));
+                }
+            }
+        }
+
+        private boolean lessThanBound(int p, int len) {
+            for (int k = 0; k < len; k++) {
+                int a = buffer[p + k] & 0xff;
+                int b = boundBytes[k] & 0xff;
+                if (a != b) {
+                    return a < b;
+                }
+            }
+            return false;
+        }
+
+        /** Ensures that the buffer holds at least `len` unused bytes. */
+        private void ensure(int len) {
+            if (usable - position >= len) {
+                return;
+            }
+            fill();
+            position = 0;
+        }
+    }
+
+    private class Generator extends Output {
+
+        private Aes128Ecb aes;
+        private final byte[] counter = new byte[BLOCK_LEN];
+        private int bytesSinceReseed;
+
+        Generator() {
+            // the buffer is followed by the next key and counter
+            super(BUFFER_LEN, SEED_LEN);
+            byte[] seed = new byte[SEED_LEN];
+            seedSource.nextBytes(seed);
+            rekey(seed, 0);
+        }
+
+        void reseed(long extra) {
+            byte[] seed = new byte[SEED_LEN];
+            seedSource.nextBytes(seed);
+            for (int k = 0; k < Long.SIZE / Byte.SIZE; k++) {
+                seed[k] ^= (byte) (extra >>> (Byte.SIZE * k));
+            }
+            // the new key and counter depend on both the old state and the seed
+            refill();
+            for (int k = 0; k < SEED_LEN; k++) {
+                seed[k] ^= buffer[BUFFER_LEN + k];
+            }
+            rekey(seed, 0);
+            position = BUFFER_LEN;
+            bytesSinceReseed = 0;
+        }
+
+        @Override
+        void fill() {
+            if (bytesSinceReseed >= RESEED_INTERVAL) {
+                reseed(0);
+            }
+            refill();
+            rekey(buffer, BUFFER_LEN);
+            bytesSinceReseed += BUFFER_LEN;
+        }
+
+        /** Encrypts the next counter blocks into the whole buffer, including its trailing seed. */
+        private void refill() {
+            for (int offset = 0; offset < buffer.length; offset += BLOCK_LEN) {
+                increment(counter);
+                System.arraycopy(counter, 0, buffer, offset, BLOCK_LEN);
+            }
+            aes.encryptBlocks(buffer, 0, buffer.length, buffer, 0);
+        }
+
+        /** Takes the key and counter from the {@link #SEED_LEN} bytes of `seed` starting at `offset`. */
+        private void rekey(byte[] seed, int offset) {
+            aes = new Aes128Ecb(new SecretKeySpec(seed, offset, BLOCK_LEN, "AES"));
+            System.arraycopy(seed, offset + BLOCK_LEN, counter, 0, BLOCK_LEN);
+            Arrays.fill(seed, offset, offset + SEED_LEN, (byte) 0);
+        }
+
+        private void increment(byte[] block) {
+            for (int k = block.length - 1; k >= 0; k--) {
+                if (++block[k] != 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package seclogin.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * HKDF-SHA256 (RFC 5869): a cheap derivation of keys from key material that is already
+ * uniformly random, such as the output of an expensive {@link KeyDerivation}.
+ */
+public class Hkdf {
+
+    private static final String HMAC = "HmacSHA256";
+    private static final int HASH_LEN = 32;
+
+    private Hkdf() {}
+
+    /** Derives `keyLenInBytes` bytes of key material from `ikm`, salted with `salt` and bound to `info`. */
+    public static byte[] derive(byte[] salt, byte[] ikm, byte[] info, int keyLenInBytes) {
+        return expand(extract(salt, ikm), info, keyLenInBytes);
+    }
+
+    /** Returns the pseudorandom key ''PRK = HMAC(salt, ikm)''. */
+    public static byte[] extract(byte[] salt, byte[] ikm) {
+        checkNotNull(salt);
+        checkNotNull(ikm);
+
+        return hmac(salt.length == 0 ? new byte[HASH_LEN] : salt).doFinal(ikm);
+    }
+
+    /** Expands the pseudorandom key `prk` into `keyLenInBytes` bytes of key material bound to `info`. */
+    public static byte[] expand(byte[] prk, byte[] info, int keyLenInBytes) {
+        checkNotNull(prk);
+        checkNotNull(info);
+        checkArgument(keyLenInBytes > 0 && keyLenInBytes <= 255 * HASH_LEN);
+
+        Mac mac = hmac(prk);
+        byte[] okm = new byte[keyLenInBytes];
+        byte[] t = new byte[0];
+        for (int i = 1, offset = 0; offset < keyLenInBytes; i++, offset += HASH_LEN) {
+            mac.update(t);
+            mac.update(info);
+            mac.update((byte) i);
+            t = mac.doFinal();
+            System.arraycopy(t, 0, okm, offset, Math.min(HASH_LEN, keyLenInBytes - offset));
+        }
+        return okm;
+    }
+
+    private static Mac hmac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+            return mac;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
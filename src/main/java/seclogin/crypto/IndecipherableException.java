@@ -3,6 +3,10 @@ package seclogin.crypto;
 /** Thrown to indicate ciphertext that cannot be decrypted properly. */
 public class IndecipherableException extends Exception {
 
+    public IndecipherableException(String message) {
+        super(message);
+    }
+
     public IndecipherableException(Throwable cause) {
         super(cause);
     }
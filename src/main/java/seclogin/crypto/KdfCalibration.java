@@ -0,0 +1,125 @@
+package seclogin.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import seclogin.Password;
+import seclogin.SecurityParameters;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Benchmarks {@link Pbkdf2} on this host to find the largest iteration count whose
+ * 99th-percentile latency fits within a budget. Only counts whose 99th percentile was measured to fit
+ * are chosen; failing that, {@link #MIN_ITERATIONS}.
+ */
+public class KdfCalibration {
+
+    private static final Logger log = LoggerFactory.getLogger(KdfCalibration.class);
+
+    /** The fewest iterations that will ever be chosen, regardless of the budget (per NIST SP 800-132). */
+    public static final int MIN_ITERATIONS = 1000;
+
+    /** The number of timed derivations from which each 99th percentile is estimated. */
+    public static final int DEFAULT_SAMPLES = 50;
+
+    private static final int MAX_ROUNDS = 5;
+    private static final double HEADROOM = 0.9;
+
+    private final Pbkdf2.Prf prf;
+    private final long budgetNanos;
+    private final int samples;
+
+    private final byte[] salt = new byte[SecurityParameters.R_LEN / Byte.SIZE];
+    private final Password password = new Password("calibration");
+
+    public KdfCalibration(Pbkdf2.Prf prf, long budgetMillis) {
+        this(prf, budgetMillis, DEFAULT_SAMPLES);
+    }
+
+    /**
+     * @param prf the PBKDF2 PRF to calibrate
+     * @param budgetMillis the 99th-percentile latency budget of a single key derivation
+     * @param samples the number of timed derivations from which each 99th percentile is estimated
+     */
+    public KdfCalibration(Pbkdf2.Prf prf, long budgetMillis, int samples) {
+        checkNotNull(prf);
+        checkArgument(budgetMillis > 0);
+        checkArgument(samples > 0);
+
+        this.prf = prf;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.samples = samples;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /** Returns the key derivation with the most iterations that fits within the budget on this host. */
+    public Pbkdf2 calibrate() {
+        // find an iteration count that takes long enough to time accurately (this also warms up the JIT)
+        int iterations = MIN_ITERATIONS;
+        long elapsed = time(new Pbkdf2(prf, iterations));
+        while (elapsed < budgetNanos / 10 && iterations <= Integer.MAX_VALUE / 2) {
+            iterations *= 2;
+            elapsed = time(new Pbkdf2(prf, iterations));
+        }
+        iterations = scale(iterations, elapsed);
+        log.debug("Estimated {} iterations from a single derivation", iterations);
+
+        // only a count whose 99th percentile was measured within the budget is chosen
+        int fitting = 0;
+        for (int round = 0; round < MAX_ROUNDS && iterations > MIN_ITERATIONS; round++) {
+            long p99 = p99(new Pbkdf2(prf, iterations));
+            log.debug("{} iterations took {} ns at the 99th percentile", iterations, p99);
+            if (p99 <= budgetNanos) {
+                fitting = iterations;
+                break;
+            }
+            iterations = scale(iterations, p99);
+        }
+
+        if (fitting == 0) {
+            if (iterations <= MIN_ITERATIONS) {
+                log.warn("Latency budget is too small; using the minimum of {} iterations", MIN_ITERATIONS);
+            } else {
+                log.warn("No iteration count fit within the latency budget after {} rounds; using the minimum of {}",
+                        MAX_ROUNDS, MIN_ITERATIONS);
+            }
+            fitting = MIN_ITERATIONS;
+        }
+        return new Pbkdf2(prf, fitting);
+    }
+
+    /** Scales the given iteration count, which took `elapsedNanos`, to fit within the budget. */
+    private int scale(int iterations, long elapsedNanos) {
+        double scaled = iterations * HEADROOM * budgetNanos / Math.max(elapsedNanos, 1);
+        return (int) Math.min(scaled, Integer.MAX_VALUE);
+    }
+
+    private long p99(KeyDerivation keyDerivation) {
+        long[] latencies = new long[samples];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = time(keyDerivation);
+        }
+        return percentile(latencies, 0.99);
+    }
+
+    private long time(KeyDerivation keyDerivation) {
+        long start = System.nanoTime();
+        keyDerivation.deriveKey(salt, password, 128 / Byte.SIZE);
+        return System.nanoTime() - start;
+    }
+
+    /** Returns the nearest-rank `p`-th percentile of the given values. Sorts the values. */
+    static long percentile(long[] values, double p) {
+        checkArgument(values.length > 0);
+        checkArgument(p > 0 && p <= 1);
+
+        Arrays.sort(values);
+        int rank = (int) Math.ceil(p * values.length);
+        return values[rank - 1];
+    }
+}
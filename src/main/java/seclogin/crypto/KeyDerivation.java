@@ -0,0 +1,14 @@
+package seclogin.crypto;
+
+import seclogin.Password;
+
+/**
+ * An expensive, salted derivation of key material from a regular password.
+ * Implementations are immutable values so that they can be recorded alongside
+ * whatever they were used to protect.
+ */
+public interface KeyDerivation {
+
+    /** Derives `keyLenInBytes` bytes of key material from the given salt and password. */
+    byte[] deriveKey(byte[] salt, Password password, int keyLenInBytes);
+}
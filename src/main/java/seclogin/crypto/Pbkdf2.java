@@ -0,0 +1,168 @@
+package seclogin.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import seclogin.Password;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * PBKDF2 (PKCS #5 v2.0) with a configurable HMAC and iteration count. HMAC-SHA1 is computed by
+ * {@link Pbkdf2HmacSha1} where that is faster than the JCA (see {@link #inHouseHmacSha1});
+ * everything else uses the JCA's implementation.
+ */
+public class Pbkdf2 implements KeyDerivation {
+
+    private static final Logger log = LoggerFactory.getLogger(Pbkdf2.class);
+
+    /** The system property that selects how HMAC-SHA1 is computed: `jca` or `inhouse`. */
+    public static final String HMAC_SHA1_ENGINE_PROPERTY = "seclogin.pbkdf2.hmacSha1";
+
+    /** The number of iterations of each derivation that measures the HMAC-SHA1 engines. */
+    private static final int MEASUREMENT_ITERATIONS = 4096;
+
+    /** The pseudo-random function underlying PBKDF2. */
+    public enum Prf {
+        HMAC_SHA1("HmacSHA1"),
+        HMAC_SHA256("HmacSHA256"),
+        HMAC_SHA512("HmacSHA512");
+
+        /** The JCA name of the HMAC, which is also how this PRF is named in configuration and persisted state. */
+        public final String macAlgorithm;
+
+        Prf(String macAlgorithm) {
+            this.macAlgorithm = macAlgorithm;
+        }
+
+        public static Prf forMacAlgorithm(String macAlgorithm) {
+            for (Prf prf : values()) {
+                if (prf.macAlgorithm.equalsIgnoreCase(macAlgorithm)) {
+                    return prf;
+                }
+            }
+            throw new IllegalArgumentException("Unknown PBKDF2 PRF " + macAlgorithm);
+        }
+    }
+
+    /** The key derivation used by instruction tables that predate configurable key derivation. */
+    public static final Pbkdf2 DEFAULT = new Pbkdf2(Prf.HMAC_SHA1, 65536);
+
+    public final Prf prf;
+    public final int iterations;
+
+    public Pbkdf2(Prf prf, int iterations) {
+        checkNotNull(prf);
+        checkArgument(iterations > 0);
+
+        this.prf = prf;
+        this.iterations = iterations;
+    }
+
+    @Override
+    public byte[] deriveKey(byte[] salt, Password password, int keyLenInBytes) {
+        checkNotNull(salt);
+        checkArgument(salt.length > 0);
+        checkNotNull(password);
+
+        if (prf == Prf.HMAC_SHA1 && inHouseHmacSha1()) {
+            return new Pbkdf2HmacSha1(password.asCharArray()).deriveKey(salt, iterations, keyLenInBytes);
+        }
+        return deriveKeyWithJca(salt, password, keyLenInBytes);
+    }
+
+    /** Derives the key with the JCA's implementation of this PBKDF2. */
+    byte[] deriveKeyWithJca(byte[] salt, Password password, int keyLenInBytes) {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2With" + prf.macAlgorithm);
+            KeySpec spec = new PBEKeySpec(password.asCharArray(), salt, iterations, keyLenInBytes * Byte.SIZE);
+            return factory.generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Whether HMAC-SHA1 is computed by {@link Pbkdf2HmacSha1}: as the {@link #HMAC_SHA1_ENGINE_PROPERTY}
+     * selects, or else whichever engine derives a key faster on this JVM, measured once. The JCA computes SHA-1
+     * with CPU intrinsics where they are available (from Java 9 on), which beat the in-house engine; elsewhere,
+     * the in-house engine is about twice as fast (see Pbkdf2Benchmark).
+     */
+    static boolean inHouseHmacSha1() {
+        return HmacSha1Engine.IN_HOUSE;
+    }
+
+    /** Holds the choice of HMAC-SHA1 engine, which is made the first time it is needed. */
+    private static class HmacSha1Engine {
+        static final boolean IN_HOUSE = chooseInHouseHmacSha1(System.getProperty(HMAC_SHA1_ENGINE_PROPERTY));
+    }
+
+    /** Whether the given HMAC-SHA1 engine (if any) is the in-house one, measuring the engines if none is. */
+    static boolean chooseInHouseHmacSha1(String engine) {
+        if ("inhouse".equalsIgnoreCase(engine)) {
+            return true;
+        }
+        if ("jca".equalsIgnoreCase(engine)) {
+            return false;
+        }
+        if (engine != null) {
+            log.warn("Ignoring {}={}, which must be jca or inhouse", HMAC_SHA1_ENGINE_PROPERTY, engine);
+        }
+        return measureInHouseHmacSha1();
+    }
+
+    /** Whether the in-house HMAC-SHA1 engine is faster than the JCA's, by the best of a few derivations with each. */
+    static boolean measureInHouseHmacSha1() {
+        Password password = new Password("seclogin");
+        byte[] salt = new byte[20];
+        Pbkdf2 kdf = new Pbkdf2(Prf.HMAC_SHA1, MEASUREMENT_ITERATIONS);
+        long jcaNanos = Long.MAX_VALUE;
+        long inHouseNanos = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            kdf.deriveKeyWithJca(salt, password, 16);
+            jcaNanos = Math.min(jcaNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            new Pbkdf2HmacSha1(password.asCharArray()).deriveKey(salt, MEASUREMENT_ITERATIONS, 16);
+            inHouseNanos = Math.min(inHouseNanos, System.nanoTime() - start);
+        }
+        boolean inHouse = inHouseNanos < jcaNanos;
+        log.debug("HMAC-SHA1: JCA {} us, in-house {} us; using {}",
+                jcaNanos / 1000, inHouseNanos / 1000, inHouse ? "in-house" : "JCA");
+        return inHouse;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Pbkdf2 that = (Pbkdf2) o;
+
+        if (iterations != that.iterations) return false;
+        if (prf != that.prf) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = prf.hashCode();
+        result = 31 * result + iterations;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PBKDF2-" + prf.macAlgorithm + "(" + iterations + ")";
+    }
+}
@@ -0,0 +1,183 @@
+package seclogin.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * PBKDF2-HMAC-SHA1 for a single password, producing the same output as the JCA's
+ * `PBKDF2WithHmacSHA1` (which encodes the password as UTF-8).
+ *
+ * The SHA-1 states after absorbing the HMAC inner and outer pads are computed once for the
+ * password. Every iteration after the first then costs exactly two SHA-1 compressions over
+ * preallocated int arrays, with no allocation. Not thread-safe.
+ */
+class Pbkdf2HmacSha1 {
+
+    private static final int DIGEST_LEN = 20;
+    private static final int BLOCK_LEN = 64;
+    private static final int DIGEST_WORDS = DIGEST_LEN / 4;
+
+    private static final int[] IV = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int[] innerState = new int[DIGEST_WORDS];
+    private final int[] outerState = new int[DIGEST_WORDS];
+
+    private final int[] w = new int[80];
+    private final int[] u = new int[DIGEST_WORDS];
+    private final int[] t = new int[DIGEST_WORDS];
+    private final int[] inner = new int[DIGEST_WORDS];
+
+    Pbkdf2HmacSha1(char[] password) {
+        checkNotNull(password);
+
+        ByteBuffer encoded = UTF_8.encode(CharBuffer.wrap(password));
+        byte[] key = new byte[encoded.remaining()];
+        encoded.get(key);
+        if (key.length > BLOCK_LEN) {
+            key = sha1(key);
+        }
+
+        byte[] pad = new byte[BLOCK_LEN];
+        for (int i = 0; i < BLOCK_LEN; i++) {
+            pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x36);
+        }
+        loadBlock(pad, 0);
+        compress(IV, innerState);
+
+        for (int i = 0; i < BLOCK_LEN; i++) {
+            pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x5c);
+        }
+        loadBlock(pad, 0);
+        compress(IV, outerState);
+    }
+
+    /** Derives `keyLenInBytes` bytes of key material from the given salt. */
+    byte[] deriveKey(byte[] salt, int iterations, int keyLenInBytes) {
+        checkNotNull(salt);
+        checkArgument(iterations > 0);
+        checkArgument(keyLenInBytes > 0);
+
+        byte[] key = new byte[keyLenInBytes];
+        byte[] message = new byte[salt.length + 4];
+        System.arraycopy(salt, 0, message, 0, salt.length);
+
+        for (int block = 1, offset = 0; offset < keyLenInBytes; block++, offset += DIGEST_LEN) {
+            message[salt.length] = (byte) (block >>> 24);
+            message[salt.length + 1] = (byte) (block >>> 16);
+            message[salt.length + 2] = (byte) (block >>> 8);
+            message[salt.length + 3] = (byte) block;
+
+            // U_1 = HMAC(password, salt || INT(block))
+            hmacInner(message);
+            padDigestBlock();
+            hmacOuter();
+            System.arraycopy(u, 0, t, 0, DIGEST_WORDS);
+
+            // U_j = HMAC(password, U_{j-1}); both compressions see a single block whose padding
+            // (w[5..15]) never changes, since compression only writes w[16..79]
+            for (int j = 1; j < iterations; j++) {
+                System.arraycopy(u, 0, w, 0, DIGEST_WORDS);
+                compress(innerState, inner);
+                hmacOuter();
+                for (int k = 0; k < DIGEST_WORDS; k++) {
+                    t[k] ^= u[k];
+                }
+            }
+
+            for (int k = 0; k < DIGEST_LEN && offset + k < keyLenInBytes; k++) {
+                key[offset + k] = (byte) (t[k / 4] >>> (24 - 8 * (k % 4)));
+            }
+        }
+        return key;
+    }
+
+    /** Computes the inner hash of HMAC over an arbitrary message into `inner`. */
+    private void hmacInner(byte[] message) {
+        long bitLen = (long) (BLOCK_LEN + message.length) * Byte.SIZE;
+        int paddedLen = ((message.length + 8) / BLOCK_LEN + 1) * BLOCK_LEN;
+        byte[] padded = new byte[paddedLen];
+        System.arraycopy(message, 0, padded, 0, message.length);
+        padded[message.length] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            padded[paddedLen - 1 - i] = (byte) (bitLen >>> (8 * i));
+        }
+
+        System.arraycopy(innerState, 0, inner, 0, DIGEST_WORDS);
+        for (int offset = 0; offset < paddedLen; offset += BLOCK_LEN) {
+            loadBlock(padded, offset);
+            compress(inner, inner);
+        }
+    }
+
+    /** Computes the outer hash of HMAC over the inner hash into `u`. Expects `w[5..15]` to hold the padding. */
+    private void hmacOuter() {
+        System.arraycopy(inner, 0, w, 0, DIGEST_WORDS);
+        compress(outerState, u);
+    }
+
+    /** Fills `w[5..15]` with the padding of a digest-sized message that follows one pad block. */
+    private void padDigestBlock() {
+        w[DIGEST_WORDS] = 0x80000000;
+        for (int i = DIGEST_WORDS + 1; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = (BLOCK_LEN + DIGEST_LEN) * Byte.SIZE;
+    }
+
+    private void loadBlock(byte[] bytes, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int p = offset + 4 * i;
+            w[i] = (bytes[p] << 24) | ((bytes[p + 1] & 0xff) << 16) | ((bytes[p + 2] & 0xff) << 8) | (bytes[p + 3] & 0xff);
+        }
+    }
+
+    /**
+     * The SHA-1 compression function applied to the block in `w[0..15]`, starting from `state`.
+     * Stores the resulting state in `out`, which may be `state`.
+     */
+    private void compress(int[] state, int[] out) {
+        for (int i = 16; i < 80; i++) {
+            w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+        }
+
+        int a = state[0], b = state[1], c = state[2], d = state[3], e = state[4];
+        for (int i = 0; i < 20; i++) {
+            int temp = Integer.rotateLeft(a, 5) + ((b & c) | (~b & d)) + e + 0x5A827999 + w[i];
+            e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = temp;
+        }
+        for (int i = 20; i < 40; i++) {
+            int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0x6ED9EBA1 + w[i];
+            e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = temp;
+        }
+        for (int i = 40; i < 60; i++) {
+            int temp = Integer.rotateLeft(a, 5) + ((b & c) | (b & d) | (c & d)) + e + 0x8F1BBCDC + w[i];
+            e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = temp;
+        }
+        for (int i = 60; i < 80; i++) {
+            int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + e + 0xCA62C1D6 + w[i];
+            e = d; d = c; c = Integer.rotateLeft(b, 30); b = a; a = temp;
+        }
+
+        out[0] = state[0] + a;
+        out[1] = state[1] + b;
+        out[2] = state[2] + c;
+        out[3] = state[3] + d;
+        out[4] = state[4] + e;
+    }
+
+    private static byte[] sha1(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package seclogin.crypto;
+
+import seclogin.Password;
+import seclogin.concurrent.SharedPool;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * scrypt (RFC 7914), a memory-hard key derivation: each of its ''p'' lanes fills and then randomly
+ * reads ''128 * r * N'' bytes of memory, so that its cost cannot be cut by throwing cores at it.
+ *
+ * The lanes are independent, so a single derivation runs them on a shared pool of threads (one per
+ * processor) as well as on the calling thread, and reaches its cost with lower latency on multi-core hosts.
+ */
+public class Scrypt implements KeyDerivation {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The CPU/memory cost ''N'': the number of blocks each lane fills. A power of 2. */
+    public final int cost;
+    /** The block size ''r'', in units of 128 bytes. */
+    public final int blockSize;
+    /** The parallelization ''p'': the number of lanes. */
+    public final int parallelism;
+
+    public Scrypt(int cost, int blockSize, int parallelism) {
+        checkArgument(cost > 1 && (cost & (cost - 1)) == 0, "cost must be a power of 2 greater than 1");
+        checkArgument(blockSize > 0);
+        checkArgument(parallelism > 0);
+        checkArgument((long) cost * blockSize * 32 <= Integer.MAX_VALUE, "cost * blockSize is too large");
+        checkArgument((long) parallelism * blockSize * 128 <= Integer.MAX_VALUE, "parallelism * blockSize is too large");
+
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    /** The number of bytes of memory each lane uses. */
+    public long memoryPerLane() {
+        return 128L * blockSize * cost;
+    }
+
+    @Override
+    public byte[] deriveKey(byte[] salt, Password password, int keyLenInBytes) {
+        checkNotNull(salt);
+        checkArgument(salt.length > 0);
+        checkNotNull(password);
+        checkArgument(keyLenInBytes > 0);
+
+        Mac hmac = hmacSha256(utf8(password.asCharArray()));
+        final int laneLen = 128 * blockSize;
+        final byte[] b = pbkdf2HmacSha256(hmac, salt, parallelism * laneLen);
+
+        SharedPool.runChunks(parallelism, parallelism, new SharedPool.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    smix(b, i * laneLen);
+                }
+            }
+        });
+
+        return pbkdf2HmacSha256(hmac, b, keyLenInBytes);
+    }
+
+    /** Mixes the lane of `b` starting at `offset` in place (scryptROMix). */
+    private void smix(byte[] b, int offset) {
+        int blockWords = 32 * blockSize;
+        int[] x = new int[blockWords];
+        int[] y = new int[blockWords];
+        int[] v = new int[blockWords * cost];
+        int[] t = new int[16];
+
+        for (int k = 0; k < blockWords; k++) {
+            x[k] = littleEndianInt(b, offset + 4 * k);
+        }
+
+        for (int i = 0; i < cost; i++) {
+            System.arraycopy(x, 0, v, i * blockWords, blockWords);
+            blockMix(x, y, t);
+            int[] swap = x; x = y; y = swap;
+        }
+
+        int mask = cost - 1;
+        for (int i = 0; i < cost; i++) {
+            int j = x[(2 * blockSize - 1) * 16] & mask;
+            int vOffset = j * blockWords;
+            for (int k = 0; k < blockWords; k++) {
+                x[k] ^= v[vOffset + k];
+            }
+            blockMix(x, y, t);
+            int[] swap = x; x = y; y = swap;
+        }
+
+        for (int k = 0; k < blockWords; k++) {
+            int p = offset + 4 * k;
+            b[p] = (byte) x[k];
+            b[p + 1] = (byte) (x[k] >>> 8);
+            b[p + 2] = (byte) (x[k] >>> 16);
+            b[p + 3] = (byte) (x[k] >>> 24);
+        }
+    }
+
+    /** scryptBlockMix of `in` into `out`, using `t` as the 16-word Salsa20/8 state. */
+    private void blockMix(int[] in, int[] out, int[] t) {
+        System.arraycopy(in, (2 * blockSize - 1) * 16, t, 0, 16);
+        for (int i = 0; i < 2 * blockSize; i++) {
+            for (int k = 0; k < 16; k++) {
+                t[k] ^= in[i * 16 + k];
+            }
+            salsa20_8(t);
+            // even blocks go to the first half of the output, odd blocks to the second
+            System.arraycopy(t, 0, out, ((i >> 1) + (i & 1) * blockSize) * 16, 16);
+        }
+    }
+
+    private static void salsa20_8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        for (int i = 0; i < 8; i += 2) {
+            // columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);   x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);  x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);    x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);  x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);  x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);  x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);  x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);  x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);    x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);   x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);    x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);   x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);  x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);  x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+    private static int littleEndianInt(byte[] bytes, int p) {
+        return (bytes[p] & 0xff) | ((bytes[p + 1] & 0xff) << 8) | ((bytes[p + 2] & 0xff) << 16) | (bytes[p + 3] << 24);
+    }
+
+    /** PBKDF2-HMAC-SHA256 with a single iteration, which is all scrypt needs. */
+    private static byte[] pbkdf2HmacSha256(Mac hmac, byte[] salt, int keyLenInBytes) {
+        int hashLen = hmac.getMacLength();
+        byte[] key = new byte[keyLenInBytes];
+        for (int block = 1, offset = 0; offset < keyLenInBytes; block++, offset += hashLen) {
+            hmac.update(salt);
+            hmac.update(new byte[]{ (byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block });
+            byte[] u = hmac.doFinal();
+            System.arraycopy(u, 0, key, offset, Math.min(hashLen, keyLenInBytes - offset));
+        }
+        return key;
+    }
+
+    private static Mac hmacSha256(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            // HMAC pads its key with zeros, so an empty key is the same as a single zero byte
+            mac.init(new SecretKeySpec(key.length == 0 ? new byte[1] : key, "HmacSHA256"));
+            return mac;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] utf8(char[] chars) {
+        ByteBuffer encoded = UTF_8.encode(CharBuffer.wrap(chars));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Scrypt that = (Scrypt) o;
+
+        if (cost != that.cost) return false;
+        if (blockSize != that.blockSize) return false;
+        if (parallelism != that.parallelism) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = cost;
+        result = 31 * result + blockSize;
+        result = 31 * result + parallelism;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "scrypt(N=" + cost + ", r=" + blockSize + ", p=" + parallelism + ")";
+    }
+}
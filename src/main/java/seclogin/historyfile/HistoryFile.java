@@ -3,7 +3,6 @@ package seclogin.historyfile;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import seclogin.MeasurementStats;
@@ -12,12 +11,22 @@ import seclogin.User;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A history file for a particular user that contains measurements (responses to questions)
  * from a fixed number of previously successful login attempts.
+ *
+ * The measurements are held in a ring buffer: a single column-major array, in which each feature's
+ * measurements are contiguous, and `head`, the slot of the most recent login's. Adding a login's
+ * measurements overwrites the least recent in place. Not thread-safe.
+ *
+ * Each feature's count, mean and sum of squared deviations from the mean of its measurements (missing ones
+ * aside) are kept up to date as measurements are added and evicted (after Welford), so that
+ * {@link #calculateStats} costs ''O(features)'' however many logins the file holds. Should they stop being
+ * finite, such as while an infinite measurement is in the file, they are recalculated from the measurements.
  */
 public class HistoryFile {
 
@@ -25,17 +34,49 @@ public class HistoryFile {
 
     static final HashFunction USER_HASH_FN = Hashing.sha256();
 
+    /** The number of slots of running stats (see {@link #runningStat}) of each feature. */
+    static final int RUNNING_STATS_PER_FEATURE = 2;
+
     final byte[] userHash;
-    final double[][] measurements;
 
-    HistoryFile(byte[] userHash, double[][] measurements) {
+    private final int maxNrOfMeasurements;
+    private final int nrOfFeatures;
+    /** Slot ''s'' of feature ''i'' is `columns[i * maxNrOfMeasurements + s]`. */
+    private final double[] columns;
+    /** The slot of the most recent measurements; the ''j''-th most recent are in slot ''(head + j) mod max''. */
+    private int head;
+    /** The number of measurements of each feature, missing ones aside. */
+    private final int[] counts;
+    /** Slots ''2i'' and ''2i + 1'' hold the mean of the measurements of feature ''i'' and their ''M,,2,,''. */
+    private final double[] runningStats;
+
+    /**
+     * A history file in which all measurements are 0, to be filled in with {@link #setColumns} or
+     * {@link #setRows} and then {@link #setRunningStats} or {@link #recalculateRunningStats}.
+     */
+    HistoryFile(byte[] userHash, int maxNrOfMeasurements, int nrOfFeatures) {
         checkNotNull(userHash);
         checkArgument(userHash.length == USER_HASH_FN.bits() / Byte.SIZE);
-        checkNotNull(measurements);
-        checkArgument(measurements.length > 0);
+        checkArgument(maxNrOfMeasurements > 0);
+        checkArgument(nrOfFeatures >= 0);
 
         this.userHash = userHash;
-        this.measurements = measurements;
+        this.maxNrOfMeasurements = maxNrOfMeasurements;
+        this.nrOfFeatures = nrOfFeatures;
+        this.columns = new double[maxNrOfMeasurements * nrOfFeatures];
+        this.head = 0;
+        this.counts = new int[nrOfFeatures];
+        this.runningStats = new double[RUNNING_STATS_PER_FEATURE * nrOfFeatures];
+    }
+
+    private HistoryFile(HistoryFile historyFile) {
+        this.userHash = historyFile.userHash;
+        this.maxNrOfMeasurements = historyFile.maxNrOfMeasurements;
+        this.nrOfFeatures = historyFile.nrOfFeatures;
+        this.columns = historyFile.columns.clone();
+        this.head = historyFile.head;
+        this.counts = historyFile.counts.clone();
+        this.runningStats = historyFile.runningStats.clone();
     }
 
     /** Returns an empty history file. */
@@ -44,11 +85,9 @@ public class HistoryFile {
         checkArgument(params.maxNrOfMeasurements > 0);
 
         byte[] userHash = USER_HASH_FN.hashString(user.user).asBytes();
-        double[][] measurements = new double[params.maxNrOfMeasurements][params.nrOfFeatures];
-        for (double[] measurement : measurements) {
-            Arrays.fill(measurement, Double.NaN);
-        }
-        return new HistoryFile(userHash, measurements);
+        HistoryFile historyFile = new HistoryFile(userHash, params.maxNrOfMeasurements, params.nrOfFeatures);
+        Arrays.fill(historyFile.columns, Double.NaN);
+        return historyFile;
     }
 
     /** Returns whether this history file's user hash matches that of the given user. */
@@ -58,18 +97,182 @@ public class HistoryFile {
         return Arrays.equals(userHash, USER_HASH_FN.hashString(user.user).asBytes());
     }
 
+    /** The number of logins whose measurements this history file holds. */
+    int maxNrOfMeasurements() {
+        return maxNrOfMeasurements;
+    }
+
+    int nrOfFeatures() {
+        return nrOfFeatures;
+    }
+
+    /** The measurement of feature `i` in the `j`-th most recent login. */
+    double get(int j, int i) {
+        return columns[i * maxNrOfMeasurements + slot(j)];
+    }
+
+    /**
+     * Copies the measurements into `columns` column-major: those of feature `i`, most recent first, are the
+     * `maxNrOfMeasurements` slots starting at `i * maxNrOfMeasurements`.
+     */
+    void getColumns(double[] columns) {
+        checkArgument(columns.length >= this.columns.length);
+
+        for (int i = 0; i < nrOfFeatures; i++) {
+            int column = i * maxNrOfMeasurements;
+            int recent = maxNrOfMeasurements - head;
+            System.arraycopy(this.columns, column + head, columns, column, recent);
+            System.arraycopy(this.columns, column, columns, column + recent, head);
+        }
+    }
+
+    /** Replaces the measurements with those in `columns`, laid out as by {@link #getColumns}. */
+    void setColumns(double[] columns) {
+        checkArgument(columns.length >= this.columns.length);
+
+        head = 0;
+        System.arraycopy(columns, 0, this.columns, 0, this.columns.length);
+    }
+
+    /**
+     * Replaces the measurements with those in `rows` row-major: those of each login, most recent first, are
+     * the `nrOfFeatures` slots starting at `j * nrOfFeatures`.
+     */
+    void setRows(double[] rows) {
+        checkArgument(rows.length >= columns.length);
+
+        head = 0;
+        for (int i = 0; i < nrOfFeatures; i++) {
+            int column = i * maxNrOfMeasurements;
+            for (int j = 0; j < maxNrOfMeasurements; j++) {
+                columns[column + j] = rows[j * nrOfFeatures + i];
+            }
+        }
+    }
+
+    /** The number of measurements of feature `i`, missing ones aside. */
+    int count(int i) {
+        return counts[i];
+    }
+
+    /**
+     * Slot `k` of the running stats: slots ''2i'' and ''2i + 1'' hold the mean of the measurements of feature
+     * ''i'' and their ''M,,2,,'', the sum of their squared deviations from the mean.
+     */
+    double runningStat(int k) {
+        return runningStats[k];
+    }
+
+    /** Replaces the counts and running stats (as by {@link #count} and {@link #runningStat}) of the features. */
+    void setRunningStats(int[] counts, double[] runningStats) {
+        checkArgument(counts.length == this.counts.length && runningStats.length == this.runningStats.length);
+        for (int count : counts) {
+            checkArgument(count >= 0 && count <= maxNrOfMeasurements);
+        }
+
+        System.arraycopy(counts, 0, this.counts, 0, counts.length);
+        System.arraycopy(runningStats, 0, this.runningStats, 0, runningStats.length);
+    }
+
+    /** Recalculates the counts and running stats of the features from their measurements. */
+    void recalculateRunningStats() {
+        for (int i = 0; i < nrOfFeatures; i++) {
+            recalculateRunningStats(i);
+        }
+    }
+
+    /** The measurements of each login, most recent first. */
+    double[][] measurements() {
+        double[][] measurements = new double[maxNrOfMeasurements][nrOfFeatures];
+        for (int j = 0; j < maxNrOfMeasurements; j++) {
+            for (int i = 0; i < nrOfFeatures; i++) {
+                measurements[j][i] = get(j, i);
+            }
+        }
+        return measurements;
+    }
+
+    private int slot(int j) {
+        checkElementIndex(j, maxNrOfMeasurements);
+        int slot = head + j;
+        return slot < maxNrOfMeasurements ? slot : slot - maxNrOfMeasurements;
+    }
+
     /**
      * Returns a new history file that includes the given most recent measurements
      * and excludes the least recent measurements if the file is full.
      */
     public HistoryFile withMostRecentMeasurements(double[] mostRecentMeasurements) {
+        HistoryFile historyFile = new HistoryFile(this);
+        historyFile.addMostRecentMeasurements(mostRecentMeasurements);
+        return historyFile;
+    }
+
+    /**
+     * Adds the given most recent measurements to this history file in place, overwriting the least recent
+     * measurements if the file is full.
+     */
+    public void addMostRecentMeasurements(double[] mostRecentMeasurements) {
         checkNotNull(mostRecentMeasurements);
-        checkArgument(mostRecentMeasurements.length == measurements[0].length);
+        checkArgument(mostRecentMeasurements.length == nrOfFeatures);
 
-        double[][] shiftedMeasurements = new double[measurements.length][];
-        shiftedMeasurements[0] = mostRecentMeasurements;
-        System.arraycopy(measurements, 0, shiftedMeasurements, 1, shiftedMeasurements.length - 1);
-        return new HistoryFile(userHash, shiftedMeasurements);
+        // the least recent slot becomes the most recent
+        head = head == 0 ? maxNrOfMeasurements - 1 : head - 1;
+        for (int i = 0; i < nrOfFeatures; i++) {
+            int k = i * maxNrOfMeasurements + head;
+            removeFromRunningStats(i, columns[k]);
+            columns[k] = mostRecentMeasurements[i];
+            addToRunningStats(i, columns[k]);
+            int s = RUNNING_STATS_PER_FEATURE * i;
+            if (!isFinite(runningStats[s]) || !isFinite(runningStats[s + 1])) {
+                // an infinite measurement came or went: the updates no longer recover the stats
+                recalculateRunningStats(i);
+            }
+        }
+    }
+
+    private void recalculateRunningStats(int i) {
+        counts[i] = 0;
+        int s = RUNNING_STATS_PER_FEATURE * i;
+        Arrays.fill(runningStats, s, s + RUNNING_STATS_PER_FEATURE, 0);
+        for (int k = i * maxNrOfMeasurements, end = k + maxNrOfMeasurements; k < end; k++) {
+            addToRunningStats(i, columns[k]);
+        }
+    }
+
+    /** Adds the given measurement of feature `i` to its running stats. */
+    private void addToRunningStats(int i, double measurement) {
+        if (Double.isNaN(measurement)) {
+            return;
+        }
+
+        int s = RUNNING_STATS_PER_FEATURE * i;
+        counts[i]++;
+        double delta = measurement - runningStats[s];
+        runningStats[s] += delta / counts[i];
+        runningStats[s + 1] += delta * (measurement - runningStats[s]);
+    }
+
+    /** Removes the given measurement of feature `i`, which was added to them, from its running stats. */
+    private void removeFromRunningStats(int i, double measurement) {
+        if (Double.isNaN(measurement)) {
+            return;
+        }
+
+        int s = RUNNING_STATS_PER_FEATURE * i;
+        counts[i]--;
+        if (counts[i] == 0) {
+            // start over exactly rather than carry the rounding errors forward
+            Arrays.fill(runningStats, s, s + RUNNING_STATS_PER_FEATURE, 0);
+            return;
+        }
+        double delta = measurement - runningStats[s];
+        runningStats[s] -= delta / counts[i];
+        runningStats[s + 1] -= delta * (measurement - runningStats[s]);
+    }
+
+    private static boolean isFinite(double x) {
+        return !Double.isNaN(x) && !Double.isInfinite(x);
     }
 
     /**
@@ -80,27 +283,18 @@ public class HistoryFile {
      * all of the entries in the history file, the stats for that feature will be null.
      */
     public MeasurementStats[] calculateStats() {
-        checkState(measurements.length > 0);
-
-        int nrOfFeatures = measurements[0].length;
         MeasurementStats[] stats = new MeasurementStats[nrOfFeatures];
 
         log.debug("Calculating historical measurement stats");
         for (int i = 0; i < stats.length; i++) {
             log.debug("Feature i = {}", i);
-            SummaryStatistics stat = new SummaryStatistics();
-            for (double[] measurement : measurements) {
-                log.debug("Historical measurements = {}", Arrays.toString(measurement));
-                checkState(measurement.length == nrOfFeatures);
-                double featureMeasurement = measurement[i];
-                if (Double.isNaN(featureMeasurement)) {
-                    break; // the history file isn't full for this feature, so go no further
-                }
-                stat.addValue(featureMeasurement);
-            }
-            checkState(stat.getN() <= measurements.length);
-            if (stat.getN() == measurements.length) {
-                stats[i] = new MeasurementStats(stat.getMean(), stat.getStandardDeviation());
+            checkState(counts[i] <= maxNrOfMeasurements);
+            if (counts[i] == maxNrOfMeasurements) {
+                int s = RUNNING_STATS_PER_FEATURE * i;
+                int n = counts[i];
+                // the (bias-corrected) sample variance, as SummaryStatistics computes it
+                double variance = n > 1 ? Math.max(0, runningStats[s + 1] / (n - 1)) : 0;
+                stats[i] = new MeasurementStats(runningStats[s], Math.sqrt(variance));
             }
             log.debug("Calculated stats = {}", stats[i]);
         }
@@ -115,7 +309,9 @@ public class HistoryFile {
         HistoryFile that = (HistoryFile) o;
 
         if (!Arrays.equals(userHash, that.userHash)) return false;
-        if (!Arrays.deepEquals(measurements, that.measurements)) return false;
+        if (maxNrOfMeasurements != that.maxNrOfMeasurements) return false;
+        if (nrOfFeatures != that.nrOfFeatures) return false;
+        if (!Arrays.deepEquals(measurements(), that.measurements())) return false;
 
         return true;
     }
@@ -123,7 +319,7 @@ public class HistoryFile {
     @Override
     public int hashCode() {
         int result = Arrays.hashCode(userHash);
-        result = 31 * result + Arrays.deepHashCode(measurements);
+        result = 31 * result + Arrays.deepHashCode(measurements());
         return result;
     }
 
@@ -131,7 +327,7 @@ public class HistoryFile {
     public String toString() {
         return "HistoryFile{" +
                 "userHash=" + BaseEncoding.base16().lowerCase().encode(userHash) +
-                ", measurements=" + Arrays.deepToString(measurements) +
+                ", measurements=" + Arrays.deepToString(measurements()) +
                 '}';
     }
 }
@@ -3,61 +3,150 @@ package seclogin.historyfile;
 import seclogin.HardenedPassword;
 import seclogin.User;
 import seclogin.crypto.Aes128Cbc;
+import seclogin.crypto.Aes128CtrHmacSha256;
 import seclogin.crypto.BlockCipher;
 import seclogin.crypto.IndecipherableException;
 
+import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * History file cipher. Encrypts/decrypts history files.
+ *
+ * Encryption and decryption hold this cipher's lock, so that history files can be encrypted by background
+ * refreshes while others are decrypted by logins even though the underlying block ciphers are not thread-safe.
+ *
+ * With {@link Aes128CtrHmacSha256}, history files are serialized (compressed) into a reused buffer, copied
+ * into the buffer of their ciphertext and encrypted in place, and are decrypted into a plaintext buffer that
+ * is reused (under the lock) and cleared once the history file is read from it.
  */
 public class HistoryFileCipher {
 
     private final BlockCipher cipher;
+    @Nullable private final BlockCipher legacyCipher;
     private final HistoryFileSerialization serialization = new HistoryFileSerialization();
+    private byte[] plaintextBuffer = new byte[0];
 
-    /** Constructs a {@link HistoryFileCipher} using {@link Aes128Cbc} as the block cipher. */
+    /**
+     * Constructs a {@link HistoryFileCipher} using {@link Aes128CtrHmacSha256} as the block cipher,
+     * which can still decrypt history files encrypted with {@link Aes128Cbc}.
+     */
     public HistoryFileCipher() {
-        this(new Aes128Cbc());
+        this(new Aes128CtrHmacSha256(), new Aes128Cbc());
     }
 
     /** Constructs a {@link HistoryFileCipher} using the given block cipher. */
     public HistoryFileCipher(BlockCipher cipher) {
         this.cipher = checkNotNull(cipher);
+        this.legacyCipher = null;
+    }
+
+    /**
+     * Constructs a {@link HistoryFileCipher} using the given authenticated cipher, which decrypts history
+     * files that were not encrypted with it using the given legacy block cipher. History files are always
+     * encrypted with the authenticated cipher, so they are migrated the next time they are written.
+     */
+    public HistoryFileCipher(Aes128CtrHmacSha256 cipher, BlockCipher legacyCipher) {
+        this.cipher = checkNotNull(cipher);
+        this.legacyCipher = checkNotNull(legacyCipher);
     }
 
     /** Encrypts this history file using the given hardened password. */
-    public EncryptedHistoryFile encrypt(HistoryFile historyFile, HardenedPassword hpwd) {
+    public synchronized EncryptedHistoryFile encrypt(HistoryFile historyFile, HardenedPassword hpwd) {
         checkNotNull(historyFile);
         checkNotNull(hpwd);
 
-        byte[] plaintext = serialization.toByteArray(historyFile);
         SecretKey key = cipher.deriveKey(hpwd);
+        if (cipher instanceof Aes128CtrHmacSha256) {
+            ByteBuffer plaintext = serialization.serialize(historyFile);
+            int len = plaintext.remaining();
+            byte[] ciphertext = new byte[Aes128CtrHmacSha256.ciphertextLength(len)];
+            plaintext.get(ciphertext, Aes128CtrHmacSha256.PLAINTEXT_OFFSET, len);
+            serialization.clear(plaintext);
+            ((Aes128CtrHmacSha256) cipher).encryptInPlace(key, ciphertext);
+            return new EncryptedHistoryFile(ciphertext);
+        }
+
+        byte[] plaintext = serialization.toByteArray(historyFile);
         byte[] ciphertext = cipher.encrypt(key, plaintext);
         return new EncryptedHistoryFile(ciphertext);
     }
 
+    /**
+     * Whether the given hardened password is the one the given history file was encrypted with. Authenticated
+     * ciphertext is checked by its tag alone, without decrypting it, which is thread-safe; any other ciphertext
+     * is decrypted, which is thread-safe only if the cipher that decrypts it is (as {@link Aes128Cbc} is).
+     * This does not check that the history file belongs to any particular user, as {@link #decrypt} does.
+     *
+     * Only the check of authenticated ciphertext is conclusive: other ciphertext is only checked for valid
+     * padding, which a wrong key yields about 1 time in 256, so a password that passes must still
+     * {@link #decrypt} the history file.
+     */
+    public boolean isKey(EncryptedHistoryFile encryptedHistoryFile, HardenedPassword hpwd) {
+        checkNotNull(encryptedHistoryFile);
+        checkNotNull(hpwd);
+
+        if (Aes128CtrHmacSha256.isCiphertext(encryptedHistoryFile.ciphertext) && cipher instanceof Aes128CtrHmacSha256) {
+            return Aes128CtrHmacSha256.isAuthentic(cipher.deriveKey(hpwd), encryptedHistoryFile.ciphertext);
+        }
+
+        BlockCipher cipher = legacyCipher != null ? legacyCipher : this.cipher;
+        try {
+            cipher.decrypt(cipher.deriveKey(hpwd), encryptedHistoryFile.ciphertext);
+            return true;
+        } catch (IndecipherableException e) {
+            return false;
+        }
+    }
+
     /**
      * Decrypts the given encrypted history file for the given user with the given hardened password.
      *
      * @throws IndecipherableHistoryFileException if the password and/or user are incorrect
      */
-    public HistoryFile decrypt(EncryptedHistoryFile encryptedHistoryFile, HardenedPassword hpwd, User user)
+    public synchronized HistoryFile decrypt(EncryptedHistoryFile encryptedHistoryFile, HardenedPassword hpwd, User user)
             throws IndecipherableHistoryFileException {
         checkNotNull(encryptedHistoryFile);
         checkNotNull(hpwd);
         checkNotNull(user);
 
+        BlockCipher cipher = this.cipher;
+        if (legacyCipher != null && !Aes128CtrHmacSha256.isCiphertext(encryptedHistoryFile.ciphertext)) {
+            cipher = legacyCipher;
+        }
+
         SecretKey key = cipher.deriveKey(hpwd);
-        byte[] plaintext;
+        byte[] ciphertext = encryptedHistoryFile.ciphertext;
+        HistoryFile historyFile;
         try {
-            plaintext = cipher.decrypt(key, encryptedHistoryFile.ciphertext);
+            if (cipher instanceof Aes128CtrHmacSha256 && Aes128CtrHmacSha256.isCiphertext(ciphertext)) {
+                int len = Aes128CtrHmacSha256.plaintextLength(ciphertext);
+                if (plaintextBuffer.length < len) {
+                    plaintextBuffer = new byte[len];
+                }
+                ((Aes128CtrHmacSha256) cipher).decrypt(key, ciphertext, plaintextBuffer, 0);
+                try {
+                    historyFile = serialization.read(ByteBuffer.wrap(plaintextBuffer, 0, len));
+                } finally {
+                    Arrays.fill(plaintextBuffer, 0, len, (byte) 0);
+                }
+            } else {
+                historyFile = serialization.fromByteArray(cipher.decrypt(key, ciphertext));
+            }
         } catch (IndecipherableException e) {
             throw new IndecipherableHistoryFileException(e); // the hardened password is incorrect
         }
-        HistoryFile historyFile = serialization.fromByteArray(plaintext);
+        // a wrong key can still yield valid padding, and so a plaintext that is not a history file
+        catch (IllegalArgumentException e) {
+            throw new IndecipherableHistoryFileException(e);
+        } catch (BufferUnderflowException e) {
+            throw new IndecipherableHistoryFileException(e);
+        }
         if (!historyFile.verifyUserHash(user)) {
             throw new IndecipherableHistoryFileException(); // the hardened password and/or user are incorrect
         }
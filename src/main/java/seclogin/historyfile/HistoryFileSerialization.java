@@ -1,82 +1,211 @@
 package seclogin.historyfile;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Serializes/deserializes (unencrypted) history files.
+ *
+ * A history file is serialized as its user hash, then the negated {@link #VERSION}, the number of logins
+ * and of features, and the length in bytes of its measurements, which follow compressed by
+ * {@link MeasurementEncoding}, each feature's most recent first. Then each feature's count and running stats
+ * ({@link HistoryFile#count}, {@link HistoryFile#runningStat}) follow as an int and doubles, so that they are
+ * carried from login to login rather than recalculated.
+ *
+ * Files of version 3, whose features' counts are followed by 4 running sums instead, of version 2, which
+ * lack both, and of the original version, whose number of logins (positive) directly follows the user hash
+ * and whose measurements follow as raw doubles, each login's most recent first, can still be deserialized;
+ * their running stats are recalculated.
+ *
+ * The measurements go through scratch arrays that each thread reuses, and which are zeroed after each use.
  */
 class HistoryFileSerialization {
 
+    static final int VERSION = 4;
+
+    /** The number of running sums that follow each feature's count in version 3. */
+    private static final int VERSION_3_SUMS_PER_FEATURE = 4;
+
     private static final int INT_SIZE_IN_BYTES = Integer.SIZE / Byte.SIZE;
     private static final int DOUBLE_SIZE_IN_BYTES = Double.SIZE / Byte.SIZE;
+    private static final int USER_HASH_SIZE_IN_BYTES = HistoryFile.USER_HASH_FN.bits() / Byte.SIZE;
+    private static final int HEADER_SIZE_IN_BYTES = USER_HASH_SIZE_IN_BYTES + 4 * INT_SIZE_IN_BYTES;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
 
     /** Serializes this history file (unencrypted). */
     byte[] toByteArray(HistoryFile historyFile) {
-        checkNotNull(historyFile);
-        checkArgument(historyFile.measurements.length > 0);
+        ByteBuffer serialized = serialize(historyFile);
+        byte[] plaintext = new byte[serialized.remaining()];
+        serialized.get(plaintext);
+        clear(serialized);
+        return plaintext;
+    }
 
-        byte[] plaintext = new byte[sizeInBytes(historyFile)];
+    /**
+     * Serializes this history file (unencrypted) into a buffer that the calling thread reuses, from its
+     * position 0 to its limit. The buffer is only valid until the thread next serializes a history file,
+     * and should be {@link #clear}ed once the history file is copied out of it.
+     */
+    ByteBuffer serialize(HistoryFile historyFile) {
+        checkNotNull(historyFile);
 
-        int offset = 0;
+        Scratch scratch = SCRATCH.get();
+        int maxNrOfMeasurements = historyFile.maxNrOfMeasurements();
+        int nrOfFeatures = historyFile.nrOfFeatures();
+        int len = maxNrOfMeasurements * nrOfFeatures;
+        double[] columns = scratch.values(len);
+        historyFile.getColumns(columns);
+
+        MeasurementEncoding.BitWriter writer = scratch.writer;
+        writer.reset(HEADER_SIZE_IN_BYTES);
+        MeasurementEncoding.encode(columns, len, writer);
+        Arrays.fill(columns, 0, len, 0);
+        int measurementsEnd = writer.finish();
+        for (int i = 0, k = 0; i < nrOfFeatures; i++) {
+            writer.write(historyFile.count(i), Integer.SIZE);
+            for (int end = k + HistoryFile.RUNNING_STATS_PER_FEATURE; k < end; k++) {
+                writer.write(Double.doubleToRawLongBits(historyFile.runningStat(k)), Double.SIZE);
+            }
+        }
+        int size = writer.finish();
+
+        ByteBuffer out = scratch.buffer();
+        out.clear();
+        out.put(historyFile.userHash);
+        out.putInt(-VERSION);
+        out.putInt(maxNrOfMeasurements);
+        out.putInt(nrOfFeatures);
+        out.putInt(measurementsEnd - HEADER_SIZE_IN_BYTES);
+        out.position(0);
+        out.limit(size);
+        return out;
+    }
 
-        byte[] userHash = historyFile.userHash;
-        System.arraycopy(userHash, 0, plaintext, offset, userHash.length);
-        offset += userHash.length;
+    /** Zeros the serialized history file in a buffer returned by {@link #serialize}. */
+    void clear(ByteBuffer serialized) {
+        int offset = serialized.arrayOffset();
+        Arrays.fill(serialized.array(), offset, offset + serialized.limit(), (byte) 0);
+    }
 
-        int maxNrOfMeasurements = historyFile.measurements.length;
-        ByteBuffer.wrap(plaintext, offset, INT_SIZE_IN_BYTES).putInt(maxNrOfMeasurements);
-        offset += INT_SIZE_IN_BYTES;
+    /** Deserializes the given unencrypted history file. */
+    HistoryFile fromByteArray(byte[] plaintext) {
+        checkNotNull(plaintext);
 
-        int nrOfFeatures = historyFile.measurements[0].length;
-        ByteBuffer.wrap(plaintext, offset, INT_SIZE_IN_BYTES).putInt(nrOfFeatures);
-        offset += INT_SIZE_IN_BYTES;
+        return read(ByteBuffer.wrap(plaintext));
+    }
 
-        double[][] measurements = historyFile.measurements;
-        for (int j = 0; j < measurements.length; j++) {
-            checkState(measurements[j].length == nrOfFeatures);
-            for (int i = 0; i < measurements[j].length; i++) {
-                ByteBuffer.wrap(plaintext, offset, DOUBLE_SIZE_IN_BYTES).putDouble(measurements[j][i]);
-                offset += DOUBLE_SIZE_IN_BYTES;
+    /**
+     * Deserializes the unencrypted history file in `in` at its position, which is advanced past it.
+     *
+     * @throws IllegalArgumentException if `in` does not hold a serialized history file
+     */
+    HistoryFile read(ByteBuffer in) {
+        checkNotNull(in);
+
+        byte[] userHash = new byte[USER_HASH_SIZE_IN_BYTES];
+        in.get(userHash);
+        int version = 1;
+        int maxNrOfMeasurements = in.getInt();
+        if (maxNrOfMeasurements < 0) {
+            version = -maxNrOfMeasurements;
+            checkArgument(version >= 2 && version <= VERSION, "Unsupported history file version %s", version);
+            maxNrOfMeasurements = in.getInt();
+        }
+        int nrOfFeatures = in.getInt();
+        checkArgument(maxNrOfMeasurements > 0 && nrOfFeatures >= 0 &&
+                (long) maxNrOfMeasurements * nrOfFeatures * DOUBLE_SIZE_IN_BYTES <= Integer.MAX_VALUE,
+                "Malformed history file");
+
+        HistoryFile historyFile = new HistoryFile(userHash, maxNrOfMeasurements, nrOfFeatures);
+        int len = maxNrOfMeasurements * nrOfFeatures;
+        double[] values = SCRATCH.get().values(len);
+        try {
+            if (version == 1) {
+                checkArgument(len * DOUBLE_SIZE_IN_BYTES <= in.remaining(), "Truncated history file");
+                in.asDoubleBuffer().get(values, 0, len);
+                in.position(in.position() + len * DOUBLE_SIZE_IN_BYTES);
+                historyFile.setRows(values);
+                historyFile.recalculateRunningStats();
+            } else {
+                int size = in.getInt();
+                checkArgument(size >= 0 && size <= in.remaining(), "Truncated history file");
+                ByteBuffer encoded = in.slice();
+                encoded.limit(size);
+                MeasurementEncoding.decode(new MeasurementEncoding.BitReader(encoded), values, len);
+                in.position(in.position() + size);
+                historyFile.setColumns(values);
+                if (version == VERSION) {
+                    readRunningStats(in, historyFile);
+                } else {
+                    if (version == 3) {
+                        skip(in, nrOfFeatures, VERSION_3_SUMS_PER_FEATURE);
+                    }
+                    historyFile.recalculateRunningStats();
+                }
             }
+        } finally {
+            Arrays.fill(values, 0, len, 0);
         }
-        checkState(offset == plaintext.length);
 
-        return plaintext;
+        return historyFile;
     }
 
-    /** Returns the total number of bytes needed to serialize this history file. */
-    private int sizeInBytes(HistoryFile historyFile) {
-        return (HistoryFile.USER_HASH_FN.bits() / Byte.SIZE) +
-                (2 * INT_SIZE_IN_BYTES) +
-                (historyFile.measurements.length * historyFile.measurements[0].length * DOUBLE_SIZE_IN_BYTES);
+    private static void readRunningStats(ByteBuffer in, HistoryFile historyFile) {
+        int nrOfFeatures = historyFile.nrOfFeatures();
+        checkRemaining(in, nrOfFeatures, HistoryFile.RUNNING_STATS_PER_FEATURE);
+
+        int[] counts = new int[nrOfFeatures];
+        double[] runningStats = new double[HistoryFile.RUNNING_STATS_PER_FEATURE * nrOfFeatures];
+        for (int i = 0, k = 0; i < nrOfFeatures; i++) {
+            counts[i] = in.getInt();
+            for (int end = k + HistoryFile.RUNNING_STATS_PER_FEATURE; k < end; k++) {
+                runningStats[k] = in.getDouble();
+            }
+        }
+        historyFile.setRunningStats(counts, runningStats);
     }
 
-    /** Deserializes the given unencrypted history file. */
-    HistoryFile fromByteArray(byte[] plaintext) {
-        int offset = 0;
+    /** Skips each feature's count and the given number of doubles that follow it. */
+    private static void skip(ByteBuffer in, int nrOfFeatures, int doublesPerFeature) {
+        checkRemaining(in, nrOfFeatures, doublesPerFeature);
+        in.position(in.position() + nrOfFeatures * (INT_SIZE_IN_BYTES + doublesPerFeature * DOUBLE_SIZE_IN_BYTES));
+    }
 
-        byte[] userHash = new byte[HistoryFile.USER_HASH_FN.bits() / Byte.SIZE];
-        System.arraycopy(plaintext, offset, userHash, 0, userHash.length);
-        offset += userHash.length;
+    private static void checkRemaining(ByteBuffer in, int nrOfFeatures, int doublesPerFeature) {
+        int sizePerFeature = INT_SIZE_IN_BYTES + doublesPerFeature * DOUBLE_SIZE_IN_BYTES;
+        checkArgument((long) nrOfFeatures * sizePerFeature <= in.remaining(), "Truncated history file");
+    }
 
-        int maxNrOfMeasurements = ByteBuffer.wrap(plaintext, offset, INT_SIZE_IN_BYTES).getInt();
-        offset += INT_SIZE_IN_BYTES;
+    /** A thread's buffers for the history file it is (de)serializing. */
+    private static class Scratch {
 
-        int nrOfFeatures = ByteBuffer.wrap(plaintext, offset, INT_SIZE_IN_BYTES).getInt();
-        offset += INT_SIZE_IN_BYTES;
+        private double[] values = new double[0];
+        private final MeasurementEncoding.BitWriter writer = new MeasurementEncoding.BitWriter();
+        private ByteBuffer buffer;
 
-        double[][] measurements = new double[maxNrOfMeasurements][nrOfFeatures];
-        for (int j = 0; j < measurements.length; j++) {
-            for (int i = 0; i < measurements[j].length; i++) {
-                measurements[j][i] = ByteBuffer.wrap(plaintext, offset, DOUBLE_SIZE_IN_BYTES).getDouble();
-                offset += DOUBLE_SIZE_IN_BYTES;
+        /** Returns an array of at least `len` slots, growing the one reused if needed. */
+        double[] values(int len) {
+            if (values.length < len) {
+                values = new double[len];
             }
+            return values;
         }
 
-        return new HistoryFile(userHash, measurements);
+        /** A buffer over the bytes of the writer, which is replaced when they are. */
+        ByteBuffer buffer() {
+            if (buffer == null || buffer.array() != writer.bytes()) {
+                buffer = ByteBuffer.wrap(writer.bytes());
+            }
+            return buffer;
+        }
     }
 }
@@ -0,0 +1,208 @@
+package seclogin.historyfile;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compresses sequences of measurements, after Gorilla (Pelkonen et al., VLDB 2015): each value is XORed
+ * with the previous one, which for repeated answers is 0 and for small integers has few meaningful bits.
+ * Each value is encoded, most significant bit first, as
+ *
+ *  * `0`: the same as the previous value;
+ *  * `10` and the meaningful bits of the XOR: those within the window of leading and trailing zeros set by
+ *    the last `110`, which the XOR fits;
+ *  * `110`, the number of leading zeros of the XOR in 5 bits (at most 31), the number of meaningful bits
+ *    less 1 in 6 bits, and the meaningful bits: a new window;
+ *  * `111` and the length of a run of NaNs ("no answer") in Elias gamma code, which does not change the
+ *    previous value.
+ *
+ * The first value is XORed with 0. NaNs are decoded as {@link Double#NaN}.
+ */
+class MeasurementEncoding {
+
+    private MeasurementEncoding() {}
+
+    /** Appends the encoding of slots ''[0, len)'' of `values` to `out`. */
+    static void encode(double[] values, int len, BitWriter out) {
+        long previous = 0;
+        int leading = -1; // no window yet
+        int trailing = 0;
+        for (int k = 0; k < len; ) {
+            if (Double.isNaN(values[k])) {
+                int run = 1;
+                while (k + run < len && Double.isNaN(values[k + run])) {
+                    run++;
+                }
+                out.write(7, 3);
+                writeGamma(run, out);
+                k += run;
+                continue;
+            }
+
+            long bits = Double.doubleToRawLongBits(values[k]);
+            long xor = bits ^ previous;
+            if (xor == 0) {
+                out.write(0, 1);
+            } else {
+                int xorLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int xorTrailing = Long.numberOfTrailingZeros(xor);
+                if (leading >= 0 && xorLeading >= leading && xorTrailing >= trailing) {
+                    out.write(2, 2);
+                    out.write(xor >>> trailing, 64 - leading - trailing);
+                } else {
+                    int length = 64 - xorLeading - xorTrailing;
+                    out.write(6, 3);
+                    out.write(xorLeading, 5);
+                    out.write(length - 1, 6);
+                    out.write(xor >>> xorTrailing, length);
+                    leading = xorLeading;
+                    trailing = xorTrailing;
+                }
+            }
+            previous = bits;
+            k++;
+        }
+    }
+
+    /**
+     * Decodes `len` values from `in` into slots ''[0, len)'' of `values`.
+     *
+     * @throws IllegalArgumentException if `in` does not hold the encoding of `len` values
+     */
+    static void decode(BitReader in, double[] values, int len) {
+        long previous = 0;
+        int leading = -1;
+        int trailing = 0;
+        for (int k = 0; k < len; ) {
+            if (in.read(1) != 0) {
+                long xor;
+                if (in.read(1) == 0) {
+                    checkArgument(leading >= 0, "Malformed measurements");
+                    xor = in.read(64 - leading - trailing) << trailing;
+                } else if (in.read(1) == 0) {
+                    leading = (int) in.read(5);
+                    int length = (int) in.read(6) + 1;
+                    trailing = 64 - leading - length;
+                    checkArgument(trailing >= 0, "Malformed measurements");
+                    xor = in.read(length) << trailing;
+                } else {
+                    int run = readGamma(in);
+                    checkArgument(run <= len - k, "Malformed measurements");
+                    Arrays.fill(values, k, k + run, Double.NaN);
+                    k += run;
+                    continue;
+                }
+                previous ^= xor;
+            }
+            values[k++] = Double.longBitsToDouble(previous);
+        }
+    }
+
+    /** Writes the positive `n` as ''⌊log,,2,, n⌋'' zeros followed by its bits. */
+    private static void writeGamma(int n, BitWriter out) {
+        int width = Integer.SIZE - Integer.numberOfLeadingZeros(n);
+        out.write(0, width - 1);
+        out.write(n, width);
+    }
+
+    private static int readGamma(BitReader in) {
+        int zeros = 0;
+        while (in.read(1) == 0) {
+            zeros++;
+            checkArgument(zeros < Integer.SIZE - 1, "Malformed measurements");
+        }
+        return (1 << zeros) | (int) in.read(zeros);
+    }
+
+    /** Writes bits, most significant first, into a byte array that grows as needed and can be reused. */
+    static class BitWriter {
+
+        private byte[] bytes = new byte[0];
+        private int position;
+        /** The bits of the byte being written, which are its `used` most significant ones. */
+        private int current;
+        private int used;
+
+        /** Starts writing at byte `position`, keeping the bytes before it. */
+        void reset(int position) {
+            ensureCapacity(position);
+            this.position = position;
+            current = 0;
+            used = 0;
+        }
+
+        /** Writes the `bits` least significant bits of `value`. */
+        void write(long value, int bits) {
+            for (int k = bits; k > 0; ) {
+                int take = Math.min(8 - used, k);
+                current |= (int) (value >>> (k - take) & ((1 << take) - 1)) << (8 - used - take);
+                used += take;
+                k -= take;
+                if (used == 8) {
+                    ensureCapacity(position + 1);
+                    bytes[position++] = (byte) current;
+                    current = 0;
+                    used = 0;
+                }
+            }
+        }
+
+        /** Pads the last byte with zeros, and returns the position after it. */
+        int finish() {
+            if (used > 0) {
+                write(0, 8 - used);
+            }
+            return position;
+        }
+
+        /** The bytes written, which may be replaced as the array grows. */
+        byte[] bytes() {
+            return bytes;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (bytes.length < capacity) {
+                byte[] old = bytes;
+                bytes = Arrays.copyOf(old, Math.max(capacity, 2 * old.length));
+                // the bytes may be a serialized history file, which should not be left behind
+                Arrays.fill(old, (byte) 0);
+            }
+        }
+    }
+
+    /** Reads bits, most significant first, from a buffer. */
+    static class BitReader {
+
+        private final ByteBuffer in;
+        private int current;
+        /** The number of the least significant bits of `current` not read yet. */
+        private int left;
+
+        BitReader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads `bits` bits as the least significant ones of the result.
+         *
+         * @throws IllegalArgumentException if the buffer ends first
+         */
+        long read(int bits) {
+            long value = 0;
+            for (int k = bits; k > 0; ) {
+                if (left == 0) {
+                    checkArgument(in.hasRemaining(), "Truncated measurements");
+                    current = in.get() & 0xff;
+                    left = 8;
+                }
+                int take = Math.min(left, k);
+                value = (value << take) | (current >>> (left - take) & ((1 << take) - 1));
+                left -= take;
+                k -= take;
+            }
+            return value;
+        }
+    }
+}
@@ -4,6 +4,12 @@ import seclogin.MeasurementParams;
 import seclogin.MeasurementStats;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -50,6 +56,76 @@ public class DistinguishmentPolicy {
         return measurement < params.responseMean ? ALPHA : BETA;
     }
 
+    /**
+     * Determines the feature distinguishments from the given measurements, as
+     * {@link #measurementDistinguishment(double[])} does, followed by up to `alternatives` alternative
+     * distinguishments in which the features whose measurements are nearest to the boundary are flipped.
+     *
+     * The alternatives are in increasing order of the sum of the {@link #measurementMargin margins} of the
+     * flipped features, so that the likeliest come first.
+     */
+    public final List<Distinguishment[]> measurementDistinguishments(double[] measurements, int alternatives) {
+        checkArgument(alternatives >= 0);
+        Distinguishment[] distinguishments = measurementDistinguishment(measurements);
+
+        List<Distinguishment[]> candidates = new ArrayList<Distinguishment[]>(alternatives + 1);
+        candidates.add(distinguishments);
+
+        // the features that can be flipped, nearest to the boundary first
+        final double[] margins = new double[measurements.length];
+        List<Integer> features = new ArrayList<Integer>();
+        for (int i = 0; i < measurements.length; i++) {
+            if (distinguishments[i] != null) {
+                margins[i] = measurementMargin(measurements[i], measurementParams[i]);
+                features.add(i);
+            }
+        }
+        Collections.sort(features, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(margins[a], margins[b]);
+            }
+        });
+        if (features.isEmpty()) {
+            return candidates;
+        }
+
+        // best-first over the sets of flipped features: each set {.., j} (in the order of the features) leads to
+        // {.., j, j + 1} and {.., j + 1}, which cost no less, and every set is reached exactly once
+        PriorityQueue<Flips> queue = new PriorityQueue<Flips>();
+        queue.add(new Flips(new int[]{ 0 }, margins[features.get(0)]));
+        while (candidates.size() <= alternatives && !queue.isEmpty()) {
+            Flips flips = queue.remove();
+            Distinguishment[] alternative = distinguishments.clone();
+            for (int k : flips.positions) {
+                int i = features.get(k);
+                alternative[i] = alternative[i] == ALPHA ? BETA : ALPHA;
+            }
+            candidates.add(alternative);
+
+            int last = flips.positions[flips.positions.length - 1];
+            if (last + 1 < features.size()) {
+                double next = margins[features.get(last + 1)];
+                int[] extended = Arrays.copyOf(flips.positions, flips.positions.length + 1);
+                extended[extended.length - 1] = last + 1;
+                queue.add(new Flips(extended, flips.cost + next));
+                int[] replaced = flips.positions.clone();
+                replaced[replaced.length - 1] = last + 1;
+                queue.add(new Flips(replaced, flips.cost - margins[features.get(last)] + next));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * How far the given measurement of a feature is from the boundary between its distinguishments
+     * according to the system-wide parameter for that feature. The nearer, the likelier the feature
+     * is to be distinguished the other way on another login.
+     */
+    protected double measurementMargin(double measurement, MeasurementParams params) {
+        return Math.abs(measurement - params.responseMean);
+    }
+
     /**
      * Determines whether and how a feature is distinguishing for a particular user.
      *
@@ -84,4 +160,20 @@ public class DistinguishmentPolicy {
         }
         return null;
     }
+
+    /** A set of features to flip, by their positions in the order of their margins. */
+    private static class Flips implements Comparable<Flips> {
+        final int[] positions;
+        final double cost;
+
+        Flips(int[] positions, double cost) {
+            this.positions = positions;
+            this.cost = cost;
+        }
+
+        @Override
+        public int compareTo(Flips that) {
+            return Double.compare(cost, that.cost);
+        }
+    }
 }
@@ -1,19 +1,22 @@
 package seclogin.instructiontable;
 
 import com.google.common.io.BaseEncoding;
-import seclogin.Password;
 import seclogin.SecurityParameters;
+import seclogin.crypto.KeyDerivation;
 import seclogin.math.Mod;
 import seclogin.math.PasswordBasedPRF;
+import seclogin.math.PRP;
 import seclogin.math.Point;
-import seclogin.math.SparsePRP;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static seclogin.instructiontable.Distinguishment.ALPHA;
@@ -22,84 +25,191 @@ import static seclogin.instructiontable.Distinguishment.ALPHA;
  * An instruction table that contains values from which the hardened password can be recovered
  * given the correct regular password and measurements similar to those measured during previous
  * successful login attempts for the user to which this table belongs.
+ *
+ * The values are packed into a single buffer of fixed-width slots (alpha then beta for each feature, as
+ * unsigned big-endian integers), either a `byte[]` or a (mapped) file's contents, and are decoded only
+ * when they are used. See {@link #footprint}.
+ *
+ * The salts r and (if any) the master salt stay arrays of their own rather than slots: they are a fixed
+ * 16 bytes or so per table rather than per feature, they are handed as they are to the KDF and the PRP, and
+ * successive tables of a user share the same master salt array.
  */
 public class InstructionTable {
 
+    /** The length in bytes of a value's slot: values are mod q, so they fit in {@link SecurityParameters#Q_LEN} bits. */
+    static final int SLOT_LEN = SecurityParameters.Q_LEN / Byte.SIZE;
+
+    /** Estimates of the heap layout of a 64-bit JVM with compressed references. */
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    /** The heap used by a `ByteBuffer` (without its contents). */
+    private static final int BYTE_BUFFER = 48;
+
     final byte[] r;
-    final Entry[] table;
+    final KeyDerivation keyDerivation;
+    @Nullable final byte[] masterSalt;
+    final PrpAlgorithm prp;
+
+    /** The number of features. */
+    private final int n;
+    private final int slotLen;
+    /** Slots ''[0, 2n)'' of {@link #slotLen} bytes, only read with absolute gets, so they can be shared. */
+    private final ByteBuffer slots;
 
-    InstructionTable(byte[] r, Entry[] table) {
+    /**
+     * @param r the salt of this table's PRF key (and the key of its PRP)
+     * @param keyDerivation how this table's PRF key (or the master key) is derived from the regular password
+     * @param masterSalt the salt of the user's master key if this table uses {@link KeySchedule#MASTER_KEY},
+     *                   or null if it uses {@link KeySchedule#PER_TABLE}
+     * @param prp how this table's x-coordinates are drawn from r
+     * @param slots from its position, the ''2n'' slots of `slotLen` bytes holding the values of the ''n'' features
+     */
+    InstructionTable(byte[] r, KeyDerivation keyDerivation, @Nullable byte[] masterSalt, PrpAlgorithm prp,
+                     ByteBuffer slots, int slotLen) {
         checkArgument(r.length == SecurityParameters.R_LEN/Byte.SIZE);
+        checkArgument(slotLen > 0 && slots.remaining() % (2 * slotLen) == 0);
         this.r = checkNotNull(r);
-        this.table = checkNotNull(table);
+        this.keyDerivation = checkNotNull(keyDerivation);
+        this.masterSalt = masterSalt;
+        this.prp = checkNotNull(prp);
+        this.n = slots.remaining() / (2 * slotLen);
+        this.slotLen = slotLen;
+        this.slots = slots.slice();
+    }
+
+    /** Packs the given values of the features, alpha then beta for each, into {@link #SLOT_LEN}-byte slots. */
+    static ByteBuffer pack(BigInteger[] values) {
+        byte[] slots = new byte[values.length * SLOT_LEN];
+        for (int k = 0; k < values.length; k++) {
+            pack(values[k], slots, k);
+        }
+        return ByteBuffer.wrap(slots);
+    }
+
+    /** Writes the given value into slot `k` of {@link #SLOT_LEN} bytes of `slots`. */
+    static void pack(BigInteger value, byte[] slots, int k) {
+        checkArgument(value.signum() >= 0 && value.bitLength() <= SLOT_LEN * Byte.SIZE,
+                "Value does not fit in a slot: %s", value);
+
+        byte[] bytes = value.toByteArray();
+        // drop the sign byte, if any
+        int len = Math.min(bytes.length, SLOT_LEN);
+        int offset = k * SLOT_LEN;
+        Arrays.fill(slots, offset, offset + SLOT_LEN - len, (byte) 0);
+        System.arraycopy(bytes, bytes.length - len, slots, offset + SLOT_LEN - len, len);
+    }
+
+    KeySchedule keySchedule() {
+        return masterSalt == null ? KeySchedule.PER_TABLE : KeySchedule.MASTER_KEY;
+    }
+
+    /** The number of features. */
+    int size() {
+        return n;
+    }
+
+    /** The alpha value of feature `i`. */
+    BigInteger alpha(int i) {
+        return value(2 * i);
+    }
+
+    /** The beta value of feature `i`. */
+    BigInteger beta(int i) {
+        return value(2 * i + 1);
+    }
+
+    /** The value of feature `i` for the given distinguishment. */
+    BigInteger get(int i, Distinguishment distinguishment) {
+        checkNotNull(distinguishment);
+        return distinguishment == ALPHA ? alpha(i) : beta(i);
+    }
+
+    /** The length in bytes of the slots of {@link #slots}. */
+    int slotLen() {
+        return slotLen;
+    }
+
+    /** The slots of the values, alpha then beta for each feature, in a buffer of their own. */
+    ByteBuffer slots() {
+        return slots.duplicate();
+    }
+
+    /**
+     * Estimates the heap used by this table, in bytes (on a 64-bit JVM with compressed references): the table
+     * itself, its salts, and its slots unless they are off the heap (as a mapped file's are). Each feature costs
+     * two {@link #SLOT_LEN}-byte slots, where an object per feature holding two `BigInteger`s would cost about
+     * 190 bytes.
+     */
+    public long footprint() {
+        long bytes = align(OBJECT_HEADER + 4 * REFERENCE + 2 * 4 + REFERENCE) + BYTE_BUFFER;
+        bytes += align(ARRAY_HEADER + r.length);
+        if (masterSalt != null) {
+            bytes += align(ARRAY_HEADER + masterSalt.length);
+        }
+        if (slots.hasArray()) {
+            bytes += align(ARRAY_HEADER + slots.array().length);
+        }
+        return bytes;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
     }
 
     /**
      * Selects the correct (x,y) pair stored in the table for each feature using the given
-     * distinguishments and `decrypting` the y value using the given regular password.
+     * distinguishments and `decrypting` the y value using the PRF key derived from the regular password.
      */
-    List<Point> points(Mod q, Password pwd, Distinguishment[] distinguishments) {
-        checkState(distinguishments.length == table.length);
+    List<Point> points(Mod q, TableKeys keys, Distinguishment[] distinguishments) {
+        checkState(distinguishments.length == n);
 
-        PasswordBasedPRF g = PasswordBasedPRF.forSaltedPassword(r, pwd, q);
-        SparsePRP p = new SparsePRP(r, q);
+        PasswordBasedPRF g = PasswordBasedPRF.forKey(keys.prfKey(this), q);
+        PRP p = prp.forKey(r, q);
 
-        List<Point> points = new ArrayList<Point>();
-        for (int i = 0; i < table.length ; i++) {
+        int[] inputs = new int[n];
+        for (int i = 0; i < n; i++) {
             Distinguishment distinguishment = checkNotNull(distinguishments[i]);
+            inputs[i] = distinguishment == ALPHA ? (2*i) : ((2*i)+1);
+        }
+        BigInteger[] gs = new BigInteger[n];
+        g.of(inputs, gs);
 
-            int input = distinguishment == ALPHA ? (2*i) : ((2*i)+1);
-            BigInteger x = p.apply(input);
-            BigInteger y = table[i].get(distinguishment).subtract(g.of(input)).mod(q.q);
+        List<Point> points = new ArrayList<Point>();
+        for (int i = 0; i < n; i++) {
+            BigInteger x = p.apply(inputs[i]);
+            BigInteger y = value(inputs[i]).subtract(gs[i]).mod(q.q);
 
             points.add(new Point(x, y));
         }
         return points;
     }
 
-    /** An entry in the instruction table. */
-    static class Entry {
-        public final BigInteger alpha;
-        public final BigInteger beta;
-
-        Entry(BigInteger alpha, BigInteger beta) {
-            this.alpha = alpha;
-            this.beta = beta;
-        }
-
-        /** Gets the entry value for the given distinguishment */
-        BigInteger get(Distinguishment distinguishment) {
-            checkNotNull(distinguishment);
-            return distinguishment == ALPHA ? alpha : beta;
-        }
+    /** Decodes the value in slot `k`. */
+    private BigInteger value(int k) {
+        checkElementIndex(k, 2 * n);
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Entry that = (Entry) o;
-            if (!alpha.equals(that.alpha)) return false;
-            if (!beta.equals(that.beta)) return false;
-            return true;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = alpha.hashCode();
-            result = 31 * result + beta.hashCode();
-            return result;
+        byte[] bytes = new byte[slotLen];
+        int start = k * slotLen;
+        for (int b = 0; b < slotLen; b++) {
+            bytes[b] = slots.get(start + b);
         }
+        return new BigInteger(1, bytes);
     }
 
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder();
         s.append(String.format("r=%s\n", BaseEncoding.base16().lowerCase().encode(r)));
-        for (int i = 0; i < table.length; i++) {
-            Entry entry = table[i];
+        s.append(String.format("kdf=%s\n", keyDerivation));
+        s.append(String.format("prp=%s\n", prp));
+        if (masterSalt != null) {
+            s.append(String.format("masterSalt=%s\n", BaseEncoding.base16().lowerCase().encode(masterSalt)));
+        }
+        for (int i = 0; i < n; i++) {
             s.append(String.format("a_%d=%s   b_%d=%s\n",
-                    i, entry.alpha.toString(16),
-                    i, entry.beta.toString(16)));
+                    i, alpha(i).toString(16),
+                    i, beta(i).toString(16)));
         }
         return s.toString();
     }
@@ -110,14 +220,25 @@ public class InstructionTable {
         if (o == null || getClass() != o.getClass()) return false;
         InstructionTable that = (InstructionTable) o;
         if (!Arrays.equals(r, that.r)) return false;
-        if (!Arrays.equals(table, that.table)) return false;
+        if (!keyDerivation.equals(that.keyDerivation)) return false;
+        if (!Arrays.equals(masterSalt, that.masterSalt)) return false;
+        if (prp != that.prp) return false;
+        if (n != that.n) return false;
+        for (int k = 0; k < 2 * n; k++) {
+            if (!value(k).equals(that.value(k))) return false;
+        }
         return true;
     }
 
     @Override
     public int hashCode() {
         int result = Arrays.hashCode(r);
-        result = 31 * result + Arrays.hashCode(table);
+        result = 31 * result + keyDerivation.hashCode();
+        result = 31 * result + Arrays.hashCode(masterSalt);
+        result = 31 * result + prp.hashCode();
+        for (int k = 0; k < 2 * n; k++) {
+            result = 31 * result + value(k).hashCode();
+        }
         return result;
     }
 }
@@ -1,32 +1,99 @@
 package seclogin.instructiontable;
 
-import seclogin.instructiontable.InstructionTable.Entry;
+import seclogin.crypto.KeyDerivation;
+import seclogin.crypto.Pbkdf2;
+import seclogin.crypto.Scrypt;
 import seclogin.io.BigIntegerInputStream;
 import seclogin.io.BigIntegerOutputStream;
+import seclogin.io.ByteBufferInputStream;
 
+import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Instruction table I/O.
+ *
+ * Tables are written in the current format version, which begins with the negated version number
+ * so that it can be told apart from the original, unversioned format (which begins with the
+ * non-negative length of r). Tables in any earlier format can still be read.
+ *
+ * The current format ends with the entries' values in fixed-width slots ({@link InstructionTable#SLOT_LEN}
+ * bytes each, alpha then beta for each entry), preceded by the header and the number of entries, as the
+ * table holds them in memory. So a table can be read from a memory-mapped file ({@link #read(File)}) without
+ * parsing its entries: each value is decoded from its slot only when it is used, which is one per feature
+ * for authentication.
+ *
+ * A table's scrypt parameters are read from the table itself, so a table whose scrypt would use more memory
+ * than the configured maximum is rejected as it is read, rather than exhausting memory at login.
  */
 public class InstructionTableIo {
 
+    /** The format version written by {@link #write}. */
+    static final int VERSION = 5;
+
+    private static final byte PBKDF2 = 1;
+    private static final byte SCRYPT = 2;
+
+    private static final byte SHA1PRNG = 1;
+    private static final byte AES_FEISTEL = 2;
+
+    /** The default maximum memory, in bytes, that the scrypt of a table read may use across its lanes: 1 GiB. */
+    public static final long DEFAULT_MAX_SCRYPT_MEMORY = 1L << 30;
+
+    private final long maxScryptMemory;
+
+    /** Constructs an {@link InstructionTableIo} that reads tables whose scrypt fits in {@link #DEFAULT_MAX_SCRYPT_MEMORY}. */
+    public InstructionTableIo() {
+        this(DEFAULT_MAX_SCRYPT_MEMORY);
+    }
+
+    /**
+     * Constructs an {@link InstructionTableIo} that reads tables whose scrypt fits in the given memory, in bytes
+     * (its memory per lane times its number of lanes, which run at once).
+     */
+    public InstructionTableIo(long maxScryptMemory) {
+        checkArgument(maxScryptMemory > 0);
+
+        this.maxScryptMemory = maxScryptMemory;
+    }
+
     /** Writes the given instruction table to the given stream. Closes the stream when done. */
     public void write(InstructionTable table, OutputStream outputStream) throws IOException {
         BigIntegerOutputStream out = new BigIntegerOutputStream(new BufferedOutputStream(outputStream));
         try {
+            out.writeInt(-VERSION);
+            writeKeyDerivation(table.keyDerivation, out);
+            if (table.masterSalt == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(table.masterSalt.length);
+                out.write(table.masterSalt);
+            }
+            writePrp(table.prp, out);
+
             out.writeInt(table.r.length);
             out.write(table.r);
 
-            out.writeInt(table.table.length);
-            for (Entry entry : table.table) {
-                out.writeBigInteger(entry.alpha);
-                out.writeBigInteger(entry.beta);
-            }
+            out.writeInt(table.size());
+            out.writeInt(InstructionTable.SLOT_LEN);
+            ByteBuffer slots = table.slotLen() == InstructionTable.SLOT_LEN ? table.slots() : repack(table);
+            byte[] bytes = new byte[slots.remaining()];
+            slots.get(bytes);
+            out.write(bytes);
             out.flush();
         } finally {
             out.close();
@@ -37,16 +104,207 @@ public class InstructionTableIo {
     public InstructionTable read(InputStream inputStream) throws IOException {
         BigIntegerInputStream in = new BigIntegerInputStream(new BufferedInputStream(inputStream));
         try {
-            byte[] r = new byte[in.readInt()];
-            in.readFully(r);
+            return read(in, null);
+        } finally {
+            in.close();
+        }
+    }
 
-            Entry[] entries = new Entry[in.readInt()];
-            for (int i = 0; i < entries.length; i++) {
-                entries[i] = new Entry(in.readBigInteger(), in.readBigInteger());
-            }
-            return new InstructionTable(r, entries);
+    /**
+     * Reads the instruction table in the given file by mapping it into memory, so that the entries of a table
+     * in the current format are decoded from the file only when they are used. The file must not be modified
+     * in place while the table is in use; {@link #write(InstructionTable, File)} replaces it instead.
+     *
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public InstructionTable read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // the mapping remains valid after the file is closed
+            return read(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length()));
         } finally {
             in.close();
         }
     }
+
+    /**
+     * Reads the instruction table in the given buffer, from its position (which is left unchanged). The entries
+     * of a table in the current format are decoded from the buffer only when they are used.
+     */
+    public InstructionTable read(ByteBuffer buffer) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        return read(new BigIntegerInputStream(new ByteBufferInputStream(source)), source);
+    }
+
+    /**
+     * Writes the given instruction table to the given file, replacing the file (rather than overwriting it)
+     * so that a table still being read from it by {@link #read(File)} is unaffected.
+     */
+    public void write(InstructionTable table, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        write(table, new FileOutputStream(temp));
+        if (!temp.renameTo(file)) {
+            // some platforms cannot rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads an instruction table from `in`. If `source` is not null, it is the buffer that `in` reads
+     * (unbuffered), and the entries are left in it to be decoded when they are used.
+     */
+    private InstructionTable read(BigIntegerInputStream in, @Nullable ByteBuffer source) throws IOException {
+        int header = in.readInt();
+
+        KeyDerivation keyDerivation;
+        byte[] masterSalt = null;
+        // tables in formats before version 4 all drew their x-coordinates from a SHA1PRNG
+        PrpAlgorithm prp = PrpAlgorithm.SHA1PRNG;
+        int rLen;
+        if (header >= 0) {
+            // unversioned format, whose tables were all keyed with the default key derivation
+            keyDerivation = Pbkdf2.DEFAULT;
+            rLen = header;
+        } else {
+            int version = -header;
+            if (version > VERSION) {
+                throw new IOException("Unsupported instruction table format version " + version);
+            }
+            keyDerivation = readKeyDerivation(in);
+            if (version >= 3) {
+                int masterSaltLen = in.readInt();
+                if (masterSaltLen > 0) {
+                    masterSalt = new byte[masterSaltLen];
+                    in.readFully(masterSalt);
+                }
+            }
+            if (version >= 4) {
+                prp = readPrp(in);
+            }
+            rLen = in.readInt();
+        }
+
+        byte[] r = new byte[rLen];
+        in.readFully(r);
+
+        int n = in.readInt();
+        if (header < 0 && -header >= 5) {
+            int slotLen = in.readInt();
+            if (n < 0 || slotLen <= 0 || (long) n * 2 * slotLen > Integer.MAX_VALUE) {
+                throw new IOException("Invalid slots of " + slotLen + " bytes for " + n + " entries");
+            }
+            int len = n * 2 * slotLen;
+            ByteBuffer slots;
+            if (source != null) {
+                if (source.remaining() < len) {
+                    throw new EOFException();
+                }
+                slots = source.slice();
+                slots.limit(len);
+            } else {
+                byte[] bytes = new byte[len];
+                in.readFully(bytes);
+                slots = ByteBuffer.wrap(bytes);
+            }
+            return new InstructionTable(r, keyDerivation, masterSalt, prp, slots, slotLen);
+        }
+
+        BigInteger[] values = new BigInteger[2 * n];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = in.readBigInteger();
+        }
+        try {
+            return new InstructionTable(r, keyDerivation, masterSalt, prp, InstructionTable.pack(values),
+                    InstructionTable.SLOT_LEN);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Packs the values of the given table into slots of {@link InstructionTable#SLOT_LEN} bytes. */
+    private static ByteBuffer repack(InstructionTable table) {
+        BigInteger[] values = new BigInteger[2 * table.size()];
+        for (int i = 0; i < table.size(); i++) {
+            values[2 * i] = table.alpha(i);
+            values[2 * i + 1] = table.beta(i);
+        }
+        return InstructionTable.pack(values);
+    }
+
+    private static void writeKeyDerivation(KeyDerivation keyDerivation, BigIntegerOutputStream out)
+            throws IOException {
+        if (keyDerivation instanceof Pbkdf2) {
+            Pbkdf2 pbkdf2 = (Pbkdf2) keyDerivation;
+            out.writeByte(PBKDF2);
+            out.writeUTF(pbkdf2.prf.macAlgorithm);
+            out.writeInt(pbkdf2.iterations);
+        } else if (keyDerivation instanceof Scrypt) {
+            Scrypt scrypt = (Scrypt) keyDerivation;
+            out.writeByte(SCRYPT);
+            out.writeInt(scrypt.cost);
+            out.writeInt(scrypt.blockSize);
+            out.writeInt(scrypt.parallelism);
+        } else {
+            throw new IllegalArgumentException("Cannot write key derivation " + keyDerivation);
+        }
+    }
+
+    private static void writePrp(PrpAlgorithm prp, BigIntegerOutputStream out) throws IOException {
+        switch (prp) {
+            case SHA1PRNG:
+                out.writeByte(SHA1PRNG);
+                break;
+            case AES_FEISTEL:
+                out.writeByte(AES_FEISTEL);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot write PRP " + prp);
+        }
+    }
+
+    private static PrpAlgorithm readPrp(BigIntegerInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case SHA1PRNG:
+                return PrpAlgorithm.SHA1PRNG;
+            case AES_FEISTEL:
+                return PrpAlgorithm.AES_FEISTEL;
+            default:
+                throw new IOException("Unknown PRP type " + type);
+        }
+    }
+
+    private KeyDerivation readKeyDerivation(BigIntegerInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case PBKDF2:
+                Pbkdf2.Prf prf;
+                try {
+                    prf = Pbkdf2.Prf.forMacAlgorithm(in.readUTF());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e);
+                }
+                try {
+                    return new Pbkdf2(prf, in.readInt());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e);
+                }
+            case SCRYPT:
+                Scrypt scrypt;
+                try {
+                    // allocates nothing, and bounds each parameter so that the memory does not overflow
+                    scrypt = new Scrypt(in.readInt(), in.readInt(), in.readInt());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e);
+                }
+                if (scrypt.memoryPerLane() * scrypt.parallelism > maxScryptMemory) {
+                    throw new IOException(scrypt + " would use more than " + maxScryptMemory + " bytes");
+                }
+                return scrypt;
+            default:
+                throw new IOException("Unknown key derivation type " + type);
+        }
+    }
 }
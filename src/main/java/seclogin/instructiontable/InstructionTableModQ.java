@@ -6,17 +6,26 @@ import org.slf4j.LoggerFactory;
 import seclogin.HardenedPassword;
 import seclogin.Password;
 import seclogin.SecurityParameters;
-import seclogin.instructiontable.InstructionTable.Entry;
+import seclogin.concurrent.SharedPool;
+import seclogin.crypto.Aes128Ecb;
+import seclogin.crypto.CtrDrbg;
+import seclogin.crypto.KeyDerivation;
 import seclogin.math.Interpolation;
 import seclogin.math.Mod;
+import seclogin.math.PRP;
 import seclogin.math.PasswordBasedPRF;
+import seclogin.math.PooledRandomBigIntModQ;
 import seclogin.math.Point;
 import seclogin.math.Polynomial;
 import seclogin.math.RandomBigIntModQ;
 import seclogin.math.RandomPolynomial;
-import seclogin.math.SparsePRP;
 
+import javax.annotation.Nullable;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -30,19 +39,43 @@ public class InstructionTableModQ {
 
     private static final Logger log = LoggerFactory.getLogger(InstructionTableModQ.class);
 
+    private static final int POLLUTION_KEY_LEN = 128 / Byte.SIZE;
+
     private final Mod q;
     private final Random random;
+    private final InstructionTableParams params;
     private final RandomBigIntModQ randomBigIntModQ;
     private final RandomPolynomial randomPolynomial;
 
+    /** Constructs an {@link InstructionTableModQ} that generates tables with {@link InstructionTableParams#DEFAULT}. */
     public InstructionTableModQ(Mod q, Random random) {
+        this(q, random, InstructionTableParams.DEFAULT);
+    }
+
+    /**
+     * Constructs an {@link InstructionTableModQ} that generates tables with the given parameters.
+     * Existing tables are always read with the parameters they record.
+     */
+    public InstructionTableModQ(Mod q, Random random, InstructionTableParams params) {
+        this(q, random, params, new RandomBigIntModQ(random, q));
+    }
+
+    /**
+     * Constructs an {@link InstructionTableModQ} that generates tables with the given parameters, drawing
+     * hardened passwords and polynomial coefficients from `elements` (such as a {@link PooledRandomBigIntModQ}
+     * of ''ℤ,,q,,'') and the rest of its randomness from `random`.
+     */
+    public InstructionTableModQ(Mod q, Random random, InstructionTableParams params, RandomBigIntModQ elements) {
         checkNotNull(q);
         checkNotNull(random);
+        checkNotNull(params);
+        checkNotNull(elements);
 
         this.q = q;
         this.random = random;
-        randomBigIntModQ = new RandomBigIntModQ(random, q);
-        randomPolynomial = new RandomPolynomial(random, q);
+        this.params = params;
+        randomBigIntModQ = elements;
+        randomPolynomial = new RandomPolynomial(elements);
     }
 
     /**
@@ -50,14 +83,33 @@ public class InstructionTableModQ {
      * using the given regular password and measurements.
      */
     public HardenedPassword interpolateHpwd(InstructionTable table, Password pwd, Distinguishment[] distinguishments) {
-        checkNotNull(table);
         checkNotNull(pwd);
+
+        return interpolateHpwd(table, new TableKeys(pwd), distinguishments);
+    }
+
+    /**
+     * Interpolates the hardened password using the (x,y) pairs recovered from the given table
+     * using the given keys (of the regular password) and measurements.
+     */
+    public HardenedPassword interpolateHpwd(InstructionTable table, TableKeys keys, Distinguishment[] distinguishments) {
+        checkNotNull(table);
+        checkNotNull(keys);
         checkNotNull(distinguishments);
 
-        List<Point> points = table.points(q, pwd, distinguishments);
+        List<Point> points = table.points(q, keys, distinguishments);
         return new HardenedPassword(new Interpolation(points, q).yIntercept());
     }
 
+    /**
+     * Recovers both (x,y) pairs of every feature from the given table using the given keys (of the
+     * regular password), from which the hardened password can be interpolated cheaply for many
+     * alternative distinguishments.
+     */
+    public TableInterpolation interpolation(InstructionTable table, TableKeys keys) {
+        return new TableInterpolation(table, q, keys);
+    }
+
     /**
      * Generates a hardened password mod q.
      */
@@ -70,50 +122,194 @@ public class InstructionTableModQ {
      * the given regular password, and the given feature distinguishments for the user.
      */
     public InstructionTable generate(HardenedPassword hpwd, Password pwd, Distinguishment[] distinguishments) {
+        checkNotNull(pwd);
+
+        return generate(hpwd, new TableKeys(pwd), distinguishments, nextSalts(null));
+    }
+
+    /**
+     * Generates an instruction table using the given corresponding hardened password, the given keys
+     * (of the regular password), and the given feature distinguishments for the user, to replace the
+     * given previous table (if any). See {@link #nextSalts} and {@link #upgradeSalts}.
+     */
+    public InstructionTable generate(HardenedPassword hpwd, TableKeys keys, Distinguishment[] distinguishments,
+                                     @Nullable InstructionTable previous) {
+        return generate(hpwd, keys, distinguishments, upgradeSalts(nextSalts(previous), previous));
+    }
+
+    /**
+     * Draws the salts of the next instruction table, which will replace the given previous table (if any),
+     * before the user is authenticated.
+     *
+     * The next table uses the configured key derivation, unless the previous table uses another one and
+     * upgrades are limited by an {@link InstructionTableParams#upgradeBudget upgrade budget}, in which case it
+     * keeps the previous table's: the upgrade is deferred to {@link #upgradeSalts}, so that failed logins never
+     * start (or pay for) upgraded key derivations. If the next table uses a master key, it carries over the
+     * master salt of the previous table when it can, so that the master key already derived for the previous
+     * table is reused.
+     */
+    public TableSalts nextSalts(@Nullable InstructionTable previous) {
+        byte[] r = new byte[SecurityParameters.R_LEN/Byte.SIZE];
+        random.nextBytes(r);
+
+        KeyDerivation keyDerivation = params.keyDerivation;
+        if (previous != null && !previous.keyDerivation.equals(keyDerivation) && params.upgradeBudget != null) {
+            keyDerivation = previous.keyDerivation;
+        }
+        return new TableSalts(r, keyDerivation, masterSalt(previous, keyDerivation), PrpAlgorithm.DEFAULT, null);
+    }
+
+    /**
+     * Once the user is authenticated, upgrades the given salts drawn by {@link #nextSalts} for the given
+     * previous table (if any) to the configured key derivation if they deferred that upgrade and the
+     * {@link InstructionTableParams#upgradeBudget upgrade budget} has room for it, reserving its cost.
+     * Otherwise returns the given salts.
+     */
+    public TableSalts upgradeSalts(TableSalts salts, @Nullable InstructionTable previous) {
+        checkNotNull(salts);
+
+        KeyDerivation keyDerivation = params.keyDerivation;
+        if (previous == null || params.upgradeBudget == null
+                || previous.keyDerivation.equals(keyDerivation) || salts.keyDerivation.equals(keyDerivation)) {
+            return salts;
+        }
+
+        KdfUpgradeBudget.Reservation upgrade = params.upgradeBudget.tryReserve();
+        if (upgrade == null) {
+            log.debug("Upgrade budget exhausted; keeping key derivation {}", previous.keyDerivation);
+            return salts;
+        }
+        log.debug("Upgrading key derivation from {} to {}", previous.keyDerivation, keyDerivation);
+        return new TableSalts(salts.r, keyDerivation, masterSalt(previous, keyDerivation), salts.prp, upgrade);
+    }
+
+    /** The master salt of a table that uses the given key derivation to replace the given previous table (if any). */
+    @Nullable
+    private byte[] masterSalt(@Nullable InstructionTable previous, KeyDerivation keyDerivation) {
+        byte[] masterSalt = null;
+        if (params.keySchedule == KeySchedule.MASTER_KEY) {
+            if (previous != null && previous.masterSalt != null && previous.keyDerivation.equals(keyDerivation)) {
+                masterSalt = previous.masterSalt;
+            } else {
+                masterSalt = new byte[SecurityParameters.R_LEN/Byte.SIZE];
+                random.nextBytes(masterSalt);
+            }
+        }
+        return masterSalt;
+    }
+
+    /**
+     * Generates an instruction table with the given salts using the given corresponding hardened password,
+     * the given keys (of the regular password), and the given feature distinguishments for the user.
+     *
+     * Each feature draws its pollution (if any) from its own AES-CTR keystream under the table's pollution key,
+     * with the feature's index as the nonce, so the features can be generated in any order, or split across threads if
+     * {@link InstructionTableParams#parallelGeneration}, and still yield the same table.
+     */
+    public InstructionTable generate(HardenedPassword hpwd, TableKeys keys, Distinguishment[] distinguishments,
+                                     TableSalts salts) {
+        return generate(hpwd, keys, distinguishments, salts, params.parallelGeneration ? SharedPool.PROCESSORS : 1);
+    }
+
+    /** {@link #generate(HardenedPassword, TableKeys, Distinguishment[], TableSalts)} in (up to) the given number of chunks. */
+    InstructionTable generate(HardenedPassword hpwd, TableKeys keys, final Distinguishment[] distinguishments,
+                              final TableSalts salts, int chunks) {
         checkNotNull(hpwd);
         checkArgument(q.contains(hpwd.hpwd));
-        checkNotNull(pwd);
+        checkNotNull(keys);
         checkNotNull(distinguishments);
+        checkNotNull(salts);
 
         BigInteger f0 = hpwd.hpwd;
         Polynomial f = randomPolynomial.nextPolynomial(f0, distinguishments.length);
-
-        byte[] r = new byte[SecurityParameters.R_LEN/Byte.SIZE];
-        random.nextBytes(r);
+        byte[] pollutionKeyBytes = new byte[POLLUTION_KEY_LEN];
+        random.nextBytes(pollutionKeyBytes);
+        final SecretKey pollutionKey = new SecretKeySpec(pollutionKeyBytes, "AES");
+        Arrays.fill(pollutionKeyBytes, (byte) 0);
 
         log.debug("Generating instruction table");
-        log.debug("r = {}", BaseEncoding.base16().lowerCase().encode(r));
+        log.debug("r = {}", BaseEncoding.base16().lowerCase().encode(salts.r));
         log.debug("hpwd = {}", hpwd);
+        log.debug("kdf = {}", salts.keyDerivation);
+        log.debug("prp = {}", salts.prp);
+        if (salts.masterSalt != null) {
+            log.debug("masterSalt = {}", BaseEncoding.base16().lowerCase().encode(salts.masterSalt));
+        }
 
-        PasswordBasedPRF g = PasswordBasedPRF.forSaltedPassword(r, pwd, q);
-        SparsePRP p = new SparsePRP(r, q);
+        final SecretKey prfKey = keys.prfKey(salts);
+        final BigInteger[] xs = new BigInteger[2 * distinguishments.length];
+        final BigInteger[] gs = new BigInteger[2 * distinguishments.length];
+        SharedPool.runChunks(distinguishments.length, chunks, new SharedPool.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                // neither the PRF nor the PRP is thread-safe
+                PasswordBasedPRF g = PasswordBasedPRF.forKey(prfKey, q);
+                PRP p = salts.prp.forKey(salts.r, q);
+                int[] inputs = new int[2 * (to - from)];
+                for (int k = 0; k < inputs.length; k++) {
+                    inputs[k] = 2 * from + k;
+                    xs[inputs[k]] = p.apply(inputs[k]);
+                }
+                BigInteger[] out = new BigInteger[inputs.length];
+                g.of(inputs, out);
+                System.arraycopy(out, 0, gs, 2 * from, out.length);
+            }
+        });
+        // already split across threads if the table is large
+        final BigInteger[] ys = f.apply(xs);
 
-        Entry[] table = new Entry[distinguishments.length];
-        for (int i = 0; i < table.length; i++) {
-            Distinguishment distinguishment = distinguishments[i];
-            log.debug("Feature i = {}", i);
-            log.debug("distinguishment = {}", distinguishment);
+        // the chunks pack their features' values into disjoint slots
+        final byte[] slots = new byte[2 * distinguishments.length * InstructionTable.SLOT_LEN];
+        SharedPool.runChunks(distinguishments.length, chunks, new SharedPool.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                // the cipher is not thread-safe
+                Aes128Ecb pollution = new Aes128Ecb(pollutionKey);
+                for (int i = from; i < to; i++) {
+                    entry(i, distinguishments[i], ys, gs, pollution, slots);
+                }
+            }
+        });
+        return new InstructionTable(salts.r, salts.keyDerivation, salts.masterSalt, salts.prp,
+                ByteBuffer.wrap(slots), InstructionTable.SLOT_LEN);
+    }
 
-            BigInteger y0 = f.apply(p.apply(2*i));
-            BigInteger alpha = y0.add(g.of(2*i)).mod(q.q);
+    /**
+     * Generates the values of feature `i` from the polynomial's values and the PRF's values, and packs them
+     * into its slots. A polluted value is drawn from the keystream of nonce `i` under the given cipher.
+     */
+    private void entry(int i, @Nullable Distinguishment distinguishment, BigInteger[] ys, BigInteger[] gs,
+                       Aes128Ecb pollutionCipher, byte[] slots) {
+        log.debug("Feature i = {}", i);
+        log.debug("distinguishment = {}", distinguishment);
+
+        CtrDrbg.Keystream pollution = distinguishment == null ? null : new CtrDrbg.Keystream(pollutionCipher, i);
+
+        BigInteger alpha = ys[2*i].add(gs[2*i]).mod(q.q);
+        log.debug("alpha = {}", alpha.toString(16));
+        if (distinguishment == BETA) {
+            log.debug("Polluting alpha");
+            alpha = pollute(pollution, alpha);
             log.debug("alpha = {}", alpha.toString(16));
-            if (distinguishment == BETA) {
-                log.debug("Polluting alpha");
-                alpha = randomBigIntModQ.nextBigIntegerModQNotEqualTo(alpha);
-                log.debug("alpha = {}", alpha.toString(16));
-            }
+        }
 
-            BigInteger y1 = f.apply(p.apply((2*i)+1));
-            BigInteger beta = y1.add(g.of((2*i)+1)).mod(q.q);
+        BigInteger beta = ys[(2*i)+1].add(gs[(2*i)+1]).mod(q.q);
+        log.debug("beta = {}", beta.toString(16));
+        if (distinguishment == ALPHA) {
+            log.debug("Polluting beta");
+            beta = pollute(pollution, beta);
             log.debug("beta = {}", beta.toString(16));
-            if (distinguishment == ALPHA) {
-                log.debug("Polluting beta");
-                beta = randomBigIntModQ.nextBigIntegerModQNotEqualTo(beta);
-                log.debug("beta = {}", beta.toString(16));
-            }
+        }
+
+        InstructionTable.pack(alpha, slots, 2*i);
+        InstructionTable.pack(beta, slots, (2*i)+1);
+    }
 
-            table[i] = new Entry(alpha, beta);
+    /** Draws a uniformly random element of ''ℤ,,q,,'' not equal to the given value from the given keystream. */
+    private BigInteger pollute(CtrDrbg.Keystream pollution, BigInteger forbidden) {
+        while (true) {
+            BigInteger x = pollution.nextBigInteger(q.q);
+            if (!x.equals(forbidden)) return x;
         }
-        return new InstructionTable(r, table);
     }
 }
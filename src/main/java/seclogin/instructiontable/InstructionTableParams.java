@@ -0,0 +1,77 @@
+package seclogin.instructiontable;
+
+import seclogin.crypto.KeyDerivation;
+import seclogin.crypto.Pbkdf2;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/** Parameters that govern how new instruction tables are generated. */
+public class InstructionTableParams {
+
+    public static final InstructionTableParams DEFAULT =
+            new InstructionTableParams(Pbkdf2.DEFAULT, KeySchedule.PER_TABLE);
+
+    /** How the PRF keys of new tables are derived from the regular password. */
+    public final KeyDerivation keyDerivation;
+
+    /** Whether new tables derive their PRF keys directly or from a per-user master key. */
+    public final KeySchedule keySchedule;
+
+    /**
+     * Caps the time spent moving users whose tables use another key derivation to {@link #keyDerivation},
+     * or null if every user is moved on their next successful login. Tables that are not moved keep
+     * their previous key derivation.
+     */
+    @Nullable public final KdfUpgradeBudget upgradeBudget;
+
+    /**
+     * Whether the features of new tables are split across a shared pool of threads (one per processor).
+     * A table generated in parallel is the same as one generated on the calling thread alone.
+     */
+    public final boolean parallelGeneration;
+
+    public InstructionTableParams(KeyDerivation keyDerivation, KeySchedule keySchedule) {
+        this(keyDerivation, keySchedule, null);
+    }
+
+    public InstructionTableParams(KeyDerivation keyDerivation, KeySchedule keySchedule,
+                                  @Nullable KdfUpgradeBudget upgradeBudget) {
+        this(keyDerivation, keySchedule, upgradeBudget, false);
+    }
+
+    public InstructionTableParams(KeyDerivation keyDerivation, KeySchedule keySchedule,
+                                  @Nullable KdfUpgradeBudget upgradeBudget, boolean parallelGeneration) {
+        this.keyDerivation = checkNotNull(keyDerivation);
+        this.keySchedule = checkNotNull(keySchedule);
+        this.upgradeBudget = upgradeBudget;
+        this.parallelGeneration = parallelGeneration;
+    }
+
+    public InstructionTableParams withKeyDerivation(KeyDerivation keyDerivation) {
+        return new InstructionTableParams(keyDerivation, keySchedule, upgradeBudget, parallelGeneration);
+    }
+
+    public InstructionTableParams withKeySchedule(KeySchedule keySchedule) {
+        return new InstructionTableParams(keyDerivation, keySchedule, upgradeBudget, parallelGeneration);
+    }
+
+    public InstructionTableParams withUpgradeBudget(@Nullable KdfUpgradeBudget upgradeBudget) {
+        return new InstructionTableParams(keyDerivation, keySchedule, upgradeBudget, parallelGeneration);
+    }
+
+    public InstructionTableParams withParallelGeneration(boolean parallelGeneration) {
+        return new InstructionTableParams(keyDerivation, keySchedule, upgradeBudget, parallelGeneration);
+    }
+
+    @Override
+    public String toString() {
+        return "InstructionTableParams{" +
+                "keyDerivation=" + keyDerivation +
+                ", keySchedule=" + keySchedule +
+                ", upgradeBudget=" + upgradeBudget +
+                ", parallelGeneration=" + parallelGeneration +
+                '}';
+    }
+}
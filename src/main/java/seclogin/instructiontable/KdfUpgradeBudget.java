@@ -0,0 +1,111 @@
+package seclogin.instructiontable;
+
+import com.google.common.base.Ticker;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Caps the time spent deriving keys for instruction tables that move a user to a new key derivation
+ * (such as a higher PBKDF2 iteration count), so that raising the cost does not flood the host with
+ * re-derivations as every user logs in.
+ *
+ * A token bucket holding up to a minute's worth of budget. An upgrade may start while the bucket is
+ * not empty, and atomically {@link #tryReserve reserves} its estimated cost (the time the most recent
+ * upgrade took, or everything left in the bucket until one has completed), so that concurrent upgrades
+ * cannot all start on the same budget. Once its derivation is done, the reservation is settled for the
+ * time it actually took. So the bucket only goes into debt by as much as the reservations fall short of
+ * the actual costs. Thread-safe.
+ */
+public class KdfUpgradeBudget {
+
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final long nanosPerMinute;
+    private final Ticker ticker;
+
+    private long available;
+    private long lastRefill;
+    /** The time the most recent upgrade took, or 0 if none has completed. */
+    private long estimate;
+
+    /** @param millisPerMinute the time per minute that may be spent on upgrades */
+    public KdfUpgradeBudget(long millisPerMinute) {
+        this(millisPerMinute, Ticker.systemTicker());
+    }
+
+    KdfUpgradeBudget(long millisPerMinute, Ticker ticker) {
+        checkArgument(millisPerMinute > 0);
+        checkNotNull(ticker);
+
+        this.nanosPerMinute = TimeUnit.MILLISECONDS.toNanos(millisPerMinute);
+        this.ticker = ticker;
+        available = nanosPerMinute;
+        lastRefill = ticker.read();
+    }
+
+    /** Reserves the estimated cost of an upgrade if one may start now, or returns null if not. */
+    @Nullable
+    synchronized Reservation tryReserve() {
+        refill();
+        if (available <= 0) {
+            return null;
+        }
+        long reserved = estimate > 0 ? estimate : available;
+        available -= reserved;
+        return new Reservation(reserved);
+    }
+
+    /** The current time, in nanoseconds, by which upgrades are measured. */
+    long now() {
+        return ticker.read();
+    }
+
+    private synchronized void settle(Reservation reservation, long nanos) {
+        refill();
+        available += reservation.nanos - nanos;
+        estimate = nanos;
+    }
+
+    private void refill() {
+        long now = ticker.read();
+        long refill = (long) ((double) (now - lastRefill) * nanosPerMinute / MINUTE_NANOS);
+        available = Math.min(nanosPerMinute, available + refill);
+        lastRefill = now;
+    }
+
+    /** The budget reserved for an upgrade, which is settled once with the time the upgrade actually took. */
+    class Reservation {
+
+        private final long nanos;
+        private boolean settled;
+
+        private Reservation(long nanos) {
+            this.nanos = nanos;
+        }
+
+        /** The current time, in nanoseconds, by which upgrades are measured. */
+        long now() {
+            return KdfUpgradeBudget.this.now();
+        }
+
+        /** Settles this reservation with the given time spent on the upgrade; does nothing if already settled. */
+        void settle(long nanos) {
+            synchronized (KdfUpgradeBudget.this) {
+                if (settled) {
+                    return;
+                }
+                settled = true;
+                KdfUpgradeBudget.this.settle(this, nanos);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KdfUpgradeBudget{" + TimeUnit.NANOSECONDS.toMillis(nanosPerMinute) + " ms per minute}";
+    }
+}
@@ -0,0 +1,15 @@
+package seclogin.instructiontable;
+
+/** How the PRF key of an instruction table is derived from the regular password. */
+public enum KeySchedule {
+
+    /** Each table's PRF key is derived from the password by the (expensive) key derivation, salted with r. */
+    PER_TABLE,
+
+    /**
+     * A per-user master key is derived from the password by the (expensive) key derivation, salted with a
+     * long-lived master salt that carries over from table to table. Each table's PRF key is then derived
+     * from the master key by HKDF, salted with r, so a login needs only one expensive derivation.
+     */
+    MASTER_KEY
+}
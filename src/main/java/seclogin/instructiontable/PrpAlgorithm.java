@@ -0,0 +1,31 @@
+package seclogin.instructiontable;
+
+import seclogin.math.FeistelPRP;
+import seclogin.math.Mod;
+import seclogin.math.PRP;
+import seclogin.math.SparsePRP;
+
+/** How the x-coordinates of an instruction table are drawn from its salt r. */
+enum PrpAlgorithm {
+
+    /** The ''i''-th x-coordinate is the ''i''-th distinct output of a SHA1PRNG seeded with r. */
+    SHA1PRNG {
+        @Override
+        PRP forKey(byte[] r, Mod q) {
+            return new SparsePRP(r, q);
+        }
+    },
+
+    /** The ''i''-th x-coordinate is the image of ''i'' under a Feistel network keyed with r. */
+    AES_FEISTEL {
+        @Override
+        PRP forKey(byte[] r, Mod q) {
+            return new FeistelPRP(r, q);
+        }
+    };
+
+    /** The algorithm of newly generated tables. */
+    static final PrpAlgorithm DEFAULT = AES_FEISTEL;
+
+    abstract PRP forKey(byte[] r, Mod q);
+}
@@ -0,0 +1,89 @@
+package seclogin.instructiontable;
+
+import seclogin.HardenedPassword;
+import seclogin.math.LagrangeBasis;
+import seclogin.math.Mod;
+import seclogin.math.ModQ;
+import seclogin.math.PRP;
+import seclogin.math.PasswordBasedPRF;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static seclogin.instructiontable.Distinguishment.ALPHA;
+
+/**
+ * Interpolates the hardened password from an instruction table for any number of alternative
+ * distinguishments, as from {@link InstructionTableModQ#interpolateHpwd} for each.
+ *
+ * Both (x,y) pairs of every feature are recovered up front, and their {@link LagrangeBasis} computed once,
+ * so that each alternative costs ''O(n)'' multiplications per feature whose distinguishment differs from
+ * the previous alternative's (and never more than ''O(n^2^)''). Not thread-safe.
+ */
+public class TableInterpolation {
+
+    private final ModQ f;
+    private final int n;
+    private final LagrangeBasis basis;
+    /** slots ''2i'' and ''2i + 1'': the y-coordinates of feature ''i'' for {@link Distinguishment#ALPHA} and {@link Distinguishment#BETA} */
+    private final long[] ys;
+    private final long[] y0;
+
+    TableInterpolation(InstructionTable table, Mod q, TableKeys keys) {
+        checkNotNull(table);
+        checkNotNull(q);
+        checkNotNull(keys);
+        checkArgument(ModQ.supports(q), "Unsupported modulus %s", q);
+
+        f = new ModQ(q);
+        n = table.size();
+
+        PasswordBasedPRF g = PasswordBasedPRF.forKey(keys.prfKey(table), q);
+        PRP p = table.prp.forKey(table.r, q);
+        int[] inputs = new int[2 * n];
+        for (int k = 0; k < inputs.length; k++) {
+            inputs[k] = k;
+        }
+        long[] gs = f.newElements(2 * n);
+        g.of(inputs, f, gs);
+        long[] xs = f.newElements(2 * n);
+        ys = f.newElements(2 * n);
+        for (int i = 0; i < n; i++) {
+            f.set(p.apply(2 * i), xs, 2 * i);
+            f.set(p.apply(2 * i + 1), xs, 2 * i + 1);
+            f.set(table.alpha(i), ys, 2 * i);
+            f.set(table.beta(i), ys, 2 * i + 1);
+        }
+        for (int k = 0; k < 2 * n; k++) {
+            f.subtract(ys, k, gs, k, ys, k);
+        }
+        basis = new LagrangeBasis(f, xs, n);
+        y0 = f.newElements(1);
+    }
+
+    /** Interpolates the hardened password from the (x,y) pairs selected by the given distinguishments. */
+    public HardenedPassword interpolateHpwd(Distinguishment[] distinguishments) {
+        checkArgument(distinguishments.length == n);
+
+        int[] choices = new int[n];
+        int changed = 0;
+        for (int i = 0; i < n; i++) {
+            choices[i] = checkNotNull(distinguishments[i]) == ALPHA ? 0 : 1;
+            if (choices[i] != basis.choice(i)) {
+                changed++;
+            }
+        }
+
+        // a flip costs about 4n multiplications, choosing afresh about n^2
+        if (4 * changed < n) {
+            for (int i = 0; i < n; i++) {
+                if (choices[i] != basis.choice(i)) {
+                    basis.flip(i);
+                }
+            }
+        } else {
+            basis.choose(choices);
+        }
+        basis.yIntercept(ys, y0, 0);
+        return new HardenedPassword(f.get(y0, 0));
+    }
+}
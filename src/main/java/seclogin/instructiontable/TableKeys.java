@@ -0,0 +1,152 @@
+package seclogin.instructiontable;
+
+import seclogin.Password;
+import seclogin.crypto.Hkdf;
+import seclogin.crypto.KeyDerivation;
+
+import javax.annotation.Nullable;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Derives the PRF keys of a user's instruction tables from their regular password, remembering every
+ * expensive key derivation so that a login performs each one at most once.
+ *
+ * A derivation can be {@link #prefetch prefetched} on another thread while this thread derives
+ * others. Whichever thread asks for a derivation first performs it; the other waits for its result.
+ */
+public class TableKeys {
+
+    private static final int KEY_LEN_IN_BYTES = 128 / Byte.SIZE;
+    private static final byte[] HKDF_INFO = "seclogin instruction table PRF key".getBytes(Charset.forName("UTF-8"));
+
+    private final Password password;
+    private final Map<Derivation, FutureTask<byte[]>> derived = new HashMap<Derivation, FutureTask<byte[]>>();
+
+    public TableKeys(Password password) {
+        this.password = checkNotNull(password);
+    }
+
+    /** Starts the expensive key derivation of a table with the given salts on the given executor. */
+    public void prefetch(TableSalts salts, Executor executor) {
+        checkNotNull(salts);
+        checkNotNull(executor);
+
+        executor.execute(task(salts.keyDerivation, expensiveSalt(salts), salts.upgrade));
+    }
+
+    /** Cancels every derivation that has not started yet, such as prefetches that are no longer needed. */
+    public synchronized void cancel() {
+        for (FutureTask<byte[]> task : derived.values()) {
+            task.cancel(false);
+        }
+    }
+
+    /** Returns the PRF key of the given table. */
+    SecretKey prfKey(InstructionTable table) {
+        return prfKey(table.r, table.keyDerivation, table.masterSalt, null);
+    }
+
+    /** Returns the PRF key of a table with the given salts. */
+    SecretKey prfKey(TableSalts salts) {
+        return prfKey(salts.r, salts.keyDerivation, salts.masterSalt, salts.upgrade);
+    }
+
+    /**
+     * Returns the PRF key of a table with the given r, key derivation, and master salt (if any),
+     * settling the given upgrade reservation (if any) with the time the expensive derivation (if performed) took.
+     */
+    private SecretKey prfKey(byte[] r, KeyDerivation keyDerivation, @Nullable byte[] masterSalt,
+                             @Nullable KdfUpgradeBudget.Reservation upgrade) {
+        byte[] key;
+        if (masterSalt == null) {
+            key = derive(keyDerivation, r, upgrade);
+        } else {
+            key = Hkdf.derive(r, derive(keyDerivation, masterSalt, upgrade), HKDF_INFO, KEY_LEN_IN_BYTES);
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static byte[] expensiveSalt(TableSalts salts) {
+        return salts.masterSalt == null ? salts.r : salts.masterSalt;
+    }
+
+    private byte[] derive(KeyDerivation keyDerivation, byte[] salt, @Nullable KdfUpgradeBudget.Reservation upgrade) {
+        FutureTask<byte[]> task = task(keyDerivation, salt, upgrade);
+        // does nothing if the derivation has already been started by another thread
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private synchronized FutureTask<byte[]> task(final KeyDerivation keyDerivation, final byte[] salt,
+                                                 @Nullable final KdfUpgradeBudget.Reservation upgrade) {
+        Derivation derivation = new Derivation(keyDerivation, salt);
+        FutureTask<byte[]> task = derived.get(derivation);
+        if (task == null || task.isCancelled()) {
+            task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    if (upgrade == null) {
+                        return keyDerivation.deriveKey(salt, password, KEY_LEN_IN_BYTES);
+                    }
+                    long start = upgrade.now();
+                    try {
+                        return keyDerivation.deriveKey(salt, password, KEY_LEN_IN_BYTES);
+                    } finally {
+                        upgrade.settle(upgrade.now() - start);
+                    }
+                }
+            });
+            derived.put(derivation, task);
+        }
+        return task;
+    }
+
+    /** An expensive derivation of key material from the password. */
+    private static class Derivation {
+        final KeyDerivation keyDerivation;
+        final byte[] salt;
+
+        Derivation(KeyDerivation keyDerivation, byte[] salt) {
+            this.keyDerivation = checkNotNull(keyDerivation);
+            this.salt = checkNotNull(salt).clone();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Derivation that = (Derivation) o;
+            if (!keyDerivation.equals(that.keyDerivation)) return false;
+            if (!Arrays.equals(salt, that.salt)) return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = keyDerivation.hashCode();
+            result = 31 * result + Arrays.hashCode(salt);
+            return result;
+        }
+    }
+}
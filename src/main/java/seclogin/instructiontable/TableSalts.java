@@ -0,0 +1,30 @@
+package seclogin.instructiontable;
+
+import seclogin.crypto.KeyDerivation;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The salts and key derivation of an instruction table that is yet to be generated. These do not
+ * depend on the table's contents, so they can be drawn (and its PRF key derived) ahead of time.
+ */
+public class TableSalts {
+
+    final byte[] r;
+    final KeyDerivation keyDerivation;
+    @Nullable final byte[] masterSalt;
+    final PrpAlgorithm prp;
+    /** The budget reserved for deriving the table's key if the table upgrades its key derivation, or null. */
+    @Nullable final KdfUpgradeBudget.Reservation upgrade;
+
+    TableSalts(byte[] r, KeyDerivation keyDerivation, @Nullable byte[] masterSalt, PrpAlgorithm prp,
+               @Nullable KdfUpgradeBudget.Reservation upgrade) {
+        this.r = checkNotNull(r);
+        this.keyDerivation = checkNotNull(keyDerivation);
+        this.masterSalt = masterSalt;
+        this.prp = checkNotNull(prp);
+        this.upgrade = upgrade;
+    }
+}
@@ -0,0 +1,85 @@
+package seclogin.math;
+
+import seclogin.crypto.Aes128Ecb;
+import seclogin.crypto.Hkdf;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static seclogin.crypto.Aes128Ecb.BLOCK_LEN;
+
+/**
+ * A pseudo-random permutation (PRP) in ''ℤ,,q,,'' that computes the image of any input directly,
+ * with no state beyond its key.
+ *
+ * A balanced Feistel network, whose round function is AES-128, permutes the ''2h''-bit integers,
+ * where ''2h'' is the bit length of `q` rounded up to an even number. Its images that fall outside
+ * ''ℤ,,q,,'' are permuted again (cycle-walking) until one falls inside, which takes fewer than four
+ * rounds of the network on average. Not thread-safe, but cheap to construct.
+ */
+public class FeistelPRP implements PRP {
+
+    private static final int ROUNDS = 10;
+    private static final byte[] HKDF_INFO = "seclogin instruction table PRP".getBytes(Charset.forName("UTF-8"));
+
+    private final Mod q;
+    private final Aes128Ecb aes;
+    /** The number of bits ''h'' in each half of the network. */
+    private final int halfLen;
+    private final BigInteger halfMask;
+
+    private final byte[] block = new byte[BLOCK_LEN];
+
+    public FeistelPRP(byte[] key, Mod q) {
+        checkNotNull(key);
+        checkNotNull(q);
+        // a half must fit in a block after the round number
+        checkArgument(q.q.bitLength() <= 2 * (BLOCK_LEN - 1) * Byte.SIZE, "Unsupported modulus %s", q);
+
+        this.q = q;
+        this.aes = new Aes128Ecb(new SecretKeySpec(Hkdf.derive(new byte[0], key, HKDF_INFO, 16), "AES"));
+        this.halfLen = (q.q.bitLength() + 1) / 2;
+        this.halfMask = BigInteger.ONE.shiftLeft(halfLen).subtract(BigInteger.ONE);
+    }
+
+    @Override
+    public BigInteger apply(int i) {
+        checkArgument(i >= 0);
+        BigInteger x = BigInteger.valueOf(i);
+        checkArgument(q.contains(x));
+
+        do {
+            x = permute(x);
+        } while (!q.contains(x));
+        return x;
+    }
+
+    /** One pass of the Feistel network over the ''2h''-bit integers. */
+    private BigInteger permute(BigInteger x) {
+        BigInteger left = x.shiftRight(halfLen);
+        BigInteger right = x.and(halfMask);
+        for (int round = 0; round < ROUNDS; round++) {
+            BigInteger next = left.xor(roundFunction(round, right));
+            left = right;
+            right = next;
+        }
+        return left.shiftLeft(halfLen).or(right);
+    }
+
+    /** AES of the round number followed by `half`, truncated to ''h'' bits. */
+    private BigInteger roundFunction(int round, BigInteger half) {
+        byte[] bytes = half.toByteArray();
+        // drop the sign byte, if any
+        int len = Math.min(bytes.length, BLOCK_LEN - 1);
+        for (int k = 0; k < BLOCK_LEN; k++) {
+            block[k] = 0;
+        }
+        block[0] = (byte) round;
+        System.arraycopy(bytes, bytes.length - len, block, BLOCK_LEN - len, len);
+        aes.encryptBlocks(block, 0, BLOCK_LEN, block, 0);
+        return new BigInteger(1, block).and(halfMask);
+    }
+}
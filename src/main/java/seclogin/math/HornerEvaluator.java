@@ -0,0 +1,72 @@
+package seclogin.math;
+
+import seclogin.concurrent.SharedPool;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Evaluates a polynomial at a batch of x-coordinates on the {@link ModQ} engine with Horner's rule,
+ * ''f(x) = c,,0,, + x(c,,1,, + x(c,,2,, + ...))'', one {@link ModQ#multiplyAdd} per coefficient.
+ *
+ * Large batches are split across a shared pool of threads (one per processor) as well as the calling
+ * thread. The coefficients are only read, so an evaluator can be shared by threads.
+ */
+public class HornerEvaluator {
+
+    /** The number of multiplications in a batch from which it is split across threads. */
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private final Mod q;
+    private final long[] coefficients;
+    private final int n;
+
+    /**
+     * @param coefficients slots ''[0, n)'' hold the coefficients for ''(1, x, x^2^, ...)'' respectively,
+     *                     in the Montgomery form of a {@link ModQ} for `q`
+     */
+    public HornerEvaluator(Mod q, long[] coefficients, int n) {
+        checkNotNull(q);
+        checkNotNull(coefficients);
+        checkArgument(n > 0 && coefficients.length >= n * ModQ.LIMBS);
+
+        this.q = q;
+        this.coefficients = coefficients;
+        this.n = n;
+    }
+
+    /**
+     * Writes ''f(x)'' into slot ''i'' of `ys` for the ''x'' in each slot ''i'' in ''[0, count)'' of `xs`,
+     * splitting the batch across threads if it is large.
+     */
+    public void evaluate(ModQ f, long[] xs, int count, long[] ys) {
+        if (SharedPool.PROCESSORS > 1 && (long) count * n >= PARALLEL_THRESHOLD) {
+            evaluateInParallel(f, xs, count, ys, SharedPool.PROCESSORS);
+        } else {
+            evaluate(f, xs, 0, count, ys);
+        }
+    }
+
+    /** Writes ''f(x)'' into slot ''i'' of `ys` for the ''x'' in each slot ''i'' in ''[from, to)'' of `xs`. */
+    public void evaluate(ModQ f, long[] xs, int from, int to, long[] ys) {
+        checkArgument(f.q.equals(q));
+
+        for (int i = from; i < to; i++) {
+            f.copy(coefficients, n - 1, ys, i);
+            for (int k = n - 2; k >= 0; k--) {
+                f.multiplyAdd(ys, i, xs, i, coefficients, k, ys, i);
+            }
+        }
+    }
+
+    /** Evaluates the batch in (up to) the given number of chunks, one per thread. */
+    void evaluateInParallel(final ModQ f, final long[] xs, int count, final long[] ys, int chunks) {
+        SharedPool.runChunks(count, chunks, new SharedPool.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                // ModQ is not thread-safe
+                evaluate(from == 0 ? f : new ModQ(q), xs, from, to, ys);
+            }
+        });
+    }
+}
@@ -27,6 +27,26 @@ public class Interpolation {
      * @return the value of the interpolated polynomial evaluated at `0`
      */
     public BigInteger yIntercept() {
+        return ModQ.supports(q) ? yInterceptModQ() : yInterceptBigInteger();
+    }
+
+    /** {@link #yIntercept} on the {@link ModQ} engine, with a single inversion. */
+    BigInteger yInterceptModQ() {
+        int n = points.size();
+        ModQ f = new ModQ(q);
+        long[] xs = f.newElements(n);
+        long[] ys = f.newElements(n);
+        for (int i = 0; i < n; i++) {
+            f.set(points.get(i).x, xs, i);
+            f.set(points.get(i).y, ys, i);
+        }
+        long[] y0 = f.newElements(1);
+        new LagrangeInterpolator(f).yIntercept(xs, ys, n, y0, 0);
+        return f.get(y0, 0);
+    }
+
+    /** {@link #yIntercept} on `BigInteger`s. */
+    BigInteger yInterceptBigInteger() {
         List<BigInteger> terms = new ArrayList<BigInteger>();
         for (int i = 0; i < points.size(); i++) {
             terms.add((points.get(i).y.multiply(lagrangeCoefficient(i))).mod(q.q));
@@ -0,0 +1,156 @@
+package seclogin.math;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Interpolates y-intercepts on the {@link ModQ} engine through ''n'' points, each chosen from a pair of
+ * candidate points, so that many choices can be tried cheaply.
+ *
+ * The candidates of pair ''i'' are ''2i'' and ''2i + 1''. The y-intercept through the chosen points is
+ * ''Σ y,,i,, λ,,i,,'', where ''λ,,i,, = Π,,j≠i,, x,,j,, / (x,,j,, - x,,i,,)'' over the chosen points. Every
+ * factor ''x,,p,, / (x,,p,, - x,,q,,)'' for candidates ''p'' and ''q'' of different pairs is computed once,
+ * with a single inversion, so that choosing all the points anew ({@link #choose}) costs ''O(n^2^)''
+ * multiplications, changing the choice of one pair ({@link #flip}) costs ''O(n)'', and interpolating
+ * through the chosen points ({@link #yIntercept}) costs ''O(n)''. Only the factors take ''O(n^2^)'' space:
+ * the inverse of a factor, which a flip divides out, is recomputed from the inverse of ''x,,p,,''.
+ * Not thread-safe.
+ */
+public class LagrangeBasis {
+
+    private final ModQ f;
+    private final int n;
+    /** slot ''p * 2n + q'': ''x,,p,, / (x,,p,, - x,,q,,)'', the factor of candidate ''p'' in ''λ'' of candidate ''q'' */
+    private final long[] factors;
+    /** slot ''p'': ''x,,p,,'' */
+    private final long[] xs;
+    /** slot ''p'': ''1 / x,,p,,'' */
+    private final long[] xInverses;
+
+    /** The chosen candidate (0 or 1) of each pair. */
+    private final int[] choices;
+    /** slot ''i'': ''λ'' of the chosen candidate of pair ''i'' */
+    private final long[] lambdas;
+    private final long[] scratch;
+
+    /**
+     * @param xs slots ''[0, 2n)'' hold the x-coordinates of the candidates, which must be distinct and non-zero
+     * @throws ArithmeticException if two of the x-coordinates are equal, or one is 0
+     */
+    public LagrangeBasis(ModQ f, long[] xs, int n) {
+        checkNotNull(f);
+        checkNotNull(xs);
+        checkArgument(n > 0 && xs.length >= 2 * n * ModQ.LIMBS);
+
+        this.f = f;
+        this.n = n;
+        int candidates = 2 * n;
+        this.xs = Arrays.copyOf(xs, candidates * ModQ.LIMBS);
+        factors = f.newElements(candidates * candidates);
+        xInverses = f.newElements(candidates);
+        choices = new int[n];
+        lambdas = f.newElements(n);
+        scratch = f.newElements(2);
+
+        // Montgomery's trick over the differences x_p - x_q and then the x_p, in place: each slot first holds
+        // the product of the elements before it, and then, peeling them off in reverse, the element's inverse
+        f.setOne(scratch, 0);
+        for (int p = 0; p < candidates; p++) {
+            for (int q = 0; q < candidates; q++) {
+                if (p / 2 != q / 2) {
+                    f.copy(scratch, 0, factors, p * candidates + q);
+                    f.subtract(xs, p, xs, q, scratch, 1);
+                    f.multiply(scratch, 0, scratch, 1, scratch, 0);
+                }
+            }
+        }
+        for (int p = 0; p < candidates; p++) {
+            f.copy(scratch, 0, xInverses, p);
+            f.multiply(scratch, 0, xs, p, scratch, 0);
+        }
+        f.inverse(scratch, 0, scratch, 0);
+        for (int p = candidates - 1; p >= 0; p--) {
+            f.multiply(scratch, 0, xInverses, p, xInverses, p);
+            f.multiply(scratch, 0, xs, p, scratch, 0);
+        }
+        for (int p = candidates - 1; p >= 0; p--) {
+            for (int q = candidates - 1; q >= 0; q--) {
+                if (p / 2 != q / 2) {
+                    int pq = p * candidates + q;
+                    f.multiply(scratch, 0, factors, pq, factors, pq);
+                    f.subtract(xs, p, xs, q, scratch, 1);
+                    f.multiply(scratch, 0, scratch, 1, scratch, 0);
+                    f.multiply(xs, p, factors, pq, factors, pq);
+                }
+            }
+        }
+
+        choose(new int[n]);
+    }
+
+    /** Chooses candidate ''2i + choices[i]'' of each pair ''i''. */
+    public void choose(int[] choices) {
+        checkArgument(choices.length == n);
+        for (int i = 0; i < n; i++) {
+            checkArgument(choices[i] == 0 || choices[i] == 1);
+        }
+
+        System.arraycopy(choices, 0, this.choices, 0, n);
+        for (int i = 0; i < n; i++) {
+            computeLambda(i);
+        }
+    }
+
+    /** Chooses the other candidate of pair `k`. */
+    public void flip(int k) {
+        checkArgument(k >= 0 && k < n);
+
+        int candidates = 2 * n;
+        int from = 2 * k + choices[k];
+        int to = 2 * k + (1 - choices[k]);
+        for (int i = 0; i < n; i++) {
+            if (i != k) {
+                int q = 2 * i + choices[i];
+                // the inverse of the factor of `from`: (x_from - x_q) / x_from
+                f.subtract(xs, from, xs, q, scratch, 0);
+                f.multiply(scratch, 0, xInverses, from, scratch, 0);
+                f.multiply(lambdas, i, scratch, 0, lambdas, i);
+                f.multiply(lambdas, i, factors, to * candidates + q, lambdas, i);
+            }
+        }
+        choices[k] = 1 - choices[k];
+        computeLambda(k);
+    }
+
+    /** The chosen candidate (0 or 1) of pair `i`. */
+    public int choice(int i) {
+        return choices[i];
+    }
+
+    /**
+     * Writes the y-intercept of the polynomial through the chosen points into slot `o` of `out`,
+     * where slots ''[0, 2n)'' of `ys` hold the y-coordinates of the candidates.
+     */
+    public void yIntercept(long[] ys, long[] out, int o) {
+        checkArgument(ys.length >= 2 * n * ModQ.LIMBS);
+
+        f.setZero(scratch, 0);
+        for (int i = 0; i < n; i++) {
+            f.multiplyAdd(ys, 2 * i + choices[i], lambdas, i, scratch, 0, scratch, 0);
+        }
+        f.copy(scratch, 0, out, o);
+    }
+
+    private void computeLambda(int i) {
+        int candidates = 2 * n;
+        int q = 2 * i + choices[i];
+        f.setOne(lambdas, i);
+        for (int j = 0; j < n; j++) {
+            if (j != i) {
+                f.multiply(lambdas, i, factors, (2 * j + choices[j]) * candidates + q, lambdas, i);
+            }
+        }
+    }
+}
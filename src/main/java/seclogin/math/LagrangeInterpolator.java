@@ -0,0 +1,71 @@
+package seclogin.math;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Interpolates the y-intercept of the unique minimal-degree polynomial through ''n'' points on the
+ * {@link ModQ} engine, with a single inversion.
+ *
+ * The y-intercept is ''Σ y,,i,, * num,,i,, / den,,i,,'', where ''num,,i,, = Π,,j≠i,, x,,j,,'' and
+ * ''den,,i,, = Π,,j≠i,, (x,,j,, - x,,i,,)''. The numerators come from prefix and suffix products of the
+ * x-coordinates, and all of the denominators are inverted at once by {@link ModQ#inverse(long[], int, int,
+ * long[], int) Montgomery's trick}. Its slots are reused across calls. Not thread-safe.
+ */
+public class LagrangeInterpolator {
+
+    private final ModQ f;
+    private long[] e = new long[0];
+
+    public LagrangeInterpolator(ModQ f) {
+        this.f = checkNotNull(f);
+    }
+
+    /**
+     * Writes the y-intercept of the polynomial through the points whose coordinates are in slots
+     * ''[0, n)'' of `xs` and `ys` into slot `o` of `out`.
+     *
+     * @throws ArithmeticException if two of the x-coordinates are equal
+     */
+    public void yIntercept(long[] xs, long[] ys, int n, long[] out, int o) {
+        checkArgument(n > 0);
+        checkArgument(xs.length >= n * ModQ.LIMBS && ys.length >= n * ModQ.LIMBS);
+
+        // slots: [0, n) = den, [n, 2n] = scratch of the inversion, [2n + 1, 3n + 1) = prefix products of xs,
+        // then difference, suffix product, term, sum
+        if (e.length < (3 * n + 5) * ModQ.LIMBS) {
+            e = f.newElements(3 * n + 5);
+        }
+        int den = 0, acc = n, prefix = 2 * n + 1;
+        int diff = 3 * n + 1, suffix = diff + 1, term = diff + 2, sum = diff + 3;
+
+        for (int i = 0; i < n; i++) {
+            f.setOne(e, den + i);
+            for (int j = 0; j < n; j++) {
+                if (i != j) {
+                    f.subtract(xs, j, xs, i, e, diff);
+                    f.multiply(e, den + i, e, diff, e, den + i);
+                }
+            }
+        }
+
+        // invert every denominator in place with a single inversion
+        f.inverse(e, den, n, e, acc);
+
+        f.setOne(e, prefix);
+        for (int i = 1; i < n; i++) {
+            f.multiply(e, prefix + i - 1, xs, i - 1, e, prefix + i);
+        }
+
+        f.setOne(e, suffix);
+        f.setZero(e, sum);
+        for (int i = n - 1; i >= 0; i--) {
+            f.multiply(ys, i, e, den + i, e, term);
+            f.multiply(e, term, e, prefix + i, e, term);
+            f.multiply(e, term, e, suffix, e, term);
+            f.add(e, sum, e, term, e, sum);
+            f.multiply(e, suffix, xs, i, e, suffix);
+        }
+        f.copy(e, sum, out, o);
+    }
+}
@@ -0,0 +1,335 @@
+package seclogin.math;
+
+import seclogin.SecurityParameters;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Fixed-width arithmetic in ''ℤ,,q,,'' for an odd `q` of at most {@link SecurityParameters#Q_LEN} bits,
+ * using Montgomery multiplication.
+ *
+ * Elements live in slots of caller-provided `long[]`s ({@link #newElements}), each slot holding
+ * {@link #LIMBS} 32-bit limbs (least significant first) of the element's Montgomery form ''aR mod q'',
+ * where ''R = 2^Q_LEN^''. Every operation reads its operands from slots and writes its result to a slot,
+ * which may be one of the operands, without allocating; only conversion from and to `BigInteger`s allocates.
+ *
+ * {@link #inverse} assumes that `q` is prime. Not thread-safe.
+ */
+public class ModQ {
+
+    /** The number of 32-bit limbs in an element. */
+    public static final int LIMBS = SecurityParameters.Q_LEN / 32;
+
+    private static final long MASK = 0xffffffffL;
+
+    public final Mod q;
+
+    private final long[] m = new long[LIMBS];
+    /** ''-q^-1^ mod 2^32^'' */
+    private final long mPrime;
+    /** ''R^2^ mod q'', which takes elements into Montgomery form */
+    private final long[] r2 = new long[LIMBS];
+    /** ''R mod q'', the Montgomery form of 1 */
+    private final long[] one = new long[LIMBS];
+    /** 1 (not in Montgomery form), which takes elements out of Montgomery form */
+    private final long[] unit = new long[LIMBS];
+    private final long[] zero = new long[LIMBS];
+    /** ''q - 2'', the exponent of the inverse by Fermat's little theorem */
+    private final BigInteger inverseExponent;
+
+    private final long[] t = new long[LIMBS + 2];
+    private final long[] scratch = new long[2 * LIMBS];
+
+    /** Whether elements of ''ℤ,,q,,'' fit this engine. */
+    public static boolean supports(Mod q) {
+        checkNotNull(q);
+
+        return q.q.testBit(0) && q.q.compareTo(BigInteger.ONE) > 0 && q.q.bitLength() <= SecurityParameters.Q_LEN;
+    }
+
+    public ModQ(Mod q) {
+        checkArgument(supports(q), "Unsupported modulus %s", q);
+
+        this.q = q;
+        toLimbs(q.q, m, 0);
+        BigInteger twoTo32 = BigInteger.ONE.shiftLeft(32);
+        mPrime = q.q.modInverse(twoTo32).negate().mod(twoTo32).longValue();
+        toLimbs(BigInteger.ONE.shiftLeft(2 * SecurityParameters.Q_LEN).mod(q.q), r2, 0);
+        toLimbs(BigInteger.ONE.shiftLeft(SecurityParameters.Q_LEN).mod(q.q), one, 0);
+        unit[0] = 1;
+        inverseExponent = q.q.subtract(BigInteger.valueOf(2));
+    }
+
+    /** Returns `n` slots for elements, each initially 0. */
+    public long[] newElements(int n) {
+        checkArgument(n >= 0);
+
+        return new long[n * LIMBS];
+    }
+
+    /** Sets slot `o` of `out` to ''`a` mod q''. */
+    public void set(BigInteger a, long[] out, int o) {
+        toLimbs(a.mod(q.q), out, o * LIMBS);
+        multiply(out, o, r2, 0, out, o);
+    }
+
+    /**
+     * Sets slot `o` of `out` to the two's-complement big-endian integer in ''bytes[offset, offset + len)''
+     * mod q, as `new BigInteger(bytes).mod(q)` would, without allocating. `len` is at most ''Q_LEN / 8''.
+     */
+    public void setSigned(byte[] bytes, int offset, int len, long[] out, int o) {
+        checkArgument(len > 0 && len * Byte.SIZE <= SecurityParameters.Q_LEN);
+        checkArgument(offset >= 0 && offset + len <= bytes.length);
+
+        boolean negative = bytes[offset] < 0;
+        int oo = o * LIMBS;
+        // the magnitude: the sign-extended integer, negated (~a + 1) if negative
+        long carry = negative ? 1 : 0;
+        for (int k = 0; k < LIMBS; k++) {
+            long limb = 0;
+            for (int b = 3; b >= 0; b--) {
+                int p = offset + len - 1 - (4 * k + b);
+                limb = (limb << 8) | (p >= offset ? bytes[p] & 0xff : (negative ? 0xff : 0));
+            }
+            if (negative) {
+                long sum = (~limb & MASK) + carry;
+                limb = sum & MASK;
+                carry = sum >>> 32;
+            }
+            out[oo + k] = limb;
+        }
+        // the magnitude is less than R, which is all Montgomery multiplication needs
+        multiply(out, o, r2, 0, out, o);
+        if (negative) {
+            subtract(zero, 0, out, o, out, o);
+        }
+    }
+
+    /** Returns the element in slot `i` of `a`. */
+    public BigInteger get(long[] a, int i) {
+        multiply(a, i, unit, 0, scratch, 0);
+        byte[] bytes = new byte[LIMBS * 4];
+        for (int k = 0; k < LIMBS; k++) {
+            long limb = scratch[k];
+            int p = bytes.length - 4 * (k + 1);
+            bytes[p] = (byte) (limb >>> 24);
+            bytes[p + 1] = (byte) (limb >>> 16);
+            bytes[p + 2] = (byte) (limb >>> 8);
+            bytes[p + 3] = (byte) limb;
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    /** Copies slot `i` of `a` into slot `o` of `out`. */
+    public void copy(long[] a, int i, long[] out, int o) {
+        System.arraycopy(a, i * LIMBS, out, o * LIMBS, LIMBS);
+    }
+
+    /** Sets slot `o` of `out` to 0. */
+    public void setZero(long[] out, int o) {
+        for (int k = 0; k < LIMBS; k++) {
+            out[o * LIMBS + k] = 0;
+        }
+    }
+
+    /** Sets slot `o` of `out` to 1. */
+    public void setOne(long[] out, int o) {
+        System.arraycopy(one, 0, out, o * LIMBS, LIMBS);
+    }
+
+    /** Whether slot `i` of `a` holds 0. */
+    public boolean isZero(long[] a, int i) {
+        long bits = 0;
+        for (int k = 0; k < LIMBS; k++) {
+            bits |= a[i * LIMBS + k];
+        }
+        return bits == 0;
+    }
+
+    /** Sets slot `o` of `out` to ''a,,i,, + b,,j,, (mod q)''. */
+    public void add(long[] a, int i, long[] b, int j, long[] out, int o) {
+        int ai = i * LIMBS, bj = j * LIMBS, oo = o * LIMBS;
+        long carry = 0;
+        for (int k = 0; k < LIMBS; k++) {
+            long sum = a[ai + k] + b[bj + k] + carry;
+            out[oo + k] = sum & MASK;
+            carry = sum >>> 32;
+        }
+        if (carry != 0 || !lessThanM(out, oo)) {
+            subtractM(out, oo);
+        }
+    }
+
+    /** Sets slot `o` of `out` to ''a,,i,, - b,,j,, (mod q)''. */
+    public void subtract(long[] a, int i, long[] b, int j, long[] out, int o) {
+        int ai = i * LIMBS, bj = j * LIMBS, oo = o * LIMBS;
+        long borrow = 0;
+        for (int k = 0; k < LIMBS; k++) {
+            long diff = a[ai + k] - b[bj + k] - borrow;
+            out[oo + k] = diff & MASK;
+            borrow = diff >>> 63;
+        }
+        if (borrow != 0) {
+            long carry = 0;
+            for (int k = 0; k < LIMBS; k++) {
+                long sum = out[oo + k] + m[k] + carry;
+                out[oo + k] = sum & MASK;
+                carry = sum >>> 32;
+            }
+        }
+    }
+
+    /** Sets slot `o` of `out` to ''a,,i,, * b,,j,, (mod q)''. */
+    public void multiply(long[] a, int i, long[] b, int j, long[] out, int o) {
+        montgomery(a, i * LIMBS, b, j * LIMBS);
+        reduce(out, o * LIMBS);
+    }
+
+    /**
+     * Sets slot `o` of `out` to ''a,,i,, * b,,j,, + c,,k,, (mod q)'', reducing the product only
+     * after adding ''c,,k,,'' (a step of Horner's rule).
+     */
+    public void multiplyAdd(long[] a, int i, long[] b, int j, long[] c, int k, long[] out, int o) {
+        montgomery(a, i * LIMBS, b, j * LIMBS);
+        int ck = k * LIMBS;
+        long carry = 0;
+        for (int l = 0; l < LIMBS; l++) {
+            long sum = t[l] + c[ck + l] + carry;
+            t[l] = sum & MASK;
+            carry = sum >>> 32;
+        }
+        t[LIMBS] += carry;
+        // the product is less than 2q, so the sum is less than 3q
+        reduce(out, o * LIMBS);
+    }
+
+    /**
+     * Leaves ''a * b * R^-1^ (mod q)'' in `t`, unreduced: less than ''2q'', with its carry in `t[LIMBS]`.
+     * This is coarsely integrated operand scanning: ''t = (t + a * b[k] + u * q) / 2^32^'' for each limb ''b[k]''.
+     */
+    private void montgomery(long[] a, int ai, long[] b, int bj) {
+        long[] t = this.t;
+        for (int k = 0; k < t.length; k++) {
+            t[k] = 0;
+        }
+
+        for (int k = 0; k < LIMBS; k++) {
+            long bk = b[bj + k];
+            long carry = 0;
+            for (int l = 0; l < LIMBS; l++) {
+                // at most (2^32 - 1)^2 + 2 * (2^32 - 1) = 2^64 - 1, so this never overflows (unsigned)
+                long uv = t[l] + a[ai + l] * bk + carry;
+                t[l] = uv & MASK;
+                carry = uv >>> 32;
+            }
+            long uv = t[LIMBS] + carry;
+            t[LIMBS] = uv & MASK;
+            t[LIMBS + 1] = uv >>> 32;
+
+            long u = (t[0] * mPrime) & MASK;
+            uv = t[0] + u * m[0];
+            carry = uv >>> 32;
+            for (int l = 1; l < LIMBS; l++) {
+                uv = t[l] + u * m[l] + carry;
+                t[l - 1] = uv & MASK;
+                carry = uv >>> 32;
+            }
+            uv = t[LIMBS] + carry;
+            t[LIMBS - 1] = uv & MASK;
+            t[LIMBS] = t[LIMBS + 1] + (uv >>> 32);
+        }
+    }
+
+    /** Writes `t` reduced mod q into `out` starting at `offset`. */
+    private void reduce(long[] out, int offset) {
+        System.arraycopy(t, 0, out, offset, LIMBS);
+        long high = t[LIMBS];
+        while (high != 0 || !lessThanM(out, offset)) {
+            high -= subtractM(out, offset);
+        }
+    }
+
+    /**
+     * Sets slot `o` of `out` to ''a,,i,,^-1^ (mod q)''.
+     *
+     * @throws ArithmeticException if ''a,,i,,'' is 0
+     */
+    public void inverse(long[] a, int i, long[] out, int o) {
+        if (isZero(a, i)) {
+            throw new ArithmeticException("0 is not invertible");
+        }
+
+        // scratch slot 0 accumulates the power of the base in scratch slot 1
+        copy(a, i, scratch, 1);
+        setOne(scratch, 0);
+        for (int k = inverseExponent.bitLength() - 1; k >= 0; k--) {
+            multiply(scratch, 0, scratch, 0, scratch, 0);
+            if (inverseExponent.testBit(k)) {
+                multiply(scratch, 0, scratch, 1, scratch, 0);
+            }
+        }
+        copy(scratch, 0, out, o);
+    }
+
+    /**
+     * Sets each of the slots ''[i, i + n)'' of `a` to its inverse with a single inversion, by Montgomery's
+     * trick: the running products of the elements are inverted at once and then peeled off one by one.
+     * Uses slots ''[s, s + n]'' of `scratch`.
+     *
+     * @throws ArithmeticException if any of the elements is 0
+     */
+    public void inverse(long[] a, int i, int n, long[] scratch, int s) {
+        checkArgument(n > 0);
+
+        // slot s + k = a_i * ... * a_{i+k}
+        copy(a, i, scratch, s);
+        for (int k = 1; k < n; k++) {
+            multiply(scratch, s + k - 1, a, i + k, scratch, s + k);
+        }
+        int inv = s + n;
+        inverse(scratch, s + n - 1, scratch, inv);
+        for (int k = n - 1; k > 0; k--) {
+            // inv = 1 / (a_i * ... * a_{i+k})
+            multiply(scratch, inv, scratch, s + k - 1, scratch, s + k - 1);
+            multiply(scratch, inv, a, i + k, scratch, inv);
+            copy(scratch, s + k - 1, a, i + k);
+        }
+        copy(scratch, inv, a, i);
+    }
+
+    private boolean lessThanM(long[] a, int offset) {
+        for (int k = LIMBS - 1; k >= 0; k--) {
+            if (a[offset + k] != m[k]) {
+                return a[offset + k] < m[k];
+            }
+        }
+        return false;
+    }
+
+    /** Subtracts q from the limbs of `a` starting at `offset`, returning the borrow out of the top limb. */
+    private long subtractM(long[] a, int offset) {
+        long borrow = 0;
+        for (int k = 0; k < LIMBS; k++) {
+            long diff = a[offset + k] - m[k] - borrow;
+            a[offset + k] = diff & MASK;
+            borrow = diff >>> 63;
+        }
+        return borrow;
+    }
+
+    /** Writes the non-negative `a`, which is less than ''2^Q_LEN^'', as limbs into `out` starting at `offset`. */
+    private static void toLimbs(BigInteger a, long[] out, int offset) {
+        byte[] bytes = a.toByteArray();
+        for (int k = 0; k < LIMBS; k++) {
+            long limb = 0;
+            for (int b = 3; b >= 0; b--) {
+                int p = bytes.length - 1 - (4 * k + b);
+                limb = (limb << 8) | (p >= 0 ? bytes[p] & 0xff : 0);
+            }
+            out[offset + k] = limb;
+        }
+    }
+}
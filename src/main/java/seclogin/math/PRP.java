@@ -0,0 +1,10 @@
+package seclogin.math;
+
+import java.math.BigInteger;
+
+/** A keyed pseudo-random permutation (PRP) in ''ℤ,,q,,'', of which only small inputs are ever used. */
+public interface PRP {
+
+    /** Returns the image of the non-negative `i` under this permutation. */
+    BigInteger apply(int i);
+}
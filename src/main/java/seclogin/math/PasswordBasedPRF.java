@@ -2,34 +2,151 @@ package seclogin.math;
 
 import seclogin.Password;
 import seclogin.crypto.Aes128Cbc;
+import seclogin.crypto.Aes128Ecb;
 import seclogin.crypto.BlockCipher;
+import seclogin.crypto.KeyDerivation;
+import seclogin.crypto.Pbkdf2;
 
 import javax.crypto.SecretKey;
 import java.math.BigInteger;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static seclogin.crypto.Aes128Ecb.BLOCK_LEN;
 
 /**
  * A PRF over Z_q, keyed on a salted password.
  *
- * Implemented by delegating to AES-128 with key generated by
- * PBKDF2-HMAC-SHA1 from the provided salt and password.
+ * Implemented by delegating to AES-128 with key generated by a
+ * {@link KeyDerivation} (by default PBKDF2-HMAC-SHA1) from the provided
+ * salt and password.
+ *
+ * The AES cipher is initialized once per PRF, and batches of inputs are encrypted
+ * in a single pass over a reusable buffer. Their outputs are written as elements of a
+ * {@link ModQ} into a caller-supplied `long[]`, and only converted to `BigInteger`s
+ * by {@link #of(int[], BigInteger[])}. Not thread-safe.
  */
 public class PasswordBasedPRF {
 
-    private static final BlockCipher cipher = new Aes128Cbc();
-
-    private final SecretKey key;
+    private final Aes128Ecb aes;
     private final Mod q;
 
+    /** Reusable buffer of padded input blocks, encrypted in place. */
+    private byte[] blocks = new byte[0];
+    private final byte[] encodedInput = new byte[Integer.SIZE / Byte.SIZE];
+    /** The engine and reusable outputs of {@link #of(int[], BigInteger[])}, if q is supported. */
+    private ModQ f;
+    private long[] outputs = new long[0];
+
     private PasswordBasedPRF(SecretKey key, Mod q) {
-        this.key = key;
+        this.aes = new Aes128Ecb(key);
         this.q = q;
     }
 
     public static PasswordBasedPRF forSaltedPassword(byte[] salt, Password password, Mod q) {
+        return forSaltedPassword(salt, password, Pbkdf2.DEFAULT, q);
+    }
+
+    public static PasswordBasedPRF forSaltedPassword(byte[] salt, Password password,
+                                                     KeyDerivation keyDerivation, Mod q) {
+        BlockCipher cipher = new Aes128Cbc(keyDerivation);
         return new PasswordBasedPRF(cipher.deriveKey(salt, password), q);
     }
 
+    /** Returns the PRF keyed with the given AES key, which has already been derived from a salted password. */
+    public static PasswordBasedPRF forKey(SecretKey key, Mod q) {
+        return new PasswordBasedPRF(key, q);
+    }
+
     public BigInteger of(int input) {
-        return new BigInteger(cipher.encrypt(key, BigInteger.valueOf(input).toByteArray())).mod(q.q);
+        BigInteger[] out = new BigInteger[1];
+        of(new int[]{ input }, out);
+        return out[0];
+    }
+
+    /** Returns ''g(0), g(1), ..., g(n-1)''. */
+    public BigInteger[] ofRange(int n) {
+        checkArgument(n >= 0);
+
+        int[] inputs = new int[n];
+        for (int i = 0; i < n; i++) {
+            inputs[i] = i;
+        }
+        BigInteger[] out = new BigInteger[n];
+        of(inputs, out);
+        return out;
+    }
+
+    /** Evaluates this PRF at each of the given inputs, storing ''g(inputs[i])'' in `out[i]`. */
+    public void of(int[] inputs, BigInteger[] out) {
+        checkNotNull(inputs);
+        checkNotNull(out);
+        checkArgument(out.length >= inputs.length);
+
+        if (!ModQ.supports(q)) {
+            encryptBlocks(inputs);
+            for (int i = 0; i < inputs.length; i++) {
+                int offset = i * BLOCK_LEN;
+                out[i] = new BigInteger(Arrays.copyOfRange(blocks, offset, offset + BLOCK_LEN)).mod(q.q);
+            }
+            return;
+        }
+
+        if (f == null) {
+            f = new ModQ(q);
+        }
+        if (outputs.length < inputs.length * ModQ.LIMBS) {
+            outputs = f.newElements(inputs.length);
+        }
+        of(inputs, f, outputs);
+        for (int i = 0; i < inputs.length; i++) {
+            out[i] = f.get(outputs, i);
+        }
+    }
+
+    /**
+     * Evaluates this PRF at each of the given inputs, storing ''g(inputs[i])'' in slot `i` of `out`, as an
+     * element of `f` (which must be for this PRF's q).
+     */
+    public void of(int[] inputs, ModQ f, long[] out) {
+        checkNotNull(inputs);
+        checkNotNull(f);
+        checkNotNull(out);
+        checkArgument(f.q.equals(q), "Engine for %s, not %s", f.q, q);
+        checkArgument(out.length >= inputs.length * ModQ.LIMBS);
+
+        encryptBlocks(inputs);
+        for (int i = 0; i < inputs.length; i++) {
+            f.setSigned(blocks, i * BLOCK_LEN, BLOCK_LEN, out, i);
+        }
+    }
+
+    /** Encrypts the padded encodings of the given inputs into the first blocks of {@link #blocks}. */
+    private void encryptBlocks(int[] inputs) {
+        int len = inputs.length * BLOCK_LEN;
+        if (blocks.length < len) {
+            blocks = new byte[len];
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            int encodedLen = encode(inputs[i], encodedInput);
+            Aes128Ecb.pad(encodedInput, encodedLen, blocks, i * BLOCK_LEN);
+        }
+
+        aes.encryptBlocks(blocks, 0, len, blocks, 0);
+    }
+
+    /**
+     * Writes the same bytes as `BigInteger.valueOf(input).toByteArray()` into `dest`.
+     *
+     * @return the number of bytes written
+     */
+    private static int encode(int input, byte[] dest) {
+        int bitLength = Integer.SIZE - Integer.numberOfLeadingZeros(input < 0 ? ~input : input);
+        int len = bitLength / Byte.SIZE + 1;
+        for (int i = 0; i < len; i++) {
+            dest[len - 1 - i] = (byte) (input >> (Byte.SIZE * i));
+        }
+        return len;
     }
 }
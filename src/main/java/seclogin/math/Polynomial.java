@@ -1,5 +1,7 @@
 package seclogin.math;
 
+import com.google.common.collect.Iterables;
+
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
@@ -44,6 +46,45 @@ public class Polynomial {
      * @return ''f(x)'', the value of this function ''f'' at `x`.
      */
     public BigInteger apply(BigInteger x) {
+        return ModQ.supports(q) ? applyModQ(x) : applyBigInteger(x);
+    }
+
+    /** {@link #apply} on the {@link ModQ} engine. */
+    BigInteger applyModQ(BigInteger x) {
+        return apply(new BigInteger[]{ x })[0];
+    }
+
+    /**
+     * @return ''f(x)'' for each ''x'' in `xs`, evaluated in a single batch
+     */
+    public BigInteger[] apply(BigInteger[] xs) {
+        BigInteger[] ys = new BigInteger[xs.length];
+        if (!ModQ.supports(q)) {
+            for (int i = 0; i < xs.length; i++) {
+                ys[i] = applyBigInteger(xs[i]);
+            }
+            return ys;
+        }
+
+        ModQ f = new ModQ(q);
+        long[] cs = f.newElements(coefficients.size());
+        for (int k = 0; k < coefficients.size(); k++) {
+            f.set(coefficients.get(k), cs, k);
+        }
+        long[] xSlots = f.newElements(xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            f.set(xs[i], xSlots, i);
+        }
+        long[] ySlots = f.newElements(xs.length);
+        new HornerEvaluator(q, cs, coefficients.size()).evaluate(f, xSlots, xs.length, ySlots);
+        for (int i = 0; i < ys.length; i++) {
+            ys[i] = f.get(ySlots, i);
+        }
+        return ys;
+    }
+
+    /** {@link #apply} on `BigInteger`s. */
+    BigInteger applyBigInteger(BigInteger x) {
         List<BigInteger> terms = new ArrayList<BigInteger>();
         for (int i = 0; i < coefficients.size(); i++) {
             terms.add((coefficients.get(i).multiply(q.pow(x, i))).mod(q.q));
@@ -55,9 +96,11 @@ public class Polynomial {
      * @return for each ''x'' in `xs`, the point ''(x, f(x))''
      */
     public List<Point> points(Iterable<BigInteger> xs) {
+        BigInteger[] xArray = Iterables.toArray(xs, BigInteger.class);
+        BigInteger[] yArray = apply(xArray);
         List<Point> points = new ArrayList<Point>();
-        for (BigInteger x : xs) {
-            points.add(new Point(x, apply(x)));
+        for (int i = 0; i < xArray.length; i++) {
+            points.add(new Point(xArray[i], yArray[i]));
         }
         return points;
     }
@@ -0,0 +1,89 @@
+package seclogin.math;
+
+import java.math.BigInteger;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link RandomBigIntModQ} that hands out elements of ''ℤ,,q,,'' drawn ahead of time, so that bursts of
+ * table generation do not wait for sampling.
+ *
+ * The pool holds up to `capacity` elements. Whenever it falls to half of that, it is refilled in a single
+ * task on the given executor (typically a low-priority thread, so that it runs while logins are idle); if it
+ * is ever empty, elements are drawn directly. Elements are handed out without locking, and each is handed
+ * out once. Thread-safe if the `Random` is.
+ */
+public class PooledRandomBigIntModQ extends RandomBigIntModQ {
+
+    private final Executor executor;
+    private final int capacity;
+
+    private final Queue<BigInteger> pool = new ConcurrentLinkedQueue<BigInteger>();
+    /** The number of elements in the pool, which `ConcurrentLinkedQueue` does not count in constant time. */
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private final Runnable refill = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (size.get() < capacity) {
+                    pool.add(draw());
+                    size.incrementAndGet();
+                }
+            } finally {
+                refilling.set(false);
+            }
+        }
+    };
+
+    /** Constructs a pool of (up to) `capacity` elements drawn from `r` on the given executor, and starts filling it. */
+    public PooledRandomBigIntModQ(Random r, Mod q, Executor executor, int capacity) {
+        super(r, q);
+        checkArgument(capacity > 0);
+
+        this.executor = checkNotNull(executor);
+        this.capacity = capacity;
+        refillInBackground();
+    }
+
+    @Override
+    public BigInteger nextBigIntModQ() {
+        BigInteger x = pool.poll();
+        if (x != null) {
+            size.decrementAndGet();
+        }
+        if (size.get() <= capacity / 2) {
+            refillInBackground();
+        }
+        return x != null ? x : draw();
+    }
+
+    /** The number of elements in the pool. */
+    int size() {
+        return size.get();
+    }
+
+    private BigInteger draw() {
+        return super.nextBigIntModQ();
+    }
+
+    private void refillInBackground() {
+        if (refilling.compareAndSet(false, true)) {
+            try {
+                executor.execute(refill);
+            } catch (RejectedExecutionException e) {
+                // elements are drawn directly until the pool can be refilled
+                refilling.set(false);
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package seclogin.math;
 
+import seclogin.crypto.CtrDrbg;
+
 import java.math.BigInteger;
 import java.util.HashSet;
 import java.util.Random;
@@ -7,6 +9,9 @@ import java.util.Set;
 
 /**
  * Adapts a `Random` for use with `BigInt`s in a finite field `Mod` q.
+ *
+ * A {@link CtrDrbg} is sampled directly from its raw bytes; any other `Random`
+ * through `BigInteger`.
  */
 public class RandomBigIntModQ {
 
@@ -22,6 +27,9 @@ public class RandomBigIntModQ {
      * @return a uniformly random element of ''ℤ,,q,,''
      */
     public BigInteger nextBigIntModQ() {
+        if (r instanceof CtrDrbg) {
+            return ((CtrDrbg) r).nextBigInteger(q.q);
+        }
         int bits = q.q.bitLength();
         while (true) {
             BigInteger x = new BigInteger(bits, r);
@@ -1,13 +1,33 @@
 package seclogin.math;
 
+import com.google.common.primitives.Ints;
 import seclogin.SecurityParameters;
+import seclogin.concurrent.SharedPool;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Random;
 
-/** Generates random probable primes of bit length specified by {@link SecurityParameters#Q_LEN}. */
+/**
+ * Generates random probable primes of bit length specified by {@link SecurityParameters#Q_LEN}.
+ *
+ * Each prime is the first one found from a random odd starting point: a window of candidates is sieved
+ * by the small primes, and only the survivors are tested with {@link #CERTAINTY}, as many at once as there
+ * are processors, on the {@link SharedPool} as well as the calling thread. Only the starting point is drawn
+ * from the `Random`, so the prime found does not depend on how the tests are split.
+ */
 public class RandomQ {
 
+    /** The certainty with which the generated values are prime: ''1 - 2^-100^''. */
+    public static final int CERTAINTY = 100;
+
+    /** The number of odd candidates sieved at once. */
+    private static final int WINDOW = 1024;
+    private static final int[] SMALL_PRIMES = smallPrimes(1 << 13);
+
     private final Random random;
 
     public RandomQ(Random random) {
@@ -16,6 +36,102 @@ public class RandomQ {
 
     /** Returns the next random probable primes of bit length specified by {@link SecurityParameters#Q_LEN}. */
     public Mod nextQ() {
-        return new Mod(BigInteger.probablePrime(SecurityParameters.Q_LEN, random));
+        return new Mod(search(nextStart()));
+    }
+
+    /** Draws a random odd starting point of exactly {@link SecurityParameters#Q_LEN} bits. */
+    private BigInteger nextStart() {
+        return new BigInteger(SecurityParameters.Q_LEN, random).setBit(SecurityParameters.Q_LEN - 1).setBit(0);
+    }
+
+    /**
+     * Returns the first probable prime from the odd `start`, wrapping around to the smallest
+     * {@link SecurityParameters#Q_LEN}-bit odd number rather than growing beyond that length.
+     */
+    static BigInteger search(BigInteger start) {
+        BigInteger lowest = BigInteger.ONE.shiftLeft(SecurityParameters.Q_LEN - 1).setBit(0);
+        BitSet composite = new BitSet(WINDOW);
+        BigInteger[] candidates = new BigInteger[SharedPool.PROCESSORS];
+        boolean[] prime = new boolean[candidates.length];
+        BigInteger base = start;
+        while (true) {
+            sieve(base, composite);
+            int count = 0;
+            for (int i = composite.nextClearBit(0); i < WINDOW; i = composite.nextClearBit(i + 1)) {
+                BigInteger candidate = base.add(BigInteger.valueOf(2L * i));
+                if (candidate.bitLength() > SecurityParameters.Q_LEN) {
+                    break;
+                }
+                candidates[count++] = candidate;
+                if (count == candidates.length) {
+                    BigInteger found = firstPrime(candidates, count, prime);
+                    if (found != null) {
+                        return found;
+                    }
+                    count = 0;
+                }
+            }
+            BigInteger found = firstPrime(candidates, count, prime);
+            if (found != null) {
+                return found;
+            }
+            base = base.add(BigInteger.valueOf(2L * WINDOW));
+            if (base.bitLength() > SecurityParameters.Q_LEN) {
+                base = lowest;
+            }
+        }
+    }
+
+    /**
+     * Tests the first `count` candidates at once, each into the same index of `prime`, and returns the first
+     * of them that is prime, if any.
+     */
+    @Nullable
+    private static BigInteger firstPrime(final BigInteger[] candidates, int count, final boolean[] prime) {
+        if (count == 0) {
+            return null;
+        }
+        SharedPool.runChunks(count, count, new SharedPool.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    prime[i] = candidates[i].isProbablePrime(CERTAINTY);
+                }
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            if (prime[i]) {
+                return candidates[i];
+            }
+        }
+        return null;
+    }
+
+    /** Marks the odd candidates ''base + 2i'' in ''[0, WINDOW)'' that have a small prime factor. */
+    private static void sieve(BigInteger base, BitSet composite) {
+        composite.clear();
+        for (int p : SMALL_PRIMES) {
+            int r = base.mod(BigInteger.valueOf(p)).intValue();
+            // base + 2i = 0 (mod p) when i = -r / 2 (mod p)
+            int i = (int) ((long) (p - r) % p * ((p + 1) / 2) % p);
+            for (; i < WINDOW; i += p) {
+                composite.set(i);
+            }
+        }
+    }
+
+    /** The odd primes below `bound`, by the sieve of Eratosthenes. */
+    private static int[] smallPrimes(int bound) {
+        BitSet composite = new BitSet(bound);
+        List<Integer> primes = new ArrayList<Integer>();
+        for (int n = 3; n < bound; n += 2) {
+            if (!composite.get(n)) {
+                primes.add(n);
+                for (int m = n * n; m < bound; m += 2 * n) {
+                    composite.set(m);
+                }
+            }
+        }
+        return Ints.toArray(primes);
     }
 }
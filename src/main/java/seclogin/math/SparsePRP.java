@@ -10,7 +10,7 @@ import java.util.Random;
 /** A pseudo-random permutation (PRP) in ''ℤ,,q,,'' based on a `PRG`.
   * This PRP is considered "sparse" because it is efficient only over small inputs.
   */
-public class SparsePRP {
+public class SparsePRP implements PRP {
 
     private final RandomBigIntModQ randomBigIntModQ;
 
@@ -31,6 +31,7 @@ public class SparsePRP {
         randomBigIntModQ = new RandomBigIntModQ(prg, q);
     }
 
+    @Override
     public BigInteger apply(int i) {
         while (sequence.size() <= i) {
             BigInteger x = generateAnother();
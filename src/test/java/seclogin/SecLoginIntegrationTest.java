@@ -1,5 +1,6 @@
 package seclogin;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InOrder;
@@ -13,6 +14,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.when;
@@ -199,6 +202,48 @@ public class SecLoginIntegrationTest {
 
     }
 
+    /**
+     * Demonstrates that with refreshes in the background, a login sees the state refreshed by the previous one.
+     */
+    @Test
+    public void test_async_refresh() throws Exception {
+
+        System.out.println("test_async_refresh");
+
+        Question question = new Question("Question A", new MeasurementParams(50, 2));
+        QuestionBank questions = new QuestionBank(Arrays.<Question>asList(question));
+        ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+        SecLogin secLogin = new SecLogin(userInterface, userStatePersistence, random, questions, 1, q,
+                SecLoginParams.DEFAULT.withRefreshExecutor(refreshExecutor));
+
+        try {
+            passwordIs("password");
+            userIs("steve");
+            answerIs(question, "20");
+
+            // Add one user, and the system prompts for a password.
+            secLogin.addUser("steve");
+            expect(PasswordPrompt, Done);
+
+            // Log in with correct password twice, establishing the feature as distinguished
+            for (int i = 0; i < 2; i++) {
+                secLogin.prompt();
+                expect(UserPrompt, PasswordPrompt, questions, Success, Done);
+            }
+
+            // Using a radically different answer fails, since the login waits for the refreshed table.
+            answerIs(question, "51");
+            secLogin.prompt();
+            expect(UserPrompt, PasswordPrompt, questions, Failure, Done);
+
+            // The refreshed state has been written.
+            secLogin.awaitRefresh(new User("steve"));
+            Assert.assertNotNull(userStatePersistence.read(new User("steve")));
+        } finally {
+            refreshExecutor.shutdown();
+        }
+    }
+
     /**
      * Demonstrates that a distinguished feature may become an undistinguished feature.
      */
@@ -279,6 +324,55 @@ public class SecLoginIntegrationTest {
 
     }
 
+    /**
+     * Demonstrates that with alternative distinguishments, the answer nearest to its question's
+     * mean may fall on the wrong side of it.
+     */
+    @Test
+    public void test_alternative_distinguishments() throws Exception {
+
+        System.out.println("test_alternative_distinguishments");
+
+        Question questionA = new Question("Question A", new MeasurementParams(50, 2));
+        Question questionB = new Question("Question B", new MeasurementParams(500, 2));
+        QuestionBank questions = new QuestionBank(Arrays.<Question>asList(questionA, questionB));
+        SecLogin secLogin = new SecLogin(userInterface, userStatePersistence, random, questions, 2, q,
+                SecLoginParams.DEFAULT.withAlternativeDistinguishments(1));
+
+        passwordIs("password");
+        userIs("steve");
+        answerIs(questionA, "20"); // below mean
+        answerIs(questionB, "800"); // above mean
+
+        // Add one user, and the system prompts for a password.
+        secLogin.addUser("steve");
+        expect(PasswordPrompt, Done);
+
+        // Log in with correct password thrice, establishing both features as distinguished
+        for (int i = 0; i < 3; i++) {
+            secLogin.prompt();
+            expect(UserPrompt, PasswordPrompt, questions, Success, Done);
+        }
+
+        // Screw up both questions, which fails because only the nearest one (A) is flipped
+        answerIs(questionA, "51");
+        answerIs(questionB, "490");
+        secLogin.prompt();
+        expect(UserPrompt, PasswordPrompt, questions, Failure, Done);
+
+        // Screw up question B only, nearer to its mean than A is to its mean, which succeeds
+        answerIs(questionA, "20");
+        answerIs(questionB, "480");
+        secLogin.prompt();
+        expect(UserPrompt, PasswordPrompt, questions, Success, Done);
+
+        // A wrong password still fails
+        passwordIs("psosarwd");
+        secLogin.prompt();
+        expect(UserPrompt, PasswordPrompt, questions, Failure, Done);
+
+    }
+
     @Test
     public void test_unanswered_question() throws Exception {
 
@@ -0,0 +1,71 @@
+package seclogin.concurrent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SharedPoolTest {
+
+    @Test
+    public void testRunChunksCoversEachIndexOnce() throws Exception {
+        for (int chunks = 1; chunks <= 9; chunks++) {
+            final AtomicIntegerArray runs = new AtomicIntegerArray(100);
+            SharedPool.runChunks(runs.length(), chunks, new SharedPool.Chunk() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        runs.incrementAndGet(i);
+                    }
+                }
+            });
+            for (int i = 0; i < runs.length(); i++) {
+                Assert.assertEquals(1, runs.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testNestedRunChunksDoNotDeadlock() throws Exception {
+        final int n = 4 * SharedPool.PROCESSORS;
+        final AtomicIntegerArray runs = new AtomicIntegerArray(n * n);
+        // every pool thread can be busy with an outer chunk that waits on its own inner chunks
+        SharedPool.runChunks(n, n, new SharedPool.Chunk() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    final int outer = i;
+                    SharedPool.runChunks(n, n, new SharedPool.Chunk() {
+                        @Override
+                        public void run(int from, int to) {
+                            for (int j = from; j < to; j++) {
+                                runs.incrementAndGet(outer * n + j);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        for (int k = 0; k < runs.length(); k++) {
+            Assert.assertEquals(1, runs.get(k));
+        }
+    }
+
+    @Test
+    public void testRunChunksRethrowsCause() throws Exception {
+        final IllegalStateException thrown = new IllegalStateException();
+        try {
+            SharedPool.runChunks(10, 5, new SharedPool.Chunk() {
+                @Override
+                public void run(int from, int to) {
+                    if (from > 0) {
+                        throw thrown;
+                    }
+                }
+            });
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertSame(thrown, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package seclogin.crypto;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.HardenedPassword;
+import seclogin.TestRandom;
+
+import javax.crypto.SecretKey;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+public class Aes128CtrHmacSha256Test {
+
+    Random random;
+    Aes128CtrHmacSha256 cipher;
+    SecretKey key;
+    byte[] plaintext;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+        cipher = new Aes128CtrHmacSha256(Pbkdf2.DEFAULT, random);
+        key = cipher.deriveKey(new HardenedPassword(new BigInteger(160, random)));
+        plaintext = new byte[100];
+        random.nextBytes(plaintext);
+    }
+
+    @Test
+    public void testEncryptAndDecrypt() throws Exception {
+        byte[] ciphertext = cipher.encrypt(key, plaintext);
+
+        Assert.assertTrue(Aes128CtrHmacSha256.isCiphertext(ciphertext));
+        Assert.assertEquals(plaintext.length, Aes128CtrHmacSha256.plaintextLength(ciphertext));
+        Assert.assertArrayEquals(plaintext, cipher.decrypt(key, ciphertext));
+    }
+
+    @Test
+    public void testEncryptionIsRandomized() throws Exception {
+        Assert.assertFalse(Arrays.equals(cipher.encrypt(key, plaintext), cipher.encrypt(key, plaintext)));
+    }
+
+    @Test
+    public void testDecryptInPlace() throws Exception {
+        byte[] ciphertext = cipher.encrypt(key, plaintext);
+
+        int len = cipher.decrypt(key, ciphertext, ciphertext, 0);
+
+        Assert.assertArrayEquals(plaintext, Arrays.copyOf(ciphertext, len));
+    }
+
+    @Test
+    public void testEncryptInPlace() throws Exception {
+        byte[] ciphertext = new byte[Aes128CtrHmacSha256.ciphertextLength(plaintext.length)];
+        System.arraycopy(plaintext, 0, ciphertext, Aes128CtrHmacSha256.PLAINTEXT_OFFSET, plaintext.length);
+
+        cipher.encryptInPlace(key, ciphertext);
+
+        Assert.assertTrue(Aes128CtrHmacSha256.isCiphertext(ciphertext));
+        Assert.assertArrayEquals(plaintext, cipher.decrypt(key, ciphertext));
+    }
+
+    @Test
+    public void testWrongKeyIsRejectedWithoutWritingOutput() throws Exception {
+        byte[] ciphertext = cipher.encrypt(key, plaintext);
+        SecretKey wrongKey = cipher.deriveKey(new HardenedPassword(new BigInteger(160, random)));
+
+        byte[] output = new byte[plaintext.length];
+        try {
+            cipher.decrypt(wrongKey, ciphertext, output, 0);
+            Assert.fail();
+        } catch (IndecipherableException expected) {
+        }
+        Assert.assertArrayEquals(new byte[plaintext.length], output);
+    }
+
+    @Test
+    public void testTamperedCiphertextIsRejected() throws Exception {
+        byte[] ciphertext = cipher.encrypt(key, plaintext);
+        for (int i = 0; i < ciphertext.length; i++) {
+            byte[] tampered = ciphertext.clone();
+            tampered[i] ^= 1;
+            try {
+                cipher.decrypt(key, tampered);
+                Assert.fail("Accepted ciphertext tampered at byte " + i);
+            } catch (IndecipherableException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IndecipherableException.class)
+    public void testOtherCiphertextIsRejected() throws Exception {
+        Aes128Cbc cbc = new Aes128Cbc();
+        byte[] ciphertext = cbc.encrypt(cbc.deriveKey(new HardenedPassword(BigInteger.TEN)), plaintext);
+        Assert.assertFalse(Aes128CtrHmacSha256.isCiphertext(ciphertext));
+
+        cipher.decrypt(key, ciphertext);
+    }
+}
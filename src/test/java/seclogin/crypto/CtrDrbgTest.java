@@ -0,0 +1,113 @@
+package seclogin.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CtrDrbgTest {
+
+    @Test
+    public void testIsDeterministicInItsSeedSource() throws Exception {
+        // long enough to span a reseed
+        byte[] a = new byte[CtrDrbg.RESEED_INTERVAL + 100000];
+        byte[] b = new byte[a.length];
+        new CtrDrbg(TestRandom.random()).nextBytes(a);
+        new CtrDrbg(TestRandom.random()).nextBytes(b);
+
+        Assert.assertArrayEquals(a, b);
+        Assert.assertFalse(Arrays.equals(Arrays.copyOfRange(a, 0, 32), Arrays.copyOfRange(a, 32, 64)));
+    }
+
+    @Test
+    public void testSmallDrawsMatchBulkDraw() throws Exception {
+        byte[] bulk = new byte[50000];
+        new CtrDrbg(TestRandom.random()).nextBytes(bulk);
+
+        CtrDrbg drbg = new CtrDrbg(TestRandom.random());
+        byte[] small = new byte[7];
+        for (int offset = 0; offset + small.length <= bulk.length; offset += small.length) {
+            drbg.nextBytes(small);
+            Assert.assertArrayEquals(Arrays.copyOfRange(bulk, offset, offset + small.length), small);
+        }
+    }
+
+    @Test
+    public void testNextBigIntegerIsBelowBound() throws Exception {
+        CtrDrbg drbg = new CtrDrbg(TestRandom.random());
+
+        BigInteger five = BigInteger.valueOf(5);
+        Set<BigInteger> seen = new HashSet<BigInteger>();
+        for (int i = 0; i < 1000; i++) {
+            BigInteger x = drbg.nextBigInteger(five);
+            Assert.assertTrue(x.signum() >= 0 && x.compareTo(five) < 0);
+            seen.add(x);
+        }
+        Assert.assertEquals(5, seen.size());
+
+        // a bound whose top byte is the sign byte's neighbour
+        BigInteger bound = BigInteger.ONE.shiftLeft(159).add(BigInteger.valueOf(12345));
+        for (int i = 0; i < 1000; i++) {
+            BigInteger x = drbg.nextBigInteger(bound);
+            Assert.assertTrue(x.signum() >= 0 && x.compareTo(bound) < 0);
+        }
+    }
+
+    @Test
+    public void testThreadsDrawFromSeparateGenerators() throws Exception {
+        final CtrDrbg drbg = new CtrDrbg(TestRandom.random());
+        byte[] mine = new byte[32];
+        drbg.nextBytes(mine);
+
+        final AtomicReference<byte[]> theirs = new AtomicReference<byte[]>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = new byte[32];
+                drbg.nextBytes(bytes);
+                theirs.set(bytes);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        byte[] next = new byte[32];
+        drbg.nextBytes(next);
+        Assert.assertFalse(Arrays.equals(mine, theirs.get()));
+        Assert.assertFalse(Arrays.equals(next, theirs.get()));
+    }
+
+    @Test
+    public void testKeystreamIsAesCtrOfItsNonce() throws Exception {
+        byte[] key = new byte[Aes128Ecb.BLOCK_LEN];
+        TestRandom.random().nextBytes(key);
+        Aes128Ecb aes = new Aes128Ecb(new SecretKeySpec(key, "AES"));
+
+        // spans several refills of the stream's buffer
+        byte[] stream = new byte[10 * Aes128Ecb.BLOCK_LEN + 5];
+        new CtrDrbg.Keystream(aes, 7).nextBytes(stream);
+
+        byte[] expected = new byte[11 * Aes128Ecb.BLOCK_LEN];
+        ByteBuffer counterBlocks = ByteBuffer.wrap(expected);
+        for (long block = 0; block < 11; block++) {
+            counterBlocks.putLong(7).putLong(block);
+        }
+        aes.encryptBlocks(expected, 0, expected.length, expected, 0);
+        Assert.assertArrayEquals(Arrays.copyOf(expected, stream.length), stream);
+
+        byte[] other = new byte[stream.length];
+        new CtrDrbg.Keystream(aes, 8).nextBytes(other);
+        Assert.assertFalse(Arrays.equals(stream, other));
+
+        BigInteger bound = BigInteger.ONE.shiftLeft(159).add(BigInteger.valueOf(12345));
+        Assert.assertEquals(new CtrDrbg.Keystream(aes, 7).nextBigInteger(bound),
+                new CtrDrbg.Keystream(aes, 7).nextBigInteger(bound));
+    }
+}
@@ -0,0 +1,27 @@
+package seclogin.crypto;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test case 1 from RFC 5869. */
+public class HkdfTest {
+
+    final BaseEncoding hex = BaseEncoding.base16().lowerCase();
+
+    final byte[] ikm = hex.decode("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+    final byte[] salt = hex.decode("000102030405060708090a0b0c");
+    final byte[] info = hex.decode("f0f1f2f3f4f5f6f7f8f9");
+
+    @Test
+    public void testExtract() throws Exception {
+        Assert.assertEquals("077709362c2e32df0ddc3f0dc47bba6390b6c73bb50f9c3122ec844ad7c2b3e5",
+                hex.encode(Hkdf.extract(salt, ikm)));
+    }
+
+    @Test
+    public void testDerive() throws Exception {
+        Assert.assertEquals("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865",
+                hex.encode(Hkdf.derive(salt, ikm, info, 42)));
+    }
+}
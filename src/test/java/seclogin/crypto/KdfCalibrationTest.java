@@ -0,0 +1,27 @@
+package seclogin.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KdfCalibrationTest {
+
+    @Test
+    public void testCalibrate() throws Exception {
+        Pbkdf2 calibrated = new KdfCalibration(Pbkdf2.Prf.HMAC_SHA256, 20, 5).calibrate();
+
+        Assert.assertEquals(Pbkdf2.Prf.HMAC_SHA256, calibrated.prf);
+        Assert.assertTrue(calibrated.iterations >= KdfCalibration.MIN_ITERATIONS);
+    }
+
+    @Test
+    public void testPercentile() throws Exception {
+        long[] values = new long[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values.length - i;
+        }
+        Assert.assertEquals(99, KdfCalibration.percentile(values, 0.99));
+        Assert.assertEquals(100, KdfCalibration.percentile(values, 1.0));
+        Assert.assertEquals(50, KdfCalibration.percentile(values, 0.5));
+        Assert.assertEquals(7, KdfCalibration.percentile(new long[]{ 7 }, 0.99));
+    }
+}
@@ -0,0 +1,61 @@
+package seclogin.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import seclogin.Password;
+import seclogin.SecurityParameters;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Pbkdf2HmacSha1} against the JCA's PBKDF2WithHmacSHA1 for the instruction table key.
+ *
+ * Run with `test:run-main seclogin.crypto.Pbkdf2Benchmark`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class Pbkdf2Benchmark {
+
+    private static final int KEY_LEN_IN_BYTES = 16;
+
+    byte[] salt;
+    Password password;
+
+    @Setup
+    public void setUp() {
+        salt = new byte[SecurityParameters.R_LEN / Byte.SIZE];
+        new Random(0).nextBytes(salt);
+        password = new Password("correct horse battery staple");
+    }
+
+    @Benchmark
+    public byte[] inHouse() {
+        return new Pbkdf2HmacSha1(password.asCharArray())
+                .deriveKey(salt, Pbkdf2.DEFAULT.iterations, KEY_LEN_IN_BYTES);
+    }
+
+    @Benchmark
+    public byte[] jca() {
+        return Pbkdf2.DEFAULT.deriveKeyWithJca(salt, password, KEY_LEN_IN_BYTES);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(Pbkdf2Benchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,65 @@
+package seclogin.crypto;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.Password;
+import seclogin.TestRandom;
+
+import java.util.Random;
+
+/** {@link Pbkdf2HmacSha1} must be byte-identical to the JCA's PBKDF2WithHmacSHA1, which existing tables depend on. */
+public class Pbkdf2HmacSha1Test {
+
+    Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+    }
+
+    @Test
+    public void testMatchesJcaForDefaultParameters() throws Exception {
+        assertMatchesJca(Pbkdf2.DEFAULT, new Password("asdf"), randomSalt(20), 16);
+    }
+
+    @Test
+    public void testMatchesJcaForVariousPasswords() throws Exception {
+        Pbkdf2 kdf = new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 1000);
+        String longPassword = "0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz";
+        for (String password : new String[]{ "a", "password", "pässwörd €", longPassword }) {
+            assertMatchesJca(kdf, new Password(password), randomSalt(20), 16);
+        }
+    }
+
+    @Test
+    public void testMatchesJcaForVariousSaltsAndKeyLengths() throws Exception {
+        Password password = new Password("password");
+        for (int saltLen : new int[]{ 1, 20, 55, 56, 64, 100 }) {
+            for (int keyLen : new int[]{ 1, 16, 20, 21, 45 }) {
+                assertMatchesJca(new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 3), password, randomSalt(saltLen), keyLen);
+            }
+        }
+    }
+
+    @Test
+    public void testEngineChoice() throws Exception {
+        Assert.assertTrue(Pbkdf2.chooseInHouseHmacSha1("inhouse"));
+        Assert.assertFalse(Pbkdf2.chooseInHouseHmacSha1("JCA"));
+        // either engine may win the measurement, but both derive the same keys
+        Pbkdf2.chooseInHouseHmacSha1(null);
+        Pbkdf2.chooseInHouseHmacSha1("other");
+    }
+
+    private byte[] randomSalt(int len) {
+        byte[] salt = new byte[len];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    private void assertMatchesJca(Pbkdf2 kdf, Password password, byte[] salt, int keyLenInBytes) {
+        byte[] expected = kdf.deriveKeyWithJca(salt, password, keyLenInBytes);
+        byte[] actual = new Pbkdf2HmacSha1(password.asCharArray()).deriveKey(salt, kdf.iterations, keyLenInBytes);
+        Assert.assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,46 @@
+package seclogin.crypto;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Assert;
+import org.junit.Test;
+import seclogin.Password;
+
+import java.nio.charset.Charset;
+
+/** Test vectors from RFC 6070 (and the equivalent for the SHA-2 PRFs). */
+public class Pbkdf2Test {
+
+    final byte[] salt = "salt".getBytes(Charset.forName("UTF-8"));
+    final Password password = new Password("password");
+
+    @Test
+    public void testHmacSha1() throws Exception {
+        assertDerives("0c60c80f961f0e71f3a9b524af6012062fe037a6", new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 1), 20);
+        assertDerives("4b007901b765489abead49d926f721d065a429c1", new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 4096), 20);
+    }
+
+    @Test
+    public void testHmacSha256() throws Exception {
+        assertDerives("c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a",
+                new Pbkdf2(Pbkdf2.Prf.HMAC_SHA256, 4096), 32);
+    }
+
+    @Test
+    public void testHmacSha512() throws Exception {
+        assertDerives("afe6c5530785b6cc6b1c6453384731bd5ee432ee549fd42fb6695779ad8a1c5b" +
+                "f59de69c48f774efc4007d5298f9033c0241d5ab69305e7b64eceeb8d834cfec",
+                new Pbkdf2(Pbkdf2.Prf.HMAC_SHA512, 1000), 64);
+    }
+
+    @Test
+    public void testForMacAlgorithm() throws Exception {
+        for (Pbkdf2.Prf prf : Pbkdf2.Prf.values()) {
+            Assert.assertEquals(prf, Pbkdf2.Prf.forMacAlgorithm(prf.macAlgorithm));
+        }
+    }
+
+    private void assertDerives(String expectedHex, KeyDerivation kdf, int keyLenInBytes) {
+        byte[] key = kdf.deriveKey(salt, password, keyLenInBytes);
+        Assert.assertEquals(expectedHex, BaseEncoding.base16().lowerCase().encode(key));
+    }
+}
@@ -0,0 +1,41 @@
+package seclogin.crypto;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Assert;
+import org.junit.Test;
+import seclogin.Password;
+
+import java.nio.charset.Charset;
+
+/** Test vectors from RFC 7914 (and others checked against Python's hashlib.scrypt). */
+public class ScryptTest {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testRfc7914() throws Exception {
+        assertDerives("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162" +
+                "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640",
+                new Scrypt(1024, 8, 16), "NaCl", "password", 64);
+    }
+
+    @Test
+    public void testOddBlockSizeAndLanes() throws Exception {
+        assertDerives("26f07ed68a8b7a572f81e8c2fe4b2c9b09eec797", new Scrypt(16, 3, 3), "salt", "pässword", 20);
+    }
+
+    @Test
+    public void testEmptyPassword() throws Exception {
+        assertDerives("1980d45b81f2945a0ccb7e1caaa7aa09", new Scrypt(16, 1, 1), "x", "", 16);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCostMustBePowerOfTwo() throws Exception {
+        new Scrypt(1000, 8, 1);
+    }
+
+    private static void assertDerives(String expected, Scrypt scrypt, String salt, String password, int keyLen) {
+        byte[] key = scrypt.deriveKey(salt.getBytes(UTF_8), new Password(password), keyLen);
+        Assert.assertEquals(expected, BaseEncoding.base16().lowerCase().encode(key));
+    }
+}
@@ -6,10 +6,13 @@ import org.junit.Test;
 import seclogin.HardenedPassword;
 import seclogin.TestRandom;
 import seclogin.User;
+import seclogin.crypto.Aes128Cbc;
+import seclogin.crypto.Aes128CtrHmacSha256;
 import seclogin.math.Mod;
 import seclogin.math.RandomBigIntModQ;
 import seclogin.math.RandomQ;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 public class HistoryFileCipherTest {
@@ -43,6 +46,38 @@ public class HistoryFileCipherTest {
         return new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
     }
 
+    @Test
+    public void testDecryptLegacyHistoryFile() throws Exception {
+        HardenedPassword hpwd = randomHardenedPassword();
+
+        User user = new User("someuser");
+        HistoryFile original = randomHistoryFile.nextHistoryFile(user);
+
+        EncryptedHistoryFile legacy = new HistoryFileCipher(new Aes128Cbc()).encrypt(original, hpwd);
+
+        HistoryFileCipher cipher = new HistoryFileCipher();
+        Assert.assertEquals(original, cipher.decrypt(legacy, hpwd, user));
+
+        EncryptedHistoryFile migrated = cipher.encrypt(original, hpwd);
+        Assert.assertTrue(Aes128CtrHmacSha256.isCiphertext(migrated.ciphertext));
+        Assert.assertEquals(original, cipher.decrypt(migrated, hpwd, user));
+    }
+
+    @Test
+    public void testIsKey() throws Exception {
+        HardenedPassword hpwd = randomHardenedPassword();
+        HardenedPassword wrongHpwd = randomHardenedPassword();
+        HistoryFile original = randomHistoryFile.nextHistoryFile(new User("someuser"));
+
+        HistoryFileCipher cipher = new HistoryFileCipher();
+        EncryptedHistoryFile encrypted = cipher.encrypt(original, hpwd);
+        Assert.assertTrue(cipher.isKey(encrypted, hpwd));
+        Assert.assertFalse(cipher.isKey(encrypted, wrongHpwd));
+
+        EncryptedHistoryFile legacy = new HistoryFileCipher(new Aes128Cbc()).encrypt(original, hpwd);
+        Assert.assertTrue(cipher.isKey(legacy, hpwd));
+    }
+
     @Test(expected = IndecipherableHistoryFileException.class)
     public void testEncryptAndDecryptWithWrongHpwd() throws Exception {
         HardenedPassword hpwd = randomHardenedPassword();
@@ -74,4 +109,26 @@ public class HistoryFileCipherTest {
 
         cipher.decrypt(encrypted, hpwd, wrongUser);
     }
+
+    @Test
+    public void testDecryptLegacyMalformedPlaintext() throws Exception {
+        HardenedPassword hpwd = randomHardenedPassword();
+        User user = new User("someuser");
+        Aes128Cbc legacyCipher = new Aes128Cbc();
+        HistoryFileCipher cipher = new HistoryFileCipher();
+
+        // as if a wrong key had yielded valid padding: an unsupported version, and a truncated header
+        ByteBuffer unsupportedVersion = ByteBuffer.allocate(32 + 3 * 4);
+        unsupportedVersion.putInt(32, -99);
+        byte[][] plaintexts = new byte[][]{ unsupportedVersion.array(), new byte[10] };
+        for (byte[] plaintext : plaintexts) {
+            EncryptedHistoryFile encrypted =
+                    new EncryptedHistoryFile(legacyCipher.encrypt(legacyCipher.deriveKey(hpwd), plaintext));
+            try {
+                cipher.decrypt(encrypted, hpwd, user);
+                Assert.fail();
+            } catch (IndecipherableHistoryFileException expected) {
+            }
+        }
+    }
 }
@@ -4,14 +4,20 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import seclogin.TestRandom;
+import seclogin.User;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 public class HistoryFileSerializationTest {
 
+    Random random;
     RandomHistoryFile randomHistoryFile;
 
     @Before
     public void setUp() throws Exception {
-        randomHistoryFile = RandomHistoryFile.random(TestRandom.random());
+        random = TestRandom.random();
+        randomHistoryFile = RandomHistoryFile.random(random);
     }
 
     @Test
@@ -20,4 +26,127 @@ public class HistoryFileSerializationTest {
         HistoryFileSerialization serialization = new HistoryFileSerialization();
         Assert.assertEquals(historyFile, serialization.fromByteArray(serialization.toByteArray(historyFile)));
     }
+
+    @Test
+    public void testReadAtBufferPosition() throws Exception {
+        HistoryFile historyFile = randomHistoryFile.nextHistoryFile();
+        historyFile.addMostRecentMeasurements(new double[historyFile.nrOfFeatures()]);
+        HistoryFileSerialization serialization = new HistoryFileSerialization();
+        byte[] serialized = serialization.toByteArray(historyFile);
+        ByteBuffer buffer = ByteBuffer.allocate(serialized.length + 10);
+        buffer.position(5);
+        buffer.put(serialized);
+
+        buffer.position(5);
+        Assert.assertEquals(historyFile, serialization.read(buffer));
+        Assert.assertEquals(5 + serialized.length, buffer.position());
+    }
+
+    @Test
+    public void testCompressesSmallIntegersAndMissingMeasurements() throws Exception {
+        HistoryFileParams params = new HistoryFileParams(100, 8);
+        HistoryFile historyFile = HistoryFile.emptyHistoryFile(new User("asdf"), params);
+        for (int j = 0; j < 60; j++) {
+            double[] measurements = new double[params.nrOfFeatures];
+            for (int i = 0; i < measurements.length; i++) {
+                measurements[i] = random.nextInt(4) == 0 ? Double.NaN : random.nextInt(20);
+            }
+            historyFile.addMostRecentMeasurements(measurements);
+        }
+        HistoryFileSerialization serialization = new HistoryFileSerialization();
+
+        byte[] serialized = serialization.toByteArray(historyFile);
+
+        Assert.assertEquals(historyFile, serialization.fromByteArray(serialized));
+        int rawSize = 32 + 2 * 4 + params.maxNrOfMeasurements * params.nrOfFeatures * 8;
+        Assert.assertTrue(serialized.length + " bytes", serialized.length < rawSize / 4);
+    }
+
+    @Test
+    public void testReadVersion1Format() throws Exception {
+        HistoryFile historyFile = randomHistoryFile.nextHistoryFile();
+        historyFile.addMostRecentMeasurements(new double[]{ 1.5, Double.NaN, -0.0 });
+        double[][] measurements = historyFile.measurements();
+        ByteBuffer legacy = ByteBuffer.allocate(32 + 2 * 4 + measurements.length * measurements[0].length * 8);
+        legacy.put(historyFile.userHash);
+        legacy.putInt(historyFile.maxNrOfMeasurements());
+        legacy.putInt(historyFile.nrOfFeatures());
+        for (double[] login : measurements) {
+            for (double measurement : login) {
+                legacy.putDouble(measurement);
+            }
+        }
+
+        Assert.assertEquals(historyFile, new HistoryFileSerialization().fromByteArray(legacy.array()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedMeasurementsAreRejected() throws Exception {
+        HistoryFileSerialization serialization = new HistoryFileSerialization();
+        byte[] serialized = serialization.toByteArray(randomHistoryFile.nextHistoryFile());
+        ByteBuffer truncated = ByteBuffer.wrap(serialized);
+        truncated.putInt(32 + 3 * 4, serialized.length - (32 + 4 * 4) - 1);
+
+        serialization.read(truncated);
+    }
+
+    @Test
+    public void testRunningStatsAreCarried() throws Exception {
+        HistoryFile historyFile = randomHistoryFile.nextHistoryFile();
+        for (int k = 0; k < 10; k++) {
+            historyFile.addMostRecentMeasurements(new double[]{ 0.1 * k, Double.NaN, random.nextGaussian() });
+        }
+        HistoryFileSerialization serialization = new HistoryFileSerialization();
+
+        HistoryFile read = serialization.fromByteArray(serialization.toByteArray(historyFile));
+
+        for (int i = 0; i < historyFile.nrOfFeatures(); i++) {
+            Assert.assertEquals(historyFile.count(i), read.count(i));
+        }
+        for (int k = 0; k < HistoryFile.RUNNING_STATS_PER_FEATURE * historyFile.nrOfFeatures(); k++) {
+            Assert.assertEquals(historyFile.runningStat(k), read.runningStat(k), 0);
+        }
+        Assert.assertArrayEquals(historyFile.calculateStats(), read.calculateStats());
+    }
+
+    @Test
+    public void testReadVersion2Format() throws Exception {
+        HistoryFile historyFile = randomHistoryFile.nextHistoryFile();
+        HistoryFileSerialization serialization = new HistoryFileSerialization();
+        ByteBuffer serialized = ByteBuffer.wrap(serialization.toByteArray(historyFile));
+        // version 2 lacks the running stats after the measurements
+        serialized.putInt(32, -2);
+        serialized.limit(32 + 4 * 4 + serialized.getInt(32 + 3 * 4));
+
+        HistoryFile read = serialization.read(serialized);
+
+        Assert.assertEquals(historyFile, read);
+        Assert.assertFalse(serialized.hasRemaining());
+        Assert.assertArrayEquals(historyFile.calculateStats(), read.calculateStats());
+    }
+
+    @Test
+    public void testReadVersion3Format() throws Exception {
+        HistoryFile historyFile = randomHistoryFile.nextHistoryFile();
+        HistoryFileSerialization serialization = new HistoryFileSerialization();
+        byte[] serialized = serialization.toByteArray(historyFile);
+        int measurementsEnd = 32 + 4 * 4 + ByteBuffer.wrap(serialized).getInt(32 + 3 * 4);
+        // version 3 follows each feature's count with 4 running sums, which are recalculated rather than read
+        ByteBuffer version3 = ByteBuffer.allocate(measurementsEnd + historyFile.nrOfFeatures() * (4 + 4 * 8));
+        version3.put(serialized, 0, measurementsEnd);
+        version3.putInt(32, -3);
+        for (int i = 0; i < historyFile.nrOfFeatures(); i++) {
+            version3.putInt(historyFile.count(i));
+            for (int k = 0; k < 4; k++) {
+                version3.putDouble(random.nextGaussian());
+            }
+        }
+        version3.flip();
+
+        HistoryFile read = serialization.read(version3);
+
+        Assert.assertEquals(historyFile, read);
+        Assert.assertFalse(version3.hasRemaining());
+        Assert.assertArrayEquals(historyFile.calculateStats(), read.calculateStats());
+    }
 }
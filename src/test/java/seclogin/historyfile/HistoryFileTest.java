@@ -1,5 +1,6 @@
 package seclogin.historyfile;
 
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -30,7 +31,7 @@ public class HistoryFileTest {
         for (double[] expectedMeasurement : expectedMeasurements) {
             Arrays.fill(expectedMeasurement, Double.NaN);
         }
-        Assert.assertArrayEquals(expectedMeasurements, empty.measurements);
+        Assert.assertArrayEquals(expectedMeasurements, empty.measurements());
     }
 
     @Test
@@ -55,7 +56,7 @@ public class HistoryFileTest {
             Arrays.fill(expectedMeasurement, Double.NaN);
         }
         expectedMeasurements[0] = measurements;
-        Assert.assertArrayEquals(expectedMeasurements, withMeasurements.measurements);
+        Assert.assertArrayEquals(expectedMeasurements, withMeasurements.measurements());
 
 
         double[] moreMeasurements = new double[params.nrOfFeatures];
@@ -65,7 +66,27 @@ public class HistoryFileTest {
         withMeasurements = withMeasurements.withMostRecentMeasurements(moreMeasurements);
         expectedMeasurements[0] = moreMeasurements;
         expectedMeasurements[1] = measurements;
-        Assert.assertArrayEquals(expectedMeasurements, withMeasurements.measurements);
+        Assert.assertArrayEquals(expectedMeasurements, withMeasurements.measurements());
+    }
+
+    @Test
+    public void testAddMostRecentMeasurementsWrapsAround() throws Exception {
+        HistoryFile file = HistoryFile.emptyHistoryFile(new User("asdf"), new HistoryFileParams(3, 2));
+        for (int k = 1; k <= 5; k++) {
+            file.addMostRecentMeasurements(new double[]{ k, 10 * k });
+        }
+
+        double[][] expectedMeasurements = new double[][]{ { 5, 50 }, { 4, 40 }, { 3, 30 } };
+        Assert.assertArrayEquals(expectedMeasurements, file.measurements());
+        Assert.assertArrayEquals(new MeasurementStats[]{
+                new MeasurementStats(4.0, 1.0),
+                new MeasurementStats(40.0, 10.0),
+        }, file.calculateStats());
+
+        HistoryFileSerialization serialization = new HistoryFileSerialization();
+        HistoryFile read = serialization.fromByteArray(serialization.toByteArray(file));
+        Assert.assertEquals(file, read);
+        Assert.assertArrayEquals(expectedMeasurements, read.measurements());
     }
 
     @Test
@@ -84,4 +105,42 @@ public class HistoryFileTest {
         };
         Assert.assertArrayEquals(expectedStats, stats);
     }
+
+    @Test
+    public void testRunningStatsMatchRecalculation() throws Exception {
+        HistoryFile file = HistoryFile.emptyHistoryFile(new User("asdf"), new HistoryFileParams(50, 3));
+        for (int k = 0; k < 500; k++) {
+            double[] measurements = new double[]{
+                    random.nextInt(20),
+                    1000 + random.nextGaussian(),
+                    k >= 400 || random.nextInt(10) != 0 ? random.nextGaussian() : Double.NaN,
+            };
+            file.addMostRecentMeasurements(measurements);
+        }
+
+        MeasurementStats[] stats = file.calculateStats();
+        double[][] measurements = file.measurements();
+        for (int i = 0; i < stats.length; i++) {
+            SummaryStatistics expected = new SummaryStatistics();
+            for (double[] login : measurements) {
+                expected.addValue(login[i]);
+            }
+            Assert.assertEquals(expected.getMean(), stats[i].mean, 1e-9);
+            Assert.assertEquals(expected.getStandardDeviation(), stats[i].stDev, 1e-9);
+        }
+    }
+
+    @Test
+    public void testRunningStatsRecoverFromInfiniteMeasurement() throws Exception {
+        HistoryFile file = HistoryFile.emptyHistoryFile(new User("asdf"), new HistoryFileParams(3, 1));
+        file.addMostRecentMeasurements(new double[]{ Double.POSITIVE_INFINITY });
+        file.addMostRecentMeasurements(new double[]{ 10 });
+        file.addMostRecentMeasurements(new double[]{ 20 });
+        Assert.assertTrue(Double.isInfinite(file.calculateStats()[0].mean));
+
+        // evicts the infinite measurement
+        file.addMostRecentMeasurements(new double[]{ 30 });
+
+        Assert.assertArrayEquals(new MeasurementStats[]{ new MeasurementStats(20.0, 10.0) }, file.calculateStats());
+    }
 }
@@ -0,0 +1,76 @@
+package seclogin.historyfile;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MeasurementEncodingTest {
+
+    Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+    }
+
+    @Test
+    public void testEncodeAndDecode() throws Exception {
+        double[] values = new double[1000];
+        for (int k = 0; k < values.length; k++) {
+            switch (random.nextInt(5)) {
+                case 0: values[k] = Double.NaN; break;
+                case 1: values[k] = random.nextInt(20); break;
+                case 2: values[k] = k > 0 ? values[k - 1] : 0; break;
+                case 3: values[k] = random.nextGaussian(); break;
+                default: values[k] = Double.longBitsToDouble(random.nextLong()); break;
+            }
+        }
+        values[1] = -0.0;
+        values[2] = Double.POSITIVE_INFINITY;
+        values[3] = Double.MIN_VALUE;
+
+        Assert.assertArrayEquals(values, roundTrip(values), 0);
+    }
+
+    @Test
+    public void testEncodeAndDecodeRunsOfNaN() throws Exception {
+        double[] values = new double[300];
+        Arrays.fill(values, Double.NaN);
+        values[0] = 7;
+        values[100] = 7;
+        values[299] = 3;
+
+        Assert.assertArrayEquals(values, roundTrip(values), 0);
+        Assert.assertArrayEquals(new double[0], roundTrip(new double[0]), 0);
+    }
+
+    @Test
+    public void testRepeatedValuesTakeABitEach() throws Exception {
+        double[] values = new double[800];
+        Arrays.fill(values, 12);
+
+        MeasurementEncoding.BitWriter writer = new MeasurementEncoding.BitWriter();
+        writer.reset(0);
+        MeasurementEncoding.encode(values, values.length, writer);
+
+        Assert.assertTrue(writer.finish() <= 8 + values.length / 8);
+    }
+
+    private static double[] roundTrip(double[] values) {
+        MeasurementEncoding.BitWriter writer = new MeasurementEncoding.BitWriter();
+        writer.reset(0);
+        MeasurementEncoding.encode(values, values.length, writer);
+        int len = writer.finish();
+
+        ByteBuffer encoded = ByteBuffer.wrap(Arrays.copyOf(writer.bytes(), len));
+        double[] decoded = new double[values.length];
+        MeasurementEncoding.decode(new MeasurementEncoding.BitReader(encoded), decoded, decoded.length);
+        Assert.assertFalse(encoded.hasRemaining());
+        return decoded;
+    }
+}
@@ -5,6 +5,8 @@ import org.junit.Test;
 import seclogin.MeasurementParams;
 import seclogin.MeasurementStats;
 
+import java.util.List;
+
 import static seclogin.instructiontable.Distinguishment.ALPHA;
 import static seclogin.instructiontable.Distinguishment.BETA;
 
@@ -35,6 +37,38 @@ public class DistinguishmentPolicyTest {
         Assert.assertArrayEquals(expected, policy.measurementDistinguishment(measurements));
     }
 
+    @Test
+    public void testMeasurementDistinguishments() throws Exception {
+        MeasurementParams[] measurementParams = new MeasurementParams[]{
+                new MeasurementParams(10.0, 2.0),
+                new MeasurementParams(100.0, 2.0),
+                new MeasurementParams(10.0, 2.0)
+        };
+        DistinguishmentPolicy policy = new DistinguishmentPolicy(measurementParams);
+
+        double[] measurements = new double[] {
+                9.0, // alpha, margin 1
+                104.0, // beta, margin 4
+                12.5 // beta, margin 2.5
+        };
+
+        List<Distinguishment[]> candidates = policy.measurementDistinguishments(measurements, 6);
+
+        // in order of the flipped margins: none, 1, 2.5, 1 + 2.5, 4, 1 + 4, 2.5 + 4
+        Assert.assertEquals(7, candidates.size());
+        Assert.assertArrayEquals(new Distinguishment[]{ ALPHA, BETA, BETA }, candidates.get(0));
+        Assert.assertArrayEquals(new Distinguishment[]{ BETA, BETA, BETA }, candidates.get(1));
+        Assert.assertArrayEquals(new Distinguishment[]{ ALPHA, BETA, ALPHA }, candidates.get(2));
+        Assert.assertArrayEquals(new Distinguishment[]{ BETA, BETA, ALPHA }, candidates.get(3));
+        Assert.assertArrayEquals(new Distinguishment[]{ ALPHA, ALPHA, BETA }, candidates.get(4));
+        Assert.assertArrayEquals(new Distinguishment[]{ BETA, ALPHA, BETA }, candidates.get(5));
+        Assert.assertArrayEquals(new Distinguishment[]{ ALPHA, ALPHA, ALPHA }, candidates.get(6));
+
+        // there are only 2^3 - 1 alternatives
+        Assert.assertEquals(8, policy.measurementDistinguishments(measurements, 100).size());
+        Assert.assertEquals(1, policy.measurementDistinguishments(measurements, 0).size());
+    }
+
     @Test
     public void testUserDistinguishment() throws Exception {
         MeasurementParams[] measurementParams = new MeasurementParams[]{
@@ -5,13 +5,22 @@ import org.junit.Before;
 import org.junit.Test;
 import seclogin.HardenedPassword;
 import seclogin.Password;
+import seclogin.SecurityParameters;
 import seclogin.TestRandom;
+import seclogin.crypto.KeyDerivation;
+import seclogin.crypto.Pbkdf2;
+import seclogin.crypto.Scrypt;
+import seclogin.io.BigIntegerOutputStream;
 import seclogin.math.Mod;
 import seclogin.math.RandomBigIntModQ;
 import seclogin.math.RandomQ;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 public class InstructionTableIoTest {
@@ -40,4 +49,226 @@ public class InstructionTableIoTest {
 
         Assert.assertEquals(written, read);
     }
+
+    @Test
+    public void testKeyDerivationIsPersisted() throws Exception {
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        KeyDerivation kdf = new Pbkdf2(Pbkdf2.Prf.HMAC_SHA256, 1000);
+        InstructionTable written = new InstructionTableModQ(q, random, InstructionTableParams.DEFAULT.withKeyDerivation(kdf))
+                .generate(hpwd, new Password("asdf"), new Distinguishment[3]);
+
+        InstructionTableIo io = new InstructionTableIo();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        io.write(written, out);
+
+        InstructionTable read = io.read(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals(kdf, read.keyDerivation);
+        Assert.assertEquals(written, read);
+    }
+
+    @Test
+    public void testScryptIsPersisted() throws Exception {
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        KeyDerivation kdf = new Scrypt(16, 2, 2);
+        Password pwd = new Password("asdf");
+        InstructionTableModQ instructionTableModQ =
+                new InstructionTableModQ(q, random, InstructionTableParams.DEFAULT.withKeyDerivation(kdf));
+        InstructionTable written = instructionTableModQ.generate(hpwd, pwd, new Distinguishment[3]);
+
+        InstructionTableIo io = new InstructionTableIo();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        io.write(written, out);
+
+        InstructionTable read = io.read(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals(kdf, read.keyDerivation);
+        Assert.assertEquals(written, read);
+        Assert.assertEquals(hpwd, instructionTableModQ.interpolateHpwd(read, pwd,
+                new Distinguishment[]{ Distinguishment.ALPHA, Distinguishment.BETA, Distinguishment.ALPHA }));
+    }
+
+    @Test
+    public void testMasterSaltIsPersisted() throws Exception {
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        InstructionTable written = new InstructionTableModQ(q, random,
+                InstructionTableParams.DEFAULT.withKeySchedule(KeySchedule.MASTER_KEY))
+                .generate(hpwd, new Password("asdf"), new Distinguishment[3]);
+
+        InstructionTableIo io = new InstructionTableIo();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        io.write(written, out);
+
+        InstructionTable read = io.read(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertNotNull(read.masterSalt);
+        Assert.assertEquals(written, read);
+    }
+
+    @Test
+    public void testReadUnversionedFormat() throws Exception {
+
+        // tables in the original format drew their x-coordinates from a SHA1PRNG
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        byte[] r = new byte[SecurityParameters.R_LEN/Byte.SIZE];
+        random.nextBytes(r);
+        InstructionTableModQ instructionTableModQ = new InstructionTableModQ(q, random);
+        InstructionTable written = instructionTableModQ.generate(hpwd, new TableKeys(pwd), new Distinguishment[3],
+                new TableSalts(r, Pbkdf2.DEFAULT, null, PrpAlgorithm.SHA1PRNG, null));
+
+        // the original format: r, then the entries, with no version or key derivation
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BigIntegerOutputStream legacy = new BigIntegerOutputStream(out);
+        legacy.writeInt(written.r.length);
+        legacy.write(written.r);
+        legacy.writeInt(written.size());
+        for (int i = 0; i < written.size(); i++) {
+            legacy.writeBigInteger(written.alpha(i));
+            legacy.writeBigInteger(written.beta(i));
+        }
+        legacy.close();
+
+        InstructionTable read = new InstructionTableIo().read(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals(Pbkdf2.DEFAULT, read.keyDerivation);
+        Assert.assertEquals(PrpAlgorithm.SHA1PRNG, read.prp);
+        Assert.assertEquals(written, read);
+        Assert.assertEquals(hpwd, instructionTableModQ.interpolateHpwd(read, pwd,
+                new Distinguishment[]{ Distinguishment.ALPHA, Distinguishment.BETA, Distinguishment.ALPHA }));
+    }
+
+    @Test
+    public void testPrpIsPersisted() throws Exception {
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        InstructionTable written = new InstructionTableModQ(q, random).generate(hpwd, new Password("asdf"), new Distinguishment[3]);
+
+        InstructionTableIo io = new InstructionTableIo();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        io.write(written, out);
+
+        InstructionTable read = io.read(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals(PrpAlgorithm.AES_FEISTEL, read.prp);
+        Assert.assertEquals(written, read);
+    }
+
+    @Test
+    public void testReadMappedFile() throws Exception {
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        InstructionTableModQ instructionTableModQ = new InstructionTableModQ(q, random);
+        InstructionTable written = instructionTableModQ.generate(hpwd, pwd, new Distinguishment[3]);
+
+        InstructionTableIo io = new InstructionTableIo();
+
+        File file = File.createTempFile("instruction-table", null);
+        try {
+            io.write(written, file);
+            InstructionTable read = io.read(file);
+
+            Assert.assertEquals(written, read);
+            Assert.assertEquals(hpwd, instructionTableModQ.interpolateHpwd(read, pwd,
+                    new Distinguishment[]{ Distinguishment.BETA, Distinguishment.ALPHA, Distinguishment.BETA }));
+            // the slots remain in the mapped file
+            Assert.assertTrue(read.footprint() < written.footprint());
+
+            // replacing the file leaves the table already read from it intact
+            io.write(instructionTableModQ.generate(hpwd, pwd, new Distinguishment[3]), file);
+            Assert.assertEquals(written, read);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReadBuffer() throws Exception {
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        InstructionTable written = new InstructionTableModQ(q, random).generate(hpwd, new Password("asdf"), new Distinguishment[3]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{ 1, 2, 3 });
+        new InstructionTableIo().write(written, out);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        buffer.position(3);
+
+        InstructionTable read = new InstructionTableIo().read(buffer);
+
+        Assert.assertEquals(3, buffer.position());
+        Assert.assertEquals(written, read);
+    }
+
+    @Test
+    public void testReadVersion4Format() throws Exception {
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        InstructionTableModQ instructionTableModQ = new InstructionTableModQ(q, random);
+        InstructionTable written = instructionTableModQ.generate(hpwd, pwd, new Distinguishment[3]);
+
+        // version 4: the header, then the entries as variable-length integers
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BigIntegerOutputStream legacy = new BigIntegerOutputStream(out);
+        legacy.writeInt(-4);
+        legacy.writeByte(1); // PBKDF2
+        legacy.writeUTF(Pbkdf2.DEFAULT.prf.macAlgorithm);
+        legacy.writeInt(Pbkdf2.DEFAULT.iterations);
+        legacy.writeInt(0); // no master salt
+        legacy.writeByte(2); // AES_FEISTEL
+        legacy.writeInt(written.r.length);
+        legacy.write(written.r);
+        legacy.writeInt(written.size());
+        for (int i = 0; i < written.size(); i++) {
+            legacy.writeBigInteger(written.alpha(i));
+            legacy.writeBigInteger(written.beta(i));
+        }
+        legacy.close();
+
+        InstructionTable read = new InstructionTableIo().read(ByteBuffer.wrap(out.toByteArray()));
+
+        Assert.assertEquals(written, read);
+        Assert.assertEquals(hpwd, instructionTableModQ.interpolateHpwd(read, pwd,
+                new Distinguishment[]{ Distinguishment.ALPHA, Distinguishment.BETA, Distinguishment.ALPHA }));
+    }
+
+    @Test
+    public void testRejectsKeyDerivationBeyondLimits() throws Exception {
+        byte[] r = new byte[SecurityParameters.R_LEN/Byte.SIZE];
+        ByteBuffer slots = InstructionTable.pack(new BigInteger[]{ BigInteger.ONE, BigInteger.TEN });
+
+        // 4 lanes of 128 MiB each, which is not derived here
+        InstructionTable scrypt = new InstructionTable(r, new Scrypt(1 << 17, 8, 4), null, PrpAlgorithm.AES_FEISTEL,
+                slots, InstructionTable.SLOT_LEN);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new InstructionTableIo().write(scrypt, out);
+        Assert.assertEquals(scrypt, new InstructionTableIo().read(new ByteArrayInputStream(out.toByteArray())));
+        try {
+            new InstructionTableIo(256L << 20).read(new ByteArrayInputStream(out.toByteArray()));
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+
+        InstructionTable pbkdf2 = new InstructionTable(r, Pbkdf2.DEFAULT, null, PrpAlgorithm.AES_FEISTEL,
+                slots, InstructionTable.SLOT_LEN);
+        out = new ByteArrayOutputStream();
+        new InstructionTableIo().write(pbkdf2, out);
+        ByteBuffer corrupt = ByteBuffer.wrap(out.toByteArray());
+        // the iteration count follows the version, the type and the PRF's name
+        corrupt.putInt(4 + 1 + 2 + Pbkdf2.DEFAULT.prf.macAlgorithm.length(), 0);
+        try {
+            new InstructionTableIo().read(new ByteArrayInputStream(corrupt.array()));
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+    }
 }
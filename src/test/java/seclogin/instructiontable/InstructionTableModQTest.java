@@ -6,11 +6,16 @@ import org.junit.Test;
 import seclogin.HardenedPassword;
 import seclogin.Password;
 import seclogin.TestRandom;
+import seclogin.crypto.CtrDrbg;
+import seclogin.crypto.KeyDerivation;
+import seclogin.crypto.Pbkdf2;
 import seclogin.math.Mod;
 import seclogin.math.RandomBigIntModQ;
 import seclogin.math.RandomQ;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import static seclogin.instructiontable.Distinguishment.ALPHA;
 import static seclogin.instructiontable.Distinguishment.BETA;
@@ -34,7 +39,35 @@ public class InstructionTableModQTest {
         Password pwd = new Password("asdf");
         InstructionTable table = instructionTableModQ.generate(hpwd, pwd, new Distinguishment[3]);
 
-        Assert.assertEquals(3, table.table.length);
+        Assert.assertEquals(3, table.size());
+    }
+
+    @Test
+    public void testParallelGenerationMatchesSequential() throws Exception {
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        Distinguishment[] distinguishments = new Distinguishment[]{ ALPHA, null, BETA, BETA, null, ALPHA, ALPHA };
+        TableSalts salts = instructionTableModQ.nextSalts(null);
+
+        InstructionTable sequential = new InstructionTableModQ(q, TestRandom.random())
+                .generate(hpwd, new TableKeys(pwd), distinguishments, salts, 1);
+        InstructionTable parallel = new InstructionTableModQ(q, TestRandom.random())
+                .generate(hpwd, new TableKeys(pwd), distinguishments, salts, 3);
+
+        Assert.assertEquals(sequential, parallel);
+        Assert.assertEquals(hpwd, instructionTableModQ.interpolateHpwd(parallel, pwd,
+                new Distinguishment[]{ ALPHA, BETA, BETA, BETA, ALPHA, ALPHA, ALPHA }));
+    }
+
+    @Test
+    public void testFootprintIsPacked() throws Exception {
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        InstructionTable table = instructionTableModQ.generate(hpwd, new Password("asdf"), new Distinguishment[100]);
+
+        // two slots per feature, and a fixed overhead for the table and its salt
+        long perFeature = 2 * InstructionTable.SLOT_LEN;
+        Assert.assertTrue(table.footprint() >= 100 * perFeature);
+        Assert.assertTrue(table.footprint() <= 100 * perFeature + 256);
     }
 
     @Test
@@ -74,4 +107,160 @@ public class InstructionTableModQTest {
         wrongHpwd = instructionTableModQ.interpolateHpwd(table, wrongPwd, new Distinguishment[]{ BETA, BETA, BETA });
         Assert.assertNotEquals(hpwd, wrongHpwd);
     }
+
+    @Test
+    public void testInterpolationMatchesInterpolateHpwd() throws Exception {
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        Distinguishment[] userDistinguishments = new Distinguishment[]{ ALPHA, null, BETA, BETA, null, ALPHA, null };
+        InstructionTable table = instructionTableModQ.generate(hpwd, pwd, userDistinguishments);
+
+        TableKeys keys = new TableKeys(pwd);
+        TableInterpolation interpolation = instructionTableModQ.interpolation(table, keys);
+        // every distinguishment vector, in an order that flips one or several features at a time
+        for (int bits : new int[]{ 0, 1, 3, 2, 6, 127, 126, 64, 85, 42, 43, 5, 100 }) {
+            Distinguishment[] distinguishments = new Distinguishment[userDistinguishments.length];
+            for (int i = 0; i < distinguishments.length; i++) {
+                distinguishments[i] = (bits & (1 << i)) == 0 ? ALPHA : BETA;
+            }
+            Assert.assertEquals(instructionTableModQ.interpolateHpwd(table, keys, distinguishments),
+                    interpolation.interpolateHpwd(distinguishments));
+        }
+        Assert.assertEquals(hpwd, interpolation.interpolateHpwd(
+                new Distinguishment[]{ ALPHA, BETA, BETA, BETA, ALPHA, ALPHA, BETA }));
+    }
+
+    @Test
+    public void testGenerateWithCtrDrbg() throws Exception {
+        InstructionTableModQ drbgTableModQ = new InstructionTableModQ(q, new CtrDrbg(random));
+        HardenedPassword hpwd = drbgTableModQ.generateHardenedPassword();
+        Assert.assertTrue(q.contains(hpwd.hpwd));
+        Password pwd = new Password("asdf");
+        InstructionTable table = drbgTableModQ.generate(hpwd, pwd, new Distinguishment[]{ ALPHA, null, BETA });
+
+        Assert.assertEquals(hpwd, drbgTableModQ.interpolateHpwd(table, pwd, new Distinguishment[]{ ALPHA, BETA, BETA }));
+        Assert.assertNotEquals(hpwd, drbgTableModQ.interpolateHpwd(table, pwd, new Distinguishment[]{ BETA, BETA, BETA }));
+    }
+
+    @Test
+    public void testMasterKeyScheduleDerivesOncePerLogin() throws Exception {
+        CountingKeyDerivation kdf = new CountingKeyDerivation(new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 1000));
+        InstructionTableModQ masterKeyed = new InstructionTableModQ(q, random,
+                new InstructionTableParams(kdf, KeySchedule.MASTER_KEY));
+
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        InstructionTable table = masterKeyed.generate(hpwd, pwd, new Distinguishment[]{ ALPHA, null, BETA });
+        Assert.assertEquals(KeySchedule.MASTER_KEY, table.keySchedule());
+
+        // a successful login: interpolate from the old table, then generate the new table
+        kdf.count = 0;
+        TableKeys keys = new TableKeys(pwd);
+        Assert.assertEquals(hpwd, masterKeyed.interpolateHpwd(table, keys, new Distinguishment[]{ ALPHA, BETA, BETA }));
+        InstructionTable next = masterKeyed.generate(hpwd, keys, new Distinguishment[]{ ALPHA, null, BETA }, table);
+        Assert.assertEquals(1, kdf.count);
+
+        Assert.assertArrayEquals(table.masterSalt, next.masterSalt);
+        Assert.assertFalse(Arrays.equals(table.r, next.r));
+        Assert.assertEquals(hpwd, masterKeyed.interpolateHpwd(next, pwd, new Distinguishment[]{ ALPHA, ALPHA, BETA }));
+        Assert.assertNotEquals(hpwd, masterKeyed.interpolateHpwd(next, new Password("asdg"), new Distinguishment[]{ ALPHA, ALPHA, BETA }));
+    }
+
+    @Test
+    public void testPerTableScheduleUpgradesToMasterKey() throws Exception {
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        InstructionTable table = instructionTableModQ.generate(hpwd, pwd, new Distinguishment[3]);
+        Assert.assertEquals(KeySchedule.PER_TABLE, table.keySchedule());
+
+        InstructionTableModQ masterKeyed = new InstructionTableModQ(q, random,
+                InstructionTableParams.DEFAULT.withKeySchedule(KeySchedule.MASTER_KEY));
+        TableKeys keys = new TableKeys(pwd);
+        HardenedPassword recovered = masterKeyed.interpolateHpwd(table, keys, new Distinguishment[]{ ALPHA, ALPHA, ALPHA });
+        InstructionTable next = masterKeyed.generate(recovered, keys, new Distinguishment[3], table);
+
+        Assert.assertEquals(KeySchedule.MASTER_KEY, next.keySchedule());
+        Assert.assertEquals(hpwd, masterKeyed.interpolateHpwd(next, pwd, new Distinguishment[]{ BETA, BETA, BETA }));
+    }
+
+    @Test
+    public void testKeyDerivationIsUpgradedWithinBudget() throws Exception {
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        KeyDerivation oldKdf = new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 1000);
+        InstructionTable table = new InstructionTableModQ(q, random, InstructionTableParams.DEFAULT.withKeyDerivation(oldKdf))
+                .generate(hpwd, pwd, new Distinguishment[3]);
+
+        // each derivation of the new key derivation takes two seconds, twice the budget per minute
+        final KdfUpgradeBudgetTest.FakeTicker ticker = new KdfUpgradeBudgetTest.FakeTicker();
+        KeyDerivation newKdf = new KeyDerivation() {
+            final KeyDerivation delegate = new Pbkdf2(Pbkdf2.Prf.HMAC_SHA256, 1000);
+
+            @Override
+            public byte[] deriveKey(byte[] salt, Password password, int keyLenInBytes) {
+                ticker.advance(2, TimeUnit.SECONDS);
+                return delegate.deriveKey(salt, password, keyLenInBytes);
+            }
+        };
+        KdfUpgradeBudget budget = new KdfUpgradeBudget(1000, ticker);
+        InstructionTableModQ upgrading = new InstructionTableModQ(q, random,
+                new InstructionTableParams(newKdf, KeySchedule.PER_TABLE, budget));
+
+        // the first upgrade exhausts the budget
+        InstructionTable upgraded = upgrading.generate(hpwd, new TableKeys(pwd), new Distinguishment[3], table);
+        Assert.assertEquals(newKdf, upgraded.keyDerivation);
+        Assert.assertEquals(hpwd, upgrading.interpolateHpwd(upgraded, pwd, new Distinguishment[]{ ALPHA, ALPHA, ALPHA }));
+
+        InstructionTable deferred = upgrading.generate(hpwd, new TableKeys(pwd), new Distinguishment[3], table);
+        Assert.assertEquals(oldKdf, deferred.keyDerivation);
+        Assert.assertEquals(hpwd, upgrading.interpolateHpwd(deferred, pwd, new Distinguishment[]{ ALPHA, ALPHA, ALPHA }));
+
+        // tables that are already upgraded cost nothing
+        Assert.assertEquals(newKdf, upgrading.generate(hpwd, new TableKeys(pwd), new Distinguishment[3], upgraded).keyDerivation);
+
+        ticker.advance(1, TimeUnit.HOURS);
+        Assert.assertEquals(newKdf, upgrading.generate(hpwd, new TableKeys(pwd), new Distinguishment[3], table).keyDerivation);
+    }
+
+    @Test
+    public void testUpgradeIsDeferredUntilAuthenticated() throws Exception {
+        HardenedPassword hpwd = new HardenedPassword(new RandomBigIntModQ(random, q).nextBigIntModQ());
+        Password pwd = new Password("asdf");
+        KeyDerivation oldKdf = new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 1000);
+        InstructionTable table = new InstructionTableModQ(q, random, InstructionTableParams.DEFAULT.withKeyDerivation(oldKdf))
+                .generate(hpwd, pwd, new Distinguishment[3]);
+        KeyDerivation newKdf = new Pbkdf2(Pbkdf2.Prf.HMAC_SHA256, 1000);
+        KdfUpgradeBudget budget = new KdfUpgradeBudget(1000, new KdfUpgradeBudgetTest.FakeTicker());
+        InstructionTableModQ upgrading = new InstructionTableModQ(q, random,
+                new InstructionTableParams(newKdf, KeySchedule.PER_TABLE, budget));
+
+        // drawing salts before authentication neither upgrades nor reserves the budget
+        for (int i = 0; i < 3; i++) {
+            TableSalts salts = upgrading.nextSalts(table);
+            Assert.assertEquals(oldKdf, salts.keyDerivation);
+            Assert.assertNull(salts.upgrade);
+        }
+
+        TableSalts upgraded = upgrading.upgradeSalts(upgrading.nextSalts(table), table);
+        Assert.assertEquals(newKdf, upgraded.keyDerivation);
+        Assert.assertNotNull(upgraded.upgrade);
+        // the first upgrade reserves the whole budget until it completes
+        Assert.assertEquals(oldKdf, upgrading.upgradeSalts(upgrading.nextSalts(table), table).keyDerivation);
+    }
+
+    /** Counts the key derivations it performs. */
+    static class CountingKeyDerivation implements KeyDerivation {
+        final KeyDerivation delegate;
+        int count;
+
+        CountingKeyDerivation(KeyDerivation delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public byte[] deriveKey(byte[] salt, Password password, int keyLenInBytes) {
+            count++;
+            return delegate.deriveKey(salt, password, keyLenInBytes);
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package seclogin.instructiontable;
+
+import com.google.common.base.Ticker;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class KdfUpgradeBudgetTest {
+
+    @Test
+    public void testBudgetIsRefilledOverTime() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        KdfUpgradeBudget budget = new KdfUpgradeBudget(1000, ticker);
+
+        KdfUpgradeBudget.Reservation upgrade = budget.tryReserve();
+        Assert.assertNotNull(upgrade);
+        upgrade.settle(TimeUnit.MILLISECONDS.toNanos(1500));
+        Assert.assertNull(budget.tryReserve());
+
+        // half a minute refills 500 ms, which just pays off the debt
+        ticker.advance(30, TimeUnit.SECONDS);
+        Assert.assertNull(budget.tryReserve());
+        ticker.advance(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(budget.tryReserve());
+    }
+
+    @Test
+    public void testBudgetHoldsAtMostOneMinute() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        KdfUpgradeBudget budget = new KdfUpgradeBudget(1000, ticker);
+
+        ticker.advance(1, TimeUnit.HOURS);
+        budget.tryReserve().settle(TimeUnit.MILLISECONDS.toNanos(1000));
+        Assert.assertNull(budget.tryReserve());
+    }
+
+    @Test
+    public void testConcurrentUpgradesReserveTheirEstimatedCost() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        KdfUpgradeBudget budget = new KdfUpgradeBudget(1000, ticker);
+
+        // until an upgrade has completed, the first one reserves the whole budget
+        KdfUpgradeBudget.Reservation first = budget.tryReserve();
+        Assert.assertNull(budget.tryReserve());
+        first.settle(TimeUnit.MILLISECONDS.toNanos(100));
+        // settling twice changes nothing
+        first.settle(TimeUnit.MILLISECONDS.toNanos(100));
+
+        // 900 ms are left, and each upgrade is estimated to take 100 ms
+        for (int i = 0; i < 9; i++) {
+            Assert.assertNotNull(budget.tryReserve());
+        }
+        Assert.assertNull(budget.tryReserve());
+    }
+
+    static class FakeTicker extends Ticker {
+        long nanos;
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package seclogin.instructiontable;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.Password;
+import seclogin.TestRandom;
+import seclogin.crypto.Pbkdf2;
+import seclogin.instructiontable.InstructionTableModQTest.CountingKeyDerivation;
+import seclogin.math.RandomQ;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TableKeysTest {
+
+    final Password pwd = new Password("asdf");
+
+    CountingKeyDerivation kdf;
+    InstructionTableModQ instructionTableModQ;
+    TableSalts salts;
+    SecretKey expected;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = TestRandom.random();
+        kdf = new CountingKeyDerivation(new Pbkdf2(Pbkdf2.Prf.HMAC_SHA1, 1000));
+        instructionTableModQ = new InstructionTableModQ(new RandomQ(random).nextQ(), random,
+                InstructionTableParams.DEFAULT.withKeyDerivation(kdf));
+        salts = instructionTableModQ.nextSalts(null);
+        expected = new TableKeys(pwd).prfKey(salts);
+        kdf.count = 0;
+    }
+
+    @Test
+    public void testPrefetchedKeyIsDerivedOnce() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            TableKeys keys = new TableKeys(pwd);
+            keys.prefetch(salts, executor);
+            Assert.assertEquals(expected, keys.prfKey(salts));
+            Assert.assertEquals(1, kdf.count);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrefetchNotYetStartedIsDerivedByCaller() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        TableKeys keys = new TableKeys(pwd);
+        keys.prefetch(salts, executor);
+
+        Assert.assertEquals(expected, keys.prfKey(salts));
+        executor.runAll();
+        Assert.assertEquals(1, kdf.count);
+    }
+
+    @Test
+    public void testCancelledPrefetchIsNotDerived() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        TableKeys keys = new TableKeys(pwd);
+        keys.prefetch(salts, executor);
+        keys.cancel();
+
+        executor.runAll();
+        Assert.assertEquals(0, kdf.count);
+
+        // a cancelled derivation is performed anew when it is needed after all
+        Assert.assertEquals(expected, keys.prfKey(salts));
+        Assert.assertEquals(1, kdf.count);
+    }
+
+    /** Holds the tasks given to it until told to run them. */
+    static class QueueingExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class FeistelPRPTest {
+
+    Random random;
+    byte[] key;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+        key = new byte[20];
+        random.nextBytes(key);
+    }
+
+    @Test
+    public void testIsPermutationOfSmallModulus() throws Exception {
+        // 7 bits, so that cycle-walking out of the 8-bit network is exercised
+        Mod q = new Mod(BigInteger.valueOf(101));
+        FeistelPRP p = new FeistelPRP(key, q);
+
+        Set<BigInteger> images = new HashSet<BigInteger>();
+        for (int i = 0; i < 101; i++) {
+            BigInteger x = p.apply(i);
+            Assert.assertTrue(q.contains(x));
+            images.add(x);
+        }
+        Assert.assertEquals(101, images.size());
+    }
+
+    @Test
+    public void testIsDeterministicInItsKey() throws Exception {
+        Mod q = new RandomQ(random).nextQ();
+        FeistelPRP p = new FeistelPRP(key, q);
+        FeistelPRP same = new FeistelPRP(key.clone(), q);
+        byte[] otherKey = key.clone();
+        otherKey[0] ^= 1;
+        FeistelPRP other = new FeistelPRP(otherKey, q);
+
+        Set<BigInteger> images = new HashSet<BigInteger>();
+        for (int i = 0; i < 100; i++) {
+            BigInteger x = p.apply(i);
+            Assert.assertTrue(q.contains(x));
+            // any index can be computed directly, in any order
+            Assert.assertEquals(x, same.apply(i));
+            Assert.assertNotEquals(x, other.apply(i));
+            images.add(x);
+        }
+        Assert.assertEquals(100, images.size());
+    }
+}
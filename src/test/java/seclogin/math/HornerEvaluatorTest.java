@@ -0,0 +1,79 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+public class HornerEvaluatorTest {
+
+    Random random;
+    Mod q;
+    RandomBigIntModQ randomBigIntModQ;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+        q = new RandomQ(random).nextQ();
+        randomBigIntModQ = new RandomBigIntModQ(random, q);
+    }
+
+    @Test
+    public void testSmallBatch() throws Exception {
+        testBatch(5, 10);
+    }
+
+    @Test
+    public void testConstantPolynomial() throws Exception {
+        testBatch(1, 3);
+    }
+
+    @Test
+    public void testLargeBatch() throws Exception {
+        int n = 300;
+        int count = HornerEvaluator.PARALLEL_THRESHOLD / n + 1;
+        testBatch(n, count);
+    }
+
+    @Test
+    public void testBatchSplitAcrossThreads() throws Exception {
+        int n = 20;
+        int count = 37;
+        Polynomial polynomial = new RandomPolynomial(randomBigIntModQ).nextPolynomial(n);
+        ModQ f = new ModQ(q);
+        long[] cs = f.newElements(n);
+        for (int k = 0; k < n; k++) {
+            f.set(polynomial.coefficients().get(k), cs, k);
+        }
+        BigInteger[] xs = new BigInteger[count];
+        long[] xSlots = f.newElements(count);
+        for (int i = 0; i < count; i++) {
+            xs[i] = randomBigIntModQ.nextBigIntModQ();
+            f.set(xs[i], xSlots, i);
+        }
+
+        long[] ySlots = f.newElements(count);
+        new HornerEvaluator(q, cs, n).evaluateInParallel(f, xSlots, count, ySlots, 4);
+
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(polynomial.applyBigInteger(xs[i]), f.get(ySlots, i));
+        }
+    }
+
+    void testBatch(int n, int count) {
+        Polynomial polynomial = new RandomPolynomial(randomBigIntModQ).nextPolynomial(n);
+        BigInteger[] xs = new BigInteger[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = randomBigIntModQ.nextBigIntModQ();
+        }
+
+        BigInteger[] ys = polynomial.apply(xs);
+
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(polynomial.applyBigInteger(xs[i]), ys[i]);
+        }
+    }
+}
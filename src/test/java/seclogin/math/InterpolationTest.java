@@ -39,6 +39,20 @@ public class InterpolationTest {
         assertEquals(BigInteger.valueOf(1), i);
     }
 
+    @Test
+    public void testModQMatchesBigInteger() throws Exception {
+        Mod q = new Mod(new BigInteger("a85d364b1faa7c32a7e0c1676a26e50afb131443", 16));
+        SecureRandom r = SecureRandom.getInstance("SHA1PRNG");
+        r.setSeed(new byte[0]);
+        RandomPolynomial rp = new RandomPolynomial(r, q);
+
+        // points on a polynomial of higher degree, so that the y-intercept is arbitrary
+        List<Point> points = rp.nextPoints(rp.nextPolynomial(30), 20);
+        Interpolation interpolation = new Interpolation(points, q);
+
+        assertEquals(interpolation.yInterceptBigInteger(), interpolation.yInterceptModQ());
+    }
+
     void testInterpolation(int m, Mod q) throws Exception {
 
         SecureRandom r = SecureRandom.getInstance("SHA1PRNG");
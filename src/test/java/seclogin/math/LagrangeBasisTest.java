@@ -0,0 +1,82 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+public class LagrangeBasisTest {
+
+    Random random;
+    Mod q;
+    ModQ f;
+    RandomBigIntModQ randomBigIntModQ;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+        q = new RandomQ(random).nextQ();
+        f = new ModQ(q);
+        randomBigIntModQ = new RandomBigIntModQ(random, q);
+    }
+
+    /** Choosing and flipping must agree with interpolating through the chosen points afresh. */
+    @Test
+    public void testMatchesLagrangeInterpolator() throws Exception {
+        int n = 12;
+        long[] xs = f.newElements(2 * n);
+        long[] ys = f.newElements(2 * n);
+        for (int p = 0; p < 2 * n; p++) {
+            f.set(randomBigIntModQ.nextBigIntModQ(), xs, p);
+            f.set(randomBigIntModQ.nextBigIntModQ(), ys, p);
+        }
+        LagrangeBasis basis = new LagrangeBasis(f, xs, n);
+
+        int[] choices = new int[n];
+        for (int i = 0; i < n; i++) {
+            choices[i] = random.nextInt(2);
+        }
+        basis.choose(choices);
+        Assert.assertEquals(expectedYIntercept(xs, ys, choices), yIntercept(basis, ys));
+
+        for (int round = 0; round < 50; round++) {
+            int k = random.nextInt(n);
+            basis.flip(k);
+            choices[k] = 1 - choices[k];
+            Assert.assertEquals(choices[k], basis.choice(k));
+            Assert.assertEquals(expectedYIntercept(xs, ys, choices), yIntercept(basis, ys));
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testDuplicateX() throws Exception {
+        long[] xs = f.newElements(4);
+        f.set(BigInteger.valueOf(1), xs, 0);
+        f.set(BigInteger.valueOf(2), xs, 1);
+        f.set(BigInteger.valueOf(3), xs, 2);
+        f.set(BigInteger.valueOf(1), xs, 3);
+        new LagrangeBasis(f, xs, 2);
+    }
+
+    BigInteger yIntercept(LagrangeBasis basis, long[] ys) {
+        long[] y0 = f.newElements(1);
+        basis.yIntercept(ys, y0, 0);
+        return f.get(y0, 0);
+    }
+
+    BigInteger expectedYIntercept(long[] xs, long[] ys, int[] choices) {
+        int n = choices.length;
+        long[] chosenXs = f.newElements(n);
+        long[] chosenYs = f.newElements(n);
+        for (int i = 0; i < n; i++) {
+            f.copy(xs, 2 * i + choices[i], chosenXs, i);
+            f.copy(ys, 2 * i + choices[i], chosenYs, i);
+        }
+        long[] y0 = f.newElements(1);
+        new LagrangeInterpolator(f).yIntercept(chosenXs, chosenYs, n, y0, 0);
+        return f.get(y0, 0);
+    }
+}
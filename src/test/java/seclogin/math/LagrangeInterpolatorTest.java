@@ -0,0 +1,64 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class LagrangeInterpolatorTest {
+
+    Random random;
+    Mod q;
+    ModQ f;
+    RandomPolynomial randomPolynomial;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+        q = new RandomQ(random).nextQ();
+        f = new ModQ(q);
+        randomPolynomial = new RandomPolynomial(random, q);
+    }
+
+    @Test
+    public void testReuseAcrossSizes() throws Exception {
+        LagrangeInterpolator interpolator = new LagrangeInterpolator(f);
+        for (int n : new int[]{ 1, 2, 30, 7, 100, 3 }) {
+            Polynomial polynomial = randomPolynomial.nextPolynomial(n);
+            Assert.assertEquals(polynomial.coefficients().get(0),
+                    yIntercept(interpolator, randomPolynomial.nextPoints(polynomial, n)));
+        }
+    }
+
+    @Test
+    public void testMatchesBigInteger() throws Exception {
+        List<Point> points = randomPolynomial.nextPoints(randomPolynomial.nextPolynomial(40), 25);
+
+        Assert.assertEquals(new Interpolation(points, q).yInterceptBigInteger(),
+                yIntercept(new LagrangeInterpolator(f), points));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testDuplicateX() throws Exception {
+        yIntercept(new LagrangeInterpolator(f), Arrays.asList(
+                new Point(1, 2), new Point(3, 4), new Point(1, 5)));
+    }
+
+    BigInteger yIntercept(LagrangeInterpolator interpolator, List<Point> points) {
+        int n = points.size();
+        long[] xs = f.newElements(n);
+        long[] ys = f.newElements(n);
+        for (int i = 0; i < n; i++) {
+            f.set(points.get(i).x, xs, i);
+            f.set(points.get(i).y, ys, i);
+        }
+        long[] y0 = f.newElements(1);
+        interpolator.yIntercept(xs, ys, n, y0, 0);
+        return f.get(y0, 0);
+    }
+}
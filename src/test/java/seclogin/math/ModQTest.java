@@ -0,0 +1,134 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Differential tests of the {@link ModQ} engine against `BigInteger` arithmetic. */
+public class ModQTest {
+
+    Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+    }
+
+    @Test
+    public void testSmallModuli() throws Exception {
+        testOperations(new Mod(BigInteger.valueOf(3)));
+        testOperations(new Mod(BigInteger.valueOf(11)));
+        testOperations(new Mod(BigInteger.valueOf(89)));
+    }
+
+    @Test
+    public void testRandom160BitModuli() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            testOperations(new RandomQ(random).nextQ());
+        }
+    }
+
+    @Test
+    public void testLargest160BitModulus() throws Exception {
+        // the largest prime below 2^160
+        testOperations(new Mod(BigInteger.ONE.shiftLeft(160).subtract(BigInteger.valueOf(47))));
+    }
+
+    @Test
+    public void testSupports() throws Exception {
+        Assert.assertTrue(ModQ.supports(new Mod(BigInteger.valueOf(3))));
+        Assert.assertFalse(ModQ.supports(new Mod(BigInteger.valueOf(16))));
+        Assert.assertFalse(ModQ.supports(new Mod(BigInteger.ONE)));
+        Assert.assertFalse(ModQ.supports(new Mod(BigInteger.probablePrime(161, random))));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testInverseOfZero() throws Exception {
+        ModQ f = new ModQ(new Mod(BigInteger.valueOf(89)));
+        long[] e = f.newElements(1);
+        f.inverse(e, 0, e, 0);
+    }
+
+    @Test
+    public void testPolynomialMatchesBigInteger() throws Exception {
+        Mod q = new RandomQ(random).nextQ();
+        RandomBigIntModQ randomBigIntModQ = new RandomBigIntModQ(random, q);
+        Polynomial polynomial = new RandomPolynomial(randomBigIntModQ).nextPolynomial(20);
+        for (int i = 0; i < 20; i++) {
+            BigInteger x = randomBigIntModQ.nextBigIntModQ();
+            Assert.assertEquals(polynomial.applyBigInteger(x), polynomial.applyModQ(x));
+        }
+    }
+
+    @Test
+    public void testSetSignedMatchesBigInteger() throws Exception {
+        for (Mod q : new Mod[]{ new Mod(BigInteger.valueOf(89)), new RandomQ(random).nextQ() }) {
+            ModQ f = new ModQ(q);
+            long[] e = f.newElements(1);
+            for (int len : new int[]{ 1, 16, 20 }) {
+                byte[] bytes = new byte[len + 2];
+                for (int i = 0; i < 50; i++) {
+                    random.nextBytes(bytes);
+                    if (i == 0) {
+                        Arrays.fill(bytes, (byte) 0x80);
+                    }
+                    f.setSigned(bytes, 1, len, e, 0);
+                    BigInteger expected = new BigInteger(Arrays.copyOfRange(bytes, 1, 1 + len)).mod(q.q);
+                    Assert.assertEquals(expected, f.get(e, 0));
+                }
+            }
+        }
+    }
+
+    void testOperations(Mod q) {
+        ModQ f = new ModQ(q);
+        long[] e = f.newElements(3);
+
+        BigInteger[] values = new BigInteger[23];
+        values[0] = BigInteger.ZERO;
+        values[1] = BigInteger.ONE;
+        values[2] = q.q.subtract(BigInteger.ONE);
+        RandomBigIntModQ randomBigIntModQ = new RandomBigIntModQ(random, q);
+        for (int i = 3; i < values.length; i++) {
+            values[i] = randomBigIntModQ.nextBigIntModQ();
+        }
+
+        for (BigInteger a : values) {
+            f.set(a, e, 0);
+            Assert.assertEquals(a, f.get(e, 0));
+            Assert.assertEquals(a.signum() == 0, f.isZero(e, 0));
+            if (a.signum() != 0) {
+                f.inverse(e, 0, e, 2);
+                Assert.assertEquals(a.modInverse(q.q), f.get(e, 2));
+            }
+
+            for (BigInteger b : values) {
+                f.set(a, e, 0);
+                f.set(b, e, 1);
+
+                f.add(e, 0, e, 1, e, 2);
+                Assert.assertEquals(a.add(b).mod(q.q), f.get(e, 2));
+                f.subtract(e, 0, e, 1, e, 2);
+                Assert.assertEquals(a.subtract(b).mod(q.q), f.get(e, 2));
+                f.multiply(e, 0, e, 1, e, 2);
+                Assert.assertEquals(a.multiply(b).mod(q.q), f.get(e, 2));
+
+                f.multiplyAdd(e, 0, e, 1, e, 0, e, 2);
+                Assert.assertEquals(a.multiply(b).add(a).mod(q.q), f.get(e, 2));
+
+                // the output may be an operand
+                f.multiply(e, 0, e, 1, e, 0);
+                Assert.assertEquals(a.multiply(b).mod(q.q), f.get(e, 0));
+            }
+        }
+
+        // values outside [0, q) are reduced
+        f.set(q.q.negate().subtract(BigInteger.ONE), e, 0);
+        Assert.assertEquals(q.q.subtract(BigInteger.ONE), f.get(e, 0));
+    }
+}
@@ -0,0 +1,98 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.Password;
+import seclogin.TestRandom;
+import seclogin.crypto.Aes128Cbc;
+
+import javax.crypto.SecretKey;
+import java.math.BigInteger;
+import java.util.Random;
+
+public class PasswordBasedPRFTest {
+
+    Random random;
+    Mod q;
+    byte[] salt;
+    Password pwd;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+        q = new RandomQ(random).nextQ();
+        salt = new byte[20];
+        random.nextBytes(salt);
+        pwd = new Password("asdf");
+    }
+
+    /** The batched PRF must agree with encrypting each input separately with {@link Aes128Cbc}. */
+    @Test
+    public void testOfRangeMatchesSingleBlockCbc() throws Exception {
+        Aes128Cbc cbc = new Aes128Cbc();
+        SecretKey key = cbc.deriveKey(salt, pwd);
+
+        int n = 300;
+        BigInteger[] batched = PasswordBasedPRF.forSaltedPassword(salt, pwd, q).ofRange(n);
+        Assert.assertEquals(n, batched.length);
+        for (int i = 0; i < n; i++) {
+            BigInteger expected = new BigInteger(cbc.encrypt(key, BigInteger.valueOf(i).toByteArray())).mod(q.q);
+            Assert.assertEquals(expected, batched[i]);
+        }
+    }
+
+    @Test
+    public void testOfMatchesOfRange() throws Exception {
+        PasswordBasedPRF g = PasswordBasedPRF.forSaltedPassword(salt, pwd, q);
+        BigInteger[] range = g.ofRange(10);
+
+        int[] inputs = new int[]{ 9, 0, 4, 4 };
+        BigInteger[] out = new BigInteger[inputs.length];
+        g.of(inputs, out);
+        for (int i = 0; i < inputs.length; i++) {
+            Assert.assertEquals(range[inputs[i]], out[i]);
+            Assert.assertEquals(range[inputs[i]], g.of(inputs[i]));
+        }
+    }
+
+    @Test
+    public void testOfModQMatchesOfRange() throws Exception {
+        PasswordBasedPRF g = PasswordBasedPRF.forSaltedPassword(salt, pwd, q);
+        BigInteger[] range = g.ofRange(50);
+
+        ModQ f = new ModQ(q);
+        int[] inputs = new int[range.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = inputs.length - 1 - i;
+        }
+        long[] out = f.newElements(inputs.length);
+        g.of(inputs, f, out);
+        for (int i = 0; i < inputs.length; i++) {
+            Assert.assertEquals(range[inputs[i]], f.get(out, i));
+        }
+    }
+
+    @Test
+    public void testUnsupportedModulus() throws Exception {
+        Mod even = new Mod(BigInteger.ONE.shiftLeft(100));
+        Aes128Cbc cbc = new Aes128Cbc();
+        SecretKey key = cbc.deriveKey(salt, pwd);
+        PasswordBasedPRF g = PasswordBasedPRF.forSaltedPassword(salt, pwd, even);
+
+        BigInteger expected = new BigInteger(cbc.encrypt(key, BigInteger.valueOf(3).toByteArray())).mod(even.q);
+        Assert.assertEquals(expected, g.of(3));
+    }
+
+    @Test
+    public void testLargeAndNegativeInputs() throws Exception {
+        Aes128Cbc cbc = new Aes128Cbc();
+        SecretKey key = cbc.deriveKey(salt, pwd);
+        PasswordBasedPRF g = PasswordBasedPRF.forSaltedPassword(salt, pwd, q);
+
+        for (int input : new int[]{ 127, 128, 255, 256, 32767, 32768, Integer.MAX_VALUE, -1, -129, Integer.MIN_VALUE }) {
+            BigInteger expected = new BigInteger(cbc.encrypt(key, BigInteger.valueOf(input).toByteArray())).mod(q.q);
+            Assert.assertEquals(expected, g.of(input));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import seclogin.TestRandom;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+public class PooledRandomBigIntModQTest {
+
+    Random random;
+    Mod q;
+    Queue<Runnable> tasks;
+    Executor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        random = TestRandom.random();
+        q = new RandomQ(random).nextQ();
+        tasks = new ArrayDeque<Runnable>();
+        executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+    }
+
+    @Test
+    public void testHandsOutPooledElements() throws Exception {
+        PooledRandomBigIntModQ pooled = new PooledRandomBigIntModQ(random, q, executor, 8);
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals(0, pooled.size());
+
+        tasks.remove().run();
+        Assert.assertEquals(8, pooled.size());
+
+        // no refill until the pool is half empty
+        for (int i = 0; i < 3; i++) {
+            BigInteger x = pooled.nextBigIntModQ();
+            Assert.assertTrue(q.contains(x));
+        }
+        Assert.assertEquals(5, pooled.size());
+        Assert.assertTrue(tasks.isEmpty());
+
+        pooled.nextBigIntModQ();
+        Assert.assertEquals(4, pooled.size());
+        Assert.assertEquals(1, tasks.size());
+
+        // while a refill is pending, no other is scheduled
+        pooled.nextBigIntModQ();
+        Assert.assertEquals(1, tasks.size());
+
+        tasks.remove().run();
+        Assert.assertEquals(8, pooled.size());
+    }
+
+    @Test
+    public void testDrawsDirectlyWhenEmpty() throws Exception {
+        PooledRandomBigIntModQ pooled = new PooledRandomBigIntModQ(random, q, executor, 4);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(q.contains(pooled.nextBigIntModQ()));
+        }
+        Assert.assertEquals(0, pooled.size());
+        Assert.assertEquals(1, tasks.size());
+    }
+}
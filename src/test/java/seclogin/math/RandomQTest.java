@@ -0,0 +1,32 @@
+package seclogin.math;
+
+import org.junit.Assert;
+import org.junit.Test;
+import seclogin.SecurityParameters;
+import seclogin.TestRandom;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+public class RandomQTest {
+
+    @Test
+    public void testNextQIsPrimeOfQLen() throws Exception {
+        RandomQ randomQ = new RandomQ(TestRandom.random());
+        for (int i = 0; i < 5; i++) {
+            Mod q = randomQ.nextQ();
+            Assert.assertEquals(SecurityParameters.Q_LEN, q.q.bitLength());
+            Assert.assertTrue(q.q.isProbablePrime(RandomQ.CERTAINTY));
+        }
+    }
+
+    @Test
+    public void testSearchFindsFirstPrimeFromStart() throws Exception {
+        Random random = TestRandom.random();
+        for (int i = 0; i < 5; i++) {
+            BigInteger start = new BigInteger(SecurityParameters.Q_LEN, random)
+                    .setBit(SecurityParameters.Q_LEN - 1).setBit(0);
+            Assert.assertEquals(start.subtract(BigInteger.ONE).nextProbablePrime(), RandomQ.search(start));
+        }
+    }
+}